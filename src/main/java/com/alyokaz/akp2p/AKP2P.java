@@ -3,21 +3,25 @@ package com.alyokaz.akp2p;
 import com.alyokaz.akp2p.argumentparser.ArgumentParser;
 import com.alyokaz.akp2p.argumentparser.CLIFactory;
 import com.alyokaz.akp2p.argumentparser.NodeFactory;
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 import com.alyokaz.akp2p.fileservice.FileInfo;
 import com.alyokaz.akp2p.fileservice.FileService;
 import com.alyokaz.akp2p.fileservice.exceptions.SeedFileException;
 import com.alyokaz.akp2p.peerservice.PeerService;
 import com.alyokaz.akp2p.peerservice.exceptions.ContactBeaconException;
 import com.alyokaz.akp2p.pingserver.PingServer;
+import com.alyokaz.akp2p.ratelimit.RateLimits;
 import com.alyokaz.akp2p.server.NodeServer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.BindException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -31,19 +35,25 @@ import java.util.Set;
  */
 public class AKP2P {
     private static final Logger logger = LogManager.getLogger();
+    private static final int BIND_ATTEMPTS = 10;
     private final NodeServer server;
     private final PingServer udpServer;
     private final PeerService peerService;
     private final FileService fileService;
-    private final InetSocketAddress beaconAddress;
+    private final List<InetSocketAddress> beaconAddresses;
 
     public AKP2P(NodeServer server, PingServer udpServer, PeerService peerService, FileService fileService,
                  InetSocketAddress beaconAddress) {
+        this(server, udpServer, peerService, fileService, List.of(beaconAddress));
+    }
+
+    public AKP2P(NodeServer server, PingServer udpServer, PeerService peerService, FileService fileService,
+                 List<InetSocketAddress> beaconAddresses) {
         this.server = server;
         this.udpServer = udpServer;
         this.peerService = peerService;
         this.fileService = fileService;
-        this.beaconAddress = beaconAddress;
+        this.beaconAddresses = List.copyOf(beaconAddresses);
     }
 
     public AKP2P(NodeServer server, PingServer udpServer, PeerService peerService, FileService fileService) {
@@ -51,7 +61,7 @@ public class AKP2P {
         this.udpServer = udpServer;
         this.peerService = peerService;
         this.fileService = fileService;
-        this.beaconAddress = null;
+        this.beaconAddresses = List.of();
     }
 
     /**
@@ -63,7 +73,19 @@ public class AKP2P {
      */
     public static AKP2P createAndInitialize(InetSocketAddress beaconAddress) {
         logger.atInfo().log("Initialising with Beacon at : " + beaconAddress);
-        return init(beaconAddress, 0);
+        return init(List.of(beaconAddress), 0, null, new RateLimits());
+    }
+
+    /**
+     * Constructs an instance of {@code AKP2P} that attempts to contact the fastest responding of the {@code Beacon}
+     * nodes of a cluster, at the given addresses, to download peer addresses that have registered with the cluster.
+     *
+     * @param beaconAddresses the addresses of the {@code beacon} nodes.
+     * @return An instance of {@code AKP2P} registered and in contact with a {@code Beacon} node
+     */
+    public static AKP2P createAndInitialize(List<InetSocketAddress> beaconAddresses) {
+        logger.atInfo().log("Initialising with Beacons at : " + beaconAddresses);
+        return init(beaconAddresses, 0, null, new RateLimits());
     }
 
     /**
@@ -78,7 +100,21 @@ public class AKP2P {
      */
     public static AKP2P createAndInitialize(int port, InetSocketAddress beaconAddress) {
         logger.atInfo().log("Initialising with use defined port at {} and Beacon at {}", port, beaconAddress);
-        return init(beaconAddress, port);
+        return init(List.of(beaconAddress), port, null, new RateLimits());
+    }
+
+    /**
+     * Constructs an instance of {@code AKP2P} with its servers listening on the given {@code Port} and that attempts
+     * to contact the fastest responding of the {@code Beacon} nodes of a cluster, at the given addresses.
+     *
+     * @param port            the port number the instances servers will listen on
+     * @param beaconAddresses the addresses of the beacon nodes
+     * @return An instance of {@code AKP2P} with its servers listening on the given port and registered and in contact
+     * with a {@code Beacon} node
+     */
+    public static AKP2P createAndInitialize(int port, List<InetSocketAddress> beaconAddresses) {
+        logger.atInfo().log("Initialising with use defined port at {} and Beacons at {}", port, beaconAddresses);
+        return init(beaconAddresses, port, null, new RateLimits());
     }
 
     /**
@@ -90,7 +126,7 @@ public class AKP2P {
      */
     public static AKP2P createAndInitializeNoBeacon() {
         logger.atInfo().log("Initialising without Beacon");
-        return init(null, 0);
+        return init(List.of(), 0, null, new RateLimits());
     }
 
     /**
@@ -104,42 +140,88 @@ public class AKP2P {
      */
     public static AKP2P createAndInitializeNoBeacon(int port) {
         logger.atInfo().log("Initialising with user defined port {}", port);
-        return init(null, port);
+        return init(List.of(), port, null, new RateLimits());
     }
 
-    private static AKP2P init(InetSocketAddress beaconAddress, int port) {
-        PeerService peerService = new PeerService();
-        FileService fileService = new FileService(peerService);
+    /**
+     * Constructs and initialises an instance of {@code AKP2P} with its servers listening on the given port, that
+     * downloads files to the given directory, limits its transfers with the given {@code RateLimits} and attempts to
+     * contact the fastest responding of the {@code Beacon} nodes at the given addresses, if any are given.
+     * <p>
+     * The downloads left unfinished in the directory when a node last used it are carried on, so the directory
+     * should not be shared with another node.
+     *
+     * @param port              the port number the instances servers will listen on, or 0 for any free port
+     * @param beaconAddresses   the addresses of the beacon nodes, or an empty list to not contact a {@code Beacon}
+     * @param downloadDirectory the directory files are downloaded to
+     * @param rateLimits        the upload and download limits of the instance, which are not shared with another
+     * @return An instance of {@code AKP2P} listening on the given port and downloading to the given directory
+     */
+    public static AKP2P createAndInitialize(int port, List<InetSocketAddress> beaconAddresses,
+                                            File downloadDirectory, RateLimits rateLimits) {
+        logger.atInfo().log("Initialising with port {}, Beacons at {} and download directory {}", port,
+                beaconAddresses, downloadDirectory);
+        return init(beaconAddresses, port, downloadDirectory, rateLimits);
+    }
+
+    private static AKP2P init(List<InetSocketAddress> beaconAddresses, int port, File downloadDirectory,
+                              RateLimits rateLimits) {
+        if (downloadDirectory != null && !downloadDirectory.isDirectory() && !downloadDirectory.mkdirs())
+            throw new RuntimeException("Creating download directory " + downloadDirectory + " failed");
+        // every service of the node runs on the same kind of thread
+        ExecutorStrategy executorStrategy = ExecutorStrategy.getDefault();
+        PeerService peerService = new PeerService(executorStrategy);
+        FileService fileService = new FileService(peerService, executorStrategy, rateLimits, downloadDirectory);
+        // downloads left unfinished when the node last stopped carry on once a peer holding the file is found
+        fileService.restoreDownloads();
 
-        ServerSocket serverSocket = null;
+        ServerSocketChannel serverChannel = null;
         DatagramSocket datagramSocket = null;
-        try {
-            serverSocket = new ServerSocket(port);
-            datagramSocket = new DatagramSocket(serverSocket.getLocalPort());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        // a port chosen by the system may be free for TCP but taken for UDP, in which case another one is chosen
+        for (int attempt = 1; datagramSocket == null; attempt++) {
+            try {
+                serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+                datagramSocket = new DatagramSocket(serverChannel.socket().getLocalPort());
+            } catch (BindException e) {
+                closeQuietly(serverChannel);
+                if (port != 0 || attempt == BIND_ATTEMPTS)
+                    throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
-        NodeServer server = new NodeServer(serverSocket, peerService, fileService);
+        NodeServer server = new NodeServer(serverChannel, peerService, fileService, executorStrategy);
         server.start();
 
         peerService.addExcluded(server.getServerAddress());
         peerService.setServerAddress(server.getServerAddress());
+        peerService.startHeartbeats();
 
-        PingServer pingServer = new PingServer(datagramSocket);
+        PingServer pingServer = new PingServer(datagramSocket, executorStrategy);
         pingServer.start();
 
-        if (beaconAddress != null) {
-            peerService.contactBeacon(server.getServerAddress(), beaconAddress);
+        if (!beaconAddresses.isEmpty()) {
+            peerService.contactBeacon(server.getServerAddress(), beaconAddresses);
             peerService.discoverPeers();
             fileService.getConnectedPeersFiles();
+            fileService.resumeDownloads();
             return new AKP2P(server, pingServer, peerService, fileService,
-                    beaconAddress);
+                    beaconAddresses);
         }
 
         return new AKP2P(server, pingServer, peerService, fileService);
     }
 
+    private static void closeQuietly(ServerSocketChannel channel) {
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            logger.error("Closing server channel failed with {}", e.getMessage());
+        }
+    }
+
     /**
      * Main entry point for system.
      * <p>
@@ -189,6 +271,7 @@ public class AKP2P {
         if (address != server.getServerAddress() && peerService.addPeer(address)) {
             peerService.discoverPeers();
             fileService.getConnectedPeersFiles();
+            fileService.resumeDownloads();
             return true;
         } else {
             return false;
@@ -220,10 +303,11 @@ public class AKP2P {
      * @return a {@code Set<FileInfo>} of files available for download
      */
     public Set<FileInfo> getAvailableFiles() {
-        if (beaconAddress != null)
-            peerService.contactBeacon(server.getServerAddress(), beaconAddress);
+        if (!beaconAddresses.isEmpty())
+            peerService.contactBeacon(server.getServerAddress(), beaconAddresses);
         peerService.discoverPeers();
         fileService.getConnectedPeersFiles();
+        fileService.resumeDownloads();
         return fileService.getFileAddressRegistry().keySet();
     }
 
@@ -264,12 +348,24 @@ public class AKP2P {
         return Map.copyOf(fileService.getFileAddressRegistry());
     }
 
+    /**
+     * Returns the upload and download limits of this node. The limits may be changed while the node runs, and take
+     * effect for transfers already under way.
+     *
+     * @return the {@code RateLimits} of this node
+     */
+    public RateLimits getRateLimits() {
+        return fileService.getRateLimits();
+    }
+
     /**
      * Shutdown the system servers
      */
     public void shutDown() {
         if (server != null) server.shutdown();
         if (udpServer != null) udpServer.shutdown();
+        if (fileService != null) fileService.shutdown();
+        if (peerService != null) peerService.shutdown();
     }
 
 
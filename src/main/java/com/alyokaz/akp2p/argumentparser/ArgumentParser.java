@@ -1,5 +1,10 @@
 package com.alyokaz.akp2p.argumentparser;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
+import com.alyokaz.akp2p.fileservice.PieceSize;
+import com.alyokaz.akp2p.ratelimit.RateLimits;
+
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -11,6 +16,14 @@ public class ArgumentParser {
     public final static String BEACON_OPTION = "-beacon";
     public final static String PORT_OPTION = "-port";
     public final static String BEACON_ADDRESS_OPTION = "-beacon-address";
+    public final static String REPLICA_OPTION = "-replica";
+    public final static String THREADS_OPTION = "-threads";
+    public final static String PIECE_SIZE_OPTION = "-piece-size";
+    public final static String UPLOAD_LIMIT_OPTION = "-upload-limit";
+    public final static String PEER_UPLOAD_LIMIT_OPTION = "-peer-upload-limit";
+    public final static String DOWNLOAD_LIMIT_OPTION = "-download-limit";
+    public final static String PEER_DOWNLOAD_LIMIT_OPTION = "-peer-download-limit";
+    public final static String DOWNLOAD_DIRECTORY_OPTION = "-download-dir";
 
     private final NodeFactory nodeFactory;
 
@@ -26,7 +39,14 @@ public class ArgumentParser {
                 switch (command.trim()) {
                     case BEACON_OPTION -> argumentMap.put(BEACON_OPTION, "");
                     case PORT_OPTION -> argumentMap.put(PORT_OPTION, it.next());
-                    case BEACON_ADDRESS_OPTION -> argumentMap.put(BEACON_ADDRESS_OPTION, it.next() + " " + it.next());
+                    // may be given more than once, for each Beacon of a cluster
+                    case BEACON_ADDRESS_OPTION, REPLICA_OPTION -> argumentMap.merge(command.trim(),
+                            it.next() + " " + it.next(), (addresses, address) -> addresses + " " + address);
+                    case THREADS_OPTION -> argumentMap.put(THREADS_OPTION, it.next());
+                    case PIECE_SIZE_OPTION -> argumentMap.put(PIECE_SIZE_OPTION, it.next());
+                    case UPLOAD_LIMIT_OPTION, PEER_UPLOAD_LIMIT_OPTION, DOWNLOAD_LIMIT_OPTION,
+                            PEER_DOWNLOAD_LIMIT_OPTION -> argumentMap.put(command.trim(), it.next());
+                    case DOWNLOAD_DIRECTORY_OPTION -> argumentMap.put(DOWNLOAD_DIRECTORY_OPTION, it.next());
                     default -> throw new IllegalArgumentException("Unknown option " + command);
                 }
             }
@@ -34,9 +54,36 @@ public class ArgumentParser {
             if (argumentMap.containsKey(BEACON_OPTION) && argumentMap.containsKey(BEACON_ADDRESS_OPTION))
                 throw new IllegalArgumentException(BEACON_ADDRESS_OPTION + " is not applicable to a Beacon instance");
 
+            if (argumentMap.containsKey(REPLICA_OPTION) && !argumentMap.containsKey(BEACON_OPTION))
+                throw new IllegalArgumentException(REPLICA_OPTION + " is only applicable to a Beacon instance");
+
+            if (argumentMap.containsKey(BEACON_OPTION) && argumentMap.containsKey(DOWNLOAD_DIRECTORY_OPTION))
+                throw new IllegalArgumentException(DOWNLOAD_DIRECTORY_OPTION
+                        + " is not applicable to a Beacon instance");
+
+            if (argumentMap.containsKey(DOWNLOAD_DIRECTORY_OPTION))
+                nodeFactory.setDownloadDirectory(new File(argumentMap.get(DOWNLOAD_DIRECTORY_OPTION)));
+
+            if (argumentMap.containsKey(THREADS_OPTION))
+                ExecutorStrategy.setDefault(ExecutorStrategy.fromName(argumentMap.get(THREADS_OPTION)));
+
+            if (argumentMap.containsKey(PIECE_SIZE_OPTION))
+                PieceSize.setOverride(Integer.parseInt(argumentMap.get(PIECE_SIZE_OPTION)));
+
+            if (argumentMap.containsKey(UPLOAD_LIMIT_OPTION) || argumentMap.containsKey(PEER_UPLOAD_LIMIT_OPTION)
+                    || argumentMap.containsKey(DOWNLOAD_LIMIT_OPTION)
+                    || argumentMap.containsKey(PEER_DOWNLOAD_LIMIT_OPTION))
+                nodeFactory.setRateLimits(new RateLimits(parseRate(argumentMap.get(UPLOAD_LIMIT_OPTION)),
+                        parseRate(argumentMap.get(PEER_UPLOAD_LIMIT_OPTION)),
+                        parseRate(argumentMap.get(DOWNLOAD_LIMIT_OPTION)),
+                        parseRate(argumentMap.get(PEER_DOWNLOAD_LIMIT_OPTION))));
+
             if (argumentMap.containsKey(BEACON_OPTION)) {
 
-                if (argumentMap.containsKey(PORT_OPTION)) {
+                if (argumentMap.containsKey(REPLICA_OPTION)) {
+                    nodeFactory.buildBeacon(Integer.parseInt(argumentMap.getOrDefault(PORT_OPTION, "0")),
+                            argumentMap.get(REPLICA_OPTION));
+                } else if (argumentMap.containsKey(PORT_OPTION)) {
                     nodeFactory.buildBeacon(Integer.parseInt(argumentMap.get(PORT_OPTION)));
                 } else {
                     nodeFactory.buildBeacon();
@@ -50,10 +97,18 @@ public class ArgumentParser {
                     nodeFactory.build(Integer.parseInt(argumentMap.get(PORT_OPTION)));
                 }
 
-            } else if (argumentMap.containsKey(BEACON_ADDRESS_OPTION))
+            } else if (argumentMap.containsKey(BEACON_ADDRESS_OPTION)) {
                 nodeFactory.build(argumentMap.get(BEACON_ADDRESS_OPTION));
+            } else {
+                nodeFactory.build();
+            }
         } else {
             nodeFactory.build();
         }
     }
+
+    // a rate limit in bytes per second, 0 if the option was not given
+    private static long parseRate(String rate) {
+        return rate == null ? 0 : Long.parseLong(rate);
+    }
 }
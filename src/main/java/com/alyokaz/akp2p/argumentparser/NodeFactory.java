@@ -2,17 +2,43 @@ package com.alyokaz.akp2p.argumentparser;
 
 import com.alyokaz.akp2p.AKP2P;
 import com.alyokaz.akp2p.beacon.Beacon;
+import com.alyokaz.akp2p.ratelimit.RateLimits;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
 public class NodeFactory {
 
     private final CLIFactory cliFactory;
+    // null for the working directory, from which no downloads are restored
+    private File downloadDirectory;
+    // null for no limits
+    private RateLimits rateLimits;
 
     public NodeFactory(CLIFactory cliFactory) {this.cliFactory = cliFactory;}
 
+    /**
+     * Sets the directory the nodes built download files to, and restore their unfinished downloads from.
+     *
+     * @param downloadDirectory the download directory of the nodes built
+     */
+    public void setDownloadDirectory(File downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    /**
+     * Sets the upload and download limits of the next node built.
+     *
+     * @param rateLimits the {@code RateLimits} of the next node built
+     */
+    public void setRateLimits(RateLimits rateLimits) {
+        this.rateLimits = rateLimits;
+    }
+
     public Beacon buildBeacon() {
         return buildBeacon(0);
     }
@@ -23,21 +49,25 @@ public class NodeFactory {
         return beacon;
     }
 
+    public Beacon buildBeacon(int port, String replicaAddresses) {
+        Beacon beacon = Beacon.createAndInitialise(port, parseAddresses(replicaAddresses));
+        cliFactory.buildCLI(beacon).start();
+        return beacon;
+    }
+
     public AKP2P build() throws IOException {
         return build(0);
     }
 
     public AKP2P build(int port) throws IOException {
-        AKP2P akp2P = AKP2P.createAndInitializeNoBeacon(port);
+        AKP2P akp2P = AKP2P.createAndInitialize(port, List.of(), downloadDirectory, takeRateLimits());
         cliFactory.buildCLI(akp2P).start();
         return akp2P;
     }
 
     public AKP2P build(String beaconAddress, int port) throws IOException {
-        StringTokenizer tokenizer = new StringTokenizer(beaconAddress);
-        InetSocketAddress beaconSocketAddress =
-                new InetSocketAddress(tokenizer.nextToken(), Integer.parseInt(tokenizer.nextToken()));
-        AKP2P akp2P = AKP2P.createAndInitialize(port, beaconSocketAddress);
+        AKP2P akp2P = AKP2P.createAndInitialize(port, parseAddresses(beaconAddress), downloadDirectory,
+                takeRateLimits());
         cliFactory.buildCLI(akp2P).start();
         return akp2P;
     }
@@ -46,4 +76,20 @@ public class NodeFactory {
         build(beaconAddress, 0);
     }
 
+    // each node is given RateLimits of its own, so that nodes built one after another do not share their limits
+    private RateLimits takeRateLimits() {
+        RateLimits limits = rateLimits == null ? new RateLimits() : rateLimits;
+        rateLimits = null;
+        return limits;
+    }
+
+    // addresses given as a host name followed by a port, separated by spaces
+    private static List<InetSocketAddress> parseAddresses(String addresses) {
+        StringTokenizer tokenizer = new StringTokenizer(addresses);
+        List<InetSocketAddress> socketAddresses = new ArrayList<>();
+        while (tokenizer.hasMoreTokens())
+            socketAddresses.add(new InetSocketAddress(tokenizer.nextToken(), Integer.parseInt(tokenizer.nextToken())));
+        return socketAddresses;
+    }
+
 }
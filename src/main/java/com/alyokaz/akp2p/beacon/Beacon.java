@@ -1,5 +1,6 @@
 package com.alyokaz.akp2p.beacon;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 import com.alyokaz.akp2p.pingserver.PingServer;
 import com.alyokaz.akp2p.server.BeaconServer;
 import com.alyokaz.akp2p.server.Server;
@@ -7,22 +8,29 @@ import com.alyokaz.akp2p.server.Server;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
 
 /**
  * This class represents a {@code Beacon} node that other nodes in the network can register and receive the
  * addresses of other nodes who have also registered.
+ * <p>
+ * Several {@code Beacon}s may be run as a cluster, each given the addresses of the others, in which case their
+ * registries are kept in step by a {@code BeaconReplicator}, and a node may join through any of them.
  */
 public class Beacon {
 
     final private Server beaconServer;
     final private PingServer pingServer;
+    final private BeaconRegistry registry;
+    final private BeaconReplicator replicator;
 
-    public Beacon(Server beaconServer, PingServer pingServer) {
+    public Beacon(Server beaconServer, PingServer pingServer, BeaconRegistry registry,
+                  BeaconReplicator replicator) {
         this.beaconServer = beaconServer;
         this.pingServer = pingServer;
+        this.registry = registry;
+        this.replicator = replicator;
     }
 
     /**
@@ -40,23 +48,40 @@ public class Beacon {
      * @return a fully initialised {@code Beacon} node listening of the given port.
      */
     public static Beacon createAndInitialise(int port) {
-        ServerSocket serverSocket = null;
+        return createAndInitialise(port, List.of());
+    }
+
+    /**
+     * Static factory method for creation and initialisation of a {@code Beacon} node listening on the given port,
+     * that replicates its registry with the other {@code Beacon}s of a cluster.
+     *
+     * @param port     the port to listen on, or 0 for any free port
+     * @param replicas the addresses of the other {@code Beacon}s in the cluster
+     * @return a fully initialised {@code Beacon} node listening of the given port.
+     */
+    public static Beacon createAndInitialise(int port, List<InetSocketAddress> replicas) {
+        ServerSocketChannel serverChannel = null;
         DatagramSocket datagramSocket = null;
         try {
-            serverSocket = new ServerSocket(port);
-            datagramSocket = new DatagramSocket(serverSocket.getLocalPort());
+            serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+            datagramSocket = new DatagramSocket(serverChannel.socket().getLocalPort());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        List<InetSocketAddress> peers = new ArrayList<>();
+        BeaconRegistry registry = new BeaconRegistry();
+        registry.start();
 
-        Server beaconServer = new BeaconServer(serverSocket, peers);
+        ExecutorStrategy executorStrategy = ExecutorStrategy.getDefault();
+        Server beaconServer = new BeaconServer(serverChannel, registry, executorStrategy);
         beaconServer.start();
 
-        PingServer pingServer = new PingServer(datagramSocket);
+        PingServer pingServer = new PingServer(datagramSocket, executorStrategy);
         pingServer.start();
-        return new Beacon(beaconServer, pingServer);
+
+        BeaconReplicator replicator = new BeaconReplicator(registry, replicas);
+        replicator.start(beaconServer.getServerAddress());
+        return new Beacon(beaconServer, pingServer, registry, replicator);
     }
 
     /**
@@ -67,6 +92,10 @@ public class Beacon {
             this.beaconServer.shutdown();
         if (this.pingServer != null)
             this.pingServer.shutdown();
+        if (this.registry != null)
+            this.registry.shutdown();
+        if (this.replicator != null)
+            this.replicator.shutdown();
     }
 
     /**
@@ -78,4 +107,23 @@ public class Beacon {
         return beaconServer.getServerAddress();
     }
 
+    /**
+     * Returns the registry of the peers registered with this {@code Beacon}.
+     *
+     * @return the registry of the peers registered with this {@code Beacon}
+     */
+    public BeaconRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Returns the {@code BeaconReplicator} keeping the registry of this {@code Beacon} in step with the rest of its
+     * cluster.
+     *
+     * @return the {@code BeaconReplicator} of this {@code Beacon}
+     */
+    public BeaconReplicator getReplicator() {
+        return replicator;
+    }
+
 }
@@ -0,0 +1,47 @@
+package com.alyokaz.akp2p.beacon;
+
+import com.alyokaz.akp2p.server.Connection;
+import com.alyokaz.akp2p.server.MessageHandler;
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.PeersMessage;
+import com.alyokaz.akp2p.server.message.RegistryMessage;
+import com.alyokaz.akp2p.server.message.RequestPeersMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * This class handles a request for a peer to register with a {@code Beacon} node.
+ */
+public class BeaconHandler implements MessageHandler {
+
+    private static final Logger logger = LogManager.getLogger();
+    private final BeaconRegistry registry;
+
+
+    public BeaconHandler(BeaconRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the peer from the connection with this {@code Beacon}, and replies with a random sample of the other
+     * registered peers of the size it asked for.
+     */
+    @Override
+    public void handle(Message message, Connection connection) {
+        if (message instanceof RequestPeersMessage request) {
+            connection.send(new PeersMessage(registry.sample(request.getLimit(), request.getServerAddress()), null));
+            if (registry.register(message.getServerAddress()))
+                logger.info("Peer at {} registered", message.getServerAddress());
+        } else if (message instanceof RegistryMessage sync) {
+            // the reply is taken first, so as not to echo back the registrations just received
+            Map<InetSocketAddress, Long> changed = registry.getRegistrations(sync.getChangedWithinMillis());
+            int added = registry.merge(sync.getRegistrations());
+            connection.send(new RegistryMessage(changed, 0, null));
+            logger.debug("Synchronised with Beacon at {}, {} peers added", sync.getServerAddress(), added);
+        }
+        connection.close();
+    }
+}
@@ -0,0 +1,260 @@
+package com.alyokaz.akp2p.beacon;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds the addresses of the peers registered with a {@code Beacon}, along with when each last
+ * registered.
+ * <p>
+ * A peer registering again only refreshes its entry, so each peer is held once however often it registers. Once
+ * started, a background thread evicts every peer that has not registered within the time to live, so the registry
+ * only grows with the number of peers active in the network rather than with every peer that has ever joined.
+ * <p>
+ * The peers are also held in a list, so that a uniformly random sample of them can be taken in time proportional to
+ * the size of the sample rather than to the number of peers registered. The registry may be used from any number of
+ * threads at once.
+ * <p>
+ * Registrations can be merged in from the registries of other {@code Beacon}s. Each entry records when it last
+ * changed here, as well as when its peer last registered anywhere, so that only the entries changed since two
+ * {@code Beacon}s last synchronised need be exchanged.
+ * <p>
+ * A registration is exchanged as its age in whole milliseconds, and arrives a little younger than it was sent by the
+ * time it took in transit, so one that comes back from another {@code Beacon} seems slightly more recent than the
+ * entry it was taken from. A merged registration therefore only replaces an entry if it is more recent by over
+ * {@link #MERGE_TOLERANCE_MILLIS}, so that registrations are not passed back and forth for ever.
+ */
+public class BeaconRegistry {
+
+    /**
+     * The time to live, in milliseconds, of a registration by default.
+     */
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * How many times the expired peers are evicted during each time to live.
+     */
+    public static final int EVICTIONS_PER_TTL = 10;
+
+    /**
+     * How much more recent, in milliseconds, a merged registration must be than the one held for it to be taken.
+     */
+    public static final long MERGE_TOLERANCE_MILLIS = 1000;
+
+    private static final long MERGE_TOLERANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(MERGE_TOLERANCE_MILLIS);
+    private static final Logger logger = LogManager.getLogger();
+
+    // guarded by this, a peer's entry holds its index in addresses
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+    private final List<InetSocketAddress> addresses = new ArrayList<>();
+    private final long ttlNanos;
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "beacon-registry-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a {@code BeaconRegistry} with a time to live of {@link #DEFAULT_TTL_MILLIS}.
+     */
+    public BeaconRegistry() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructs a {@code BeaconRegistry} with the given time to live.
+     *
+     * @param ttlMillis how long, in milliseconds, a peer stays registered without registering again
+     * @throws IllegalArgumentException if the time to live is not positive
+     */
+    public BeaconRegistry(long ttlMillis) {
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("Bad time to live " + ttlMillis);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Starts evicting expired peers in the background.
+     */
+    public void start() {
+        long period = Math.max(1, ttlNanos / EVICTIONS_PER_TTL);
+        evictor.scheduleAtFixedRate(this::evictExpired, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops evicting expired peers.
+     */
+    public void shutdown() {
+        evictor.shutdownNow();
+    }
+
+    /**
+     * Registers the peer at the given address, or refreshes its registration if it is already registered.
+     *
+     * @param address the address of the peer
+     * @return true if the peer was not already registered
+     */
+    public synchronized boolean register(InetSocketAddress address) {
+        if (address == null)
+            return false;
+        return update(address, System.nanoTime(), 0);
+    }
+
+    /**
+     * Merges in the given registrations from another {@code Beacon}. A registration that is more recent than the
+     * one held here by over {@link #MERGE_TOLERANCE_MILLIS} replaces it, and one that has already expired is
+     * ignored.
+     *
+     * @param registrations the address of each peer mapped to how long ago, in milliseconds, it last registered
+     * @return the number of peers that were not already registered
+     */
+    public synchronized int merge(Map<InetSocketAddress, Long> registrations) {
+        long now = System.nanoTime();
+        int added = 0;
+        for (Map.Entry<InetSocketAddress, Long> registration : registrations.entrySet()) {
+            long age = TimeUnit.MILLISECONDS.toNanos(Math.max(0, registration.getValue()));
+            if (age <= ttlNanos && update(registration.getKey(), now - age, MERGE_TOLERANCE_NANOS))
+                added++;
+        }
+        return added;
+    }
+
+    /**
+     * Returns the registrations that have changed here within the given window of time.
+     *
+     * @param changedWithinMillis the window in milliseconds, or 0 for every registration
+     * @return the address of each peer mapped to how long ago, in milliseconds, it last registered
+     */
+    public synchronized Map<InetSocketAddress, Long> getRegistrations(long changedWithinMillis) {
+        long now = System.nanoTime();
+        long window = TimeUnit.MILLISECONDS.toNanos(changedWithinMillis);
+        Map<InetSocketAddress, Long> registrations = new HashMap<>();
+        entries.forEach((address, entry) -> {
+            if (changedWithinMillis <= 0 || now - entry.lastChanged <= window)
+                registrations.put(address, TimeUnit.NANOSECONDS.toMillis(now - entry.lastSeen));
+        });
+        return registrations;
+    }
+
+    /**
+     * Returns the addresses of the registered peers, other than the given one.
+     *
+     * @param exclude the address to leave out, usually that of the peer asking, or {@code null}
+     * @return a copy of the addresses of the registered peers
+     */
+    public synchronized Set<InetSocketAddress> getPeers(InetSocketAddress exclude) {
+        Set<InetSocketAddress> peers = new HashSet<>(addresses);
+        peers.remove(exclude);
+        return peers;
+    }
+
+    /**
+     * Returns a uniformly random sample of the registered peers, other than the given one.
+     *
+     * @param size    the most peers to return, or 0 for every peer
+     * @param exclude the address to leave out, usually that of the peer asking, or {@code null}
+     * @return the addresses of up to the given number of registered peers
+     */
+    public synchronized Set<InetSocketAddress> sample(int size, InetSocketAddress exclude) {
+        int available = addresses.size() - (entries.containsKey(exclude) ? 1 : 0);
+        if (size <= 0 || size >= available)
+            return getPeers(exclude);
+        // Floyd's algorithm, over the indices of every peer but the excluded one, which is moved out of the way to
+        // the end of the list
+        if (entries.containsKey(exclude))
+            swap(entries.get(exclude).index, addresses.size() - 1);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Set<InetSocketAddress> sample = new HashSet<>();
+        for (int i = available - size; i < available; i++) {
+            InetSocketAddress address = addresses.get(random.nextInt(i + 1));
+            if (!sample.add(address))
+                sample.add(addresses.get(i));
+        }
+        return sample;
+    }
+
+    /**
+     * Returns the number of registered peers.
+     *
+     * @return the number of registered peers
+     */
+    public synchronized int size() {
+        return addresses.size();
+    }
+
+    /**
+     * Removes every peer that has not registered within the time to live.
+     *
+     * @return the number of peers removed
+     */
+    public synchronized int evictExpired() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        Iterator<Map.Entry<InetSocketAddress, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<InetSocketAddress, Entry> entry = iterator.next();
+            if (now - entry.getValue().lastSeen <= ttlNanos)
+                continue;
+            // the last peer in the list takes the place of the evicted one
+            swap(entry.getValue().index, addresses.size() - 1);
+            addresses.remove(addresses.size() - 1);
+            iterator.remove();
+            evicted++;
+        }
+        if (evicted > 0)
+            logger.info("Evicted {} expired peers, {} remain registered", evicted, addresses.size());
+        return evicted;
+    }
+
+    // records that the peer registered at the given time, unless that is within the tolerance of when it last did,
+    // returning true if it was not already registered
+    private boolean update(InetSocketAddress address, long seenAt, long toleranceNanos) {
+        Entry entry = entries.get(address);
+        if (entry != null) {
+            if (seenAt - entry.lastSeen > toleranceNanos) {
+                entry.lastSeen = seenAt;
+                entry.lastChanged = System.nanoTime();
+            }
+            return false;
+        }
+        entries.put(address, new Entry(addresses.size(), seenAt));
+        addresses.add(address);
+        return true;
+    }
+
+    private void swap(int i, int j) {
+        InetSocketAddress first = addresses.get(i);
+        InetSocketAddress second = addresses.get(j);
+        addresses.set(i, second);
+        addresses.set(j, first);
+        entries.get(first).index = j;
+        entries.get(second).index = i;
+    }
+
+    private static class Entry {
+        private int index;
+        // when the peer last registered, with this Beacon or another
+        private long lastSeen;
+        // when this entry last changed here
+        private long lastChanged;
+
+        private Entry(int index, long lastSeen) {
+            this.index = index;
+            this.lastSeen = lastSeen;
+            this.lastChanged = System.nanoTime();
+        }
+    }
+}
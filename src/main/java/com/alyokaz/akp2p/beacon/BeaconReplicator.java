@@ -0,0 +1,131 @@
+package com.alyokaz.akp2p.beacon;
+
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageInputStream;
+import com.alyokaz.akp2p.server.message.MessageOutputStream;
+import com.alyokaz.akp2p.server.message.RegistryMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the {@code BeaconRegistry} of a {@code Beacon} in step with those of the other {@code Beacon}s
+ * in its cluster by anti-entropy.
+ * <p>
+ * Every {@link #SYNC_PERIOD_MILLIS} the {@code Beacon} synchronises with one other {@code Beacon}, chosen at random.
+ * It sends the registrations that have changed since it last synchronised with that {@code Beacon}, and receives
+ * those the other has changed over the same window, so both end up with the newer of each registration. The first
+ * exchange with a {@code Beacon} carries every registration. As each round picks its partner at random, a
+ * registration reaches every {@code Beacon} in the cluster within a few rounds, even if some are unreachable.
+ */
+public class BeaconReplicator {
+
+    /**
+     * How often, in milliseconds, a {@code Beacon} synchronises with another.
+     */
+    public static final long SYNC_PERIOD_MILLIS = 5000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final Logger logger = LogManager.getLogger();
+
+    private final BeaconRegistry registry;
+    private final List<InetSocketAddress> replicas;
+    // when the last exchange with each other Beacon succeeded
+    private final Map<InetSocketAddress, Long> lastSynced = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "beacon-replicator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile InetSocketAddress serverAddress;
+
+    /**
+     * Constructs a {@code BeaconReplicator} for the given registry.
+     *
+     * @param registry the registry of this {@code Beacon}
+     * @param replicas the addresses of the other {@code Beacon}s in the cluster
+     */
+    public BeaconReplicator(BeaconRegistry registry, List<InetSocketAddress> replicas) {
+        this.registry = registry;
+        this.replicas = List.copyOf(replicas);
+    }
+
+    /**
+     * Starts synchronising with the other {@code Beacon}s in the background, if there are any.
+     *
+     * @param serverAddress the address of this {@code Beacon}
+     */
+    public void start(InetSocketAddress serverAddress) {
+        this.serverAddress = serverAddress;
+        if (replicas.isEmpty())
+            return;
+        scheduler.scheduleWithFixedDelay(this::syncWithRandomReplica, 0, SYNC_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops synchronising with the other {@code Beacon}s.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Returns the addresses of the other {@code Beacon}s in the cluster.
+     *
+     * @return the addresses of the other {@code Beacon}s
+     */
+    public List<InetSocketAddress> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Exchanges the registrations changed since the last exchange with the {@code Beacon} at the given address.
+     *
+     * @param replica the address of the other {@code Beacon}
+     * @throws IOException if the exchange failed
+     */
+    public void sync(InetSocketAddress replica) throws IOException {
+        long startedAt = System.nanoTime();
+        Long last = lastSynced.get(replica);
+        // a period of slack covers registrations that changed while the last exchange was under way
+        long window = last == null ? 0
+                : TimeUnit.NANOSECONDS.toMillis(startedAt - last) + SYNC_PERIOD_MILLIS;
+
+        try (Socket socket = new Socket()) {
+            socket.connect(replica, CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            MessageInputStream in = new MessageInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeMessage(new RegistryMessage(registry.getRegistrations(window), window, serverAddress));
+            Message message = in.readMessage();
+            if (!(message instanceof RegistryMessage reply))
+                throw new ProtocolException("Unexpected " + message.getType() + " reply from Beacon");
+            int added = registry.merge(reply.getRegistrations());
+            lastSynced.put(replica, startedAt);
+            logger.debug("Synchronised with Beacon at {}, {} peers added", replica, added);
+        }
+    }
+
+    private void syncWithRandomReplica() {
+        InetSocketAddress replica = replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+        try {
+            sync(replica);
+        } catch (IOException e) {
+            logger.error("Synchronising with Beacon at {} failed with {}", replica, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.alyokaz.akp2p.executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This enum selects the kind of threads the services of a node run their blocking tasks on.
+ * <p>
+ * Every service of a node creates its executors from the same {@code ExecutorStrategy}, so a whole node can be
+ * switched between platform threads and virtual threads at once. The strategy used by default is read from the
+ * {@value #PROPERTY} system property, and can be changed with {@link #setDefault}.
+ * <p>
+ * Code that may block on network or disk I/O while holding a lock uses a {@code ReentrantLock} rather than
+ * {@code synchronized}, as on Java 21 a virtual thread that blocks inside {@code synchronized} pins its carrier
+ * thread. The build targets Java 17, which has no virtual threads, so there {@link #VIRTUAL} falls back to platform
+ * threads and the choice of lock makes no difference.
+ */
+public enum ExecutorStrategy {
+
+    /**
+     * Runs each task on a platform thread from a cached pool.
+     */
+    PLATFORM {
+        @Override
+        public ExecutorService newExecutor() {
+            return Executors.newCachedThreadPool();
+        }
+    },
+
+    /**
+     * Runs each task on a new virtual thread, so that a task blocked on I/O does not hold on to an operating system
+     * thread.
+     * <p>
+     * Virtual threads are only available from Java 21. On an earlier runtime a cached pool of platform threads is
+     * used instead.
+     */
+    VIRTUAL {
+        @Override
+        public ExecutorService newExecutor() {
+            if (VIRTUAL_EXECUTOR == null)
+                return Executors.newCachedThreadPool();
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Creating a virtual thread executor failed", e);
+            }
+        }
+    };
+
+    /**
+     * The system property the default {@code ExecutorStrategy} is read from, either {@code platform} or
+     * {@code virtual}.
+     */
+    public static final String PROPERTY = "akp2p.threads";
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // looked up rather than called directly so that the node still runs on runtimes without virtual threads
+    private static final MethodHandle VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    private static volatile ExecutorStrategy defaultStrategy = fromName(System.getProperty(PROPERTY, "platform"));
+
+    /**
+     * Creates a new {@code ExecutorService} that runs tasks on the threads of this strategy.
+     *
+     * @return a new {@code ExecutorService}
+     */
+    public abstract ExecutorService newExecutor();
+
+    /**
+     * Returns true if tasks run on virtual threads with this strategy on the current runtime.
+     *
+     * @return true if tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return this == VIRTUAL && VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Returns the {@code ExecutorStrategy} used by nodes that are not given one.
+     *
+     * @return the default {@code ExecutorStrategy}
+     */
+    public static ExecutorStrategy getDefault() {
+        return defaultStrategy;
+    }
+
+    /**
+     * Sets the {@code ExecutorStrategy} used by nodes created from now on that are not given one.
+     *
+     * @param strategy the new default {@code ExecutorStrategy}
+     */
+    public static void setDefault(ExecutorStrategy strategy) {
+        if (strategy == VIRTUAL && VIRTUAL_EXECUTOR == null)
+            logger.warn("Virtual threads are not supported by Java {}, platform threads will be used",
+                    Runtime.version().feature());
+        defaultStrategy = strategy;
+    }
+
+    /**
+     * Returns the {@code ExecutorStrategy} with the given name, ignoring case.
+     *
+     * @param name the name of the strategy
+     * @return the {@code ExecutorStrategy} with the given name
+     * @throws IllegalArgumentException if there is no strategy with the given name
+     */
+    public static ExecutorStrategy fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    private static MethodHandle findVirtualExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.alyokaz.akp2p.fileservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class records the progress of a download on disk, so that the download can carry on from where it left off
+ * after the node restarts.
+ * <p>
+ * The journal is kept next to the file being downloaded and holds the {@code FileInfo} of the file followed by a
+ * bitmap with a bit set for each {@code Piece} held:
+ * <pre>
+ *     int32   magic number
+ *     string  filename, as written by {@code DataOutputStream.writeUTF}
+ *     int32   number of pieces
+ *     int64   size of the file in bytes
+ *     int32   size of each piece in bytes
+ *     int32   length of the piece hashes in bytes, 0 if the pieces have not been hashed
+ *     ...     the piece hashes
+ *     ...     the bitmap, one bit per piece
+ * </pre>
+ * The bitmap is rewritten in place once every {@link #FLUSH_INTERVAL} {@code Piece}s rather than for each one. A
+ * {@code Piece} held but not yet recorded is downloaded again after a restart.
+ * <p>
+ * A journal is locked for as long as it is open, so that two nodes downloading to the same directory never carry on
+ * the same download at once.
+ */
+public class DownloadJournal implements Closeable {
+
+    /**
+     * The suffix added to the name of the file being downloaded to give the name of its journal.
+     */
+    public static final String SUFFIX = ".journal";
+
+    /**
+     * The number of {@code Piece}s recorded as held between each write of the bitmap.
+     */
+    public static final int FLUSH_INTERVAL = 32;
+
+    private static final int MAGIC = 0x414B4A32;
+    private static final Logger logger = LogManager.getLogger();
+
+    private final File journalFile;
+    private final FileChannel channel;
+    private final FileInfo fileInfo;
+    private final long bitmapOffset;
+    private final BitSet heldPieces;
+    // guards heldPieces, and is held while the bitmap is written
+    private final ReentrantLock lock = new ReentrantLock();
+    private int unflushed;
+
+    private DownloadJournal(File journalFile, FileChannel channel, FileInfo fileInfo, long bitmapOffset,
+                            BitSet heldPieces) {
+        this.journalFile = journalFile;
+        this.channel = channel;
+        this.fileInfo = fileInfo;
+        this.bitmapOffset = bitmapOffset;
+        this.heldPieces = heldPieces;
+    }
+
+    /**
+     * Returns the journal file for a download to the given {@code File}.
+     *
+     * @param file the {@code File} being downloaded to
+     * @return the journal file for the download
+     */
+    public static File journalFor(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Creates a new journal, recording no {@code Piece}s as held, for a download to the given {@code File},
+     * replacing any journal already there.
+     *
+     * @param file     the {@code File} being downloaded to
+     * @param fileInfo the {@code FileInfo} of the file being downloaded
+     * @return the new {@code DownloadJournal}
+     * @throws IOException if the journal could not be written, or is locked by another node
+     */
+    public static DownloadJournal create(File file, FileInfo fileInfo) throws IOException {
+        File journalFile = journalFor(file);
+        byte[] header = encodeHeader(fileInfo);
+        FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // truncated only once locked, so that the journal of a download another node is carrying on is kept
+            lock(channel, journalFile);
+            channel.truncate(0);
+            ByteBuffer buffer = ByteBuffer.allocate(header.length + bitmapLength(fileInfo));
+            buffer.put(header).position(0);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            return new DownloadJournal(journalFile, channel, fileInfo, header.length,
+                    new BitSet(fileInfo.getTotalPieces()));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing journal.
+     *
+     * @param journalFile the journal file
+     * @return the {@code DownloadJournal} read from the file
+     * @throws IOException if the journal could not be read, is not a valid journal or is locked by another node
+     */
+    public static DownloadJournal open(File journalFile) throws IOException {
+        FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            lock(channel, journalFile);
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != MAGIC)
+                throw new IOException(journalFile.getName() + " is not a download journal");
+            String filename = in.readUTF();
+            int totalPieces = in.readInt();
+            long size = in.readLong();
+            int pieceSize = in.readInt();
+            int hashesLength = in.readInt();
+            if (hashesLength != 0 && hashesLength != (long) totalPieces * PieceHasher.HASH_LENGTH)
+                throw new IOException(journalFile.getName() + " has " + hashesLength + " bytes of hashes for "
+                        + totalPieces + " pieces");
+            byte[] hashes = null;
+            if (hashesLength > 0) {
+                hashes = new byte[hashesLength];
+                in.readFully(hashes);
+            }
+            FileInfo fileInfo = new FileInfo(filename, totalPieces, size, pieceSize, hashes);
+            long bitmapOffset = channel.position();
+            byte[] bitmap = new byte[bitmapLength(fileInfo)];
+            in.readFully(bitmap);
+            BitSet heldPieces = BitSet.valueOf(bitmap);
+            heldPieces.clear(totalPieces, bitmap.length * Byte.SIZE);
+            return new DownloadJournal(journalFile, channel, fileInfo, bitmapOffset, heldPieces);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException io ? io : new IOException("Reading " + journalFile.getName()
+                    + " failed with " + e.getMessage(), e);
+        }
+    }
+
+    // the lock is released when the channel is closed
+    private static void lock(FileChannel channel, File journalFile) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another node in this JVM
+            fileLock = null;
+        }
+        if (fileLock == null)
+            throw new IOException(journalFile.getName() + " is locked by another node");
+    }
+
+    private static byte[] encodeHeader(FileInfo fileInfo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeUTF(fileInfo.getFilename());
+        out.writeInt(fileInfo.getTotalPieces());
+        out.writeLong(fileInfo.getSize());
+        out.writeInt(fileInfo.getPieceSize());
+        byte[] hashes = fileInfo.hasPieceHashes() ? fileInfo.getPieceHashes() : new byte[0];
+        out.writeInt(hashes.length);
+        out.write(hashes);
+        return bytes.toByteArray();
+    }
+
+    private static int bitmapLength(FileInfo fileInfo) {
+        return (fileInfo.getTotalPieces() + Byte.SIZE - 1) / Byte.SIZE;
+    }
+
+    /**
+     * Returns the {@code FileInfo} of the file being downloaded.
+     *
+     * @return the {@code FileInfo} of the file being downloaded
+     */
+    public FileInfo getFileInfo() {
+        return fileInfo;
+    }
+
+    /**
+     * Returns a {@code BitSet} with a bit set for each {@code Piece} recorded as held.
+     *
+     * @return a snapshot of the {@code Piece}s recorded as held
+     */
+    public BitSet getHeldPieces() {
+        lock.lock();
+        try {
+            return (BitSet) heldPieces.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the {@code Piece} with the given {@code ID} as held, writing the bitmap to disk if enough
+     * {@code Piece}s have been recorded since it was last written.
+     * <p>
+     * A failure to write the journal is logged rather than thrown, as it does not affect the download itself.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     */
+    public void markHeld(int id) {
+        lock.lock();
+        try {
+            if (heldPieces.get(id) || !channel.isOpen())
+                return;
+            heldPieces.set(id);
+            if (++unflushed >= FLUSH_INTERVAL)
+                flush();
+        } catch (IOException e) {
+            logger.error("Writing journal {} failed with {}", journalFile.getName(), e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the {@code Piece}s recorded as held and writes the bitmap to disk.
+     *
+     * @param pieces a {@code BitSet} with a bit set for each {@code Piece} held
+     * @throws IOException if the bitmap could not be written
+     */
+    public void setHeldPieces(BitSet pieces) throws IOException {
+        lock.lock();
+        try {
+            heldPieces.clear();
+            heldPieces.or(pieces);
+            flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the bitmap to disk.
+     *
+     * @throws IOException if the bitmap could not be written
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            // toByteArray drops trailing zero bytes, which the fixed length bitmap has to keep
+            ByteBuffer bitmap = ByteBuffer.wrap(Arrays.copyOf(heldPieces.toByteArray(), bitmapLength(fileInfo)));
+            long position = bitmapOffset;
+            while (bitmap.hasRemaining())
+                position += channel.write(bitmap, position);
+            unflushed = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes and removes the journal, once the download is complete.
+     *
+     * @throws IOException if the journal could not be removed
+     */
+    public void delete() throws IOException {
+        lock.lock();
+        try {
+            channel.close();
+            Files.deleteIfExists(journalFile.toPath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the bitmap to disk and closes the journal.
+     *
+     * @throws IOException if the bitmap could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try (channel) {
+            if (channel.isOpen())
+                flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,21 +1,57 @@
 package com.alyokaz.akp2p.fileservice;
 
-import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
  * This class represents the necessary metadata to download the related file.
+ * <p>
+ * The metadata may include a hash of each {@code Piece} of the file, computed by {@link PieceHasher}, against which
+ * downloaded {@code Piece}s are checked.
  */
-public class FileInfo implements Serializable {
+public class FileInfo {
 
     private final String filename;
     private final int totalPieces;
-    private final int size;
+    private final long size;
+    private final int pieceSize;
+    // null when the pieces of the file have not been hashed
+    private final byte[] pieceHashes;
+    // computed once, as the hashes of a large file run to megabytes
+    private final int hash;
 
-    public FileInfo(String filename, int totalPieces, int size) {
+    public FileInfo(String filename, int totalPieces, long size) {
+        this(filename, totalPieces, size, null);
+    }
+
+    public FileInfo(String filename, int totalPieces, long size, byte[] pieceHashes) {
+        this(filename, totalPieces, size, PieceSize.DEFAULT, pieceHashes);
+    }
+
+    /**
+     * Constructs a {@code FileInfo} carrying the size and the hash of each {@code Piece} of the file.
+     *
+     * @param filename    the filename of the file
+     * @param totalPieces the number of {@code Piece}s the file is divided into
+     * @param size        the size of the file in {@code bytes}
+     * @param pieceSize   the size in {@code bytes} of each {@code Piece}, other than the last
+     * @param pieceHashes the hashes of the {@code Piece}s, {@link PieceHasher#HASH_LENGTH} {@code bytes} each, in
+     *                    order of {@code ID}, or {@code null} if the {@code Piece}s have not been hashed
+     * @throws IllegalArgumentException if the size of the {@code Piece}s is not positive or there is not one hash
+     *                                  for each {@code Piece}
+     */
+    public FileInfo(String filename, int totalPieces, long size, int pieceSize, byte[] pieceHashes) {
+        if (pieceSize <= 0)
+            throw new IllegalArgumentException("Bad piece size " + pieceSize);
+        if (pieceHashes != null && pieceHashes.length != (long) totalPieces * PieceHasher.HASH_LENGTH)
+            throw new IllegalArgumentException(pieceHashes.length + " bytes of hashes given for " + totalPieces
+                    + " pieces");
         this.filename = filename;
         this.totalPieces = totalPieces;
         this.size = size;
+        this.pieceSize = pieceSize;
+        this.pieceHashes = pieceHashes;
+        this.hash = 31 * Objects.hash(filename, totalPieces, size, pieceSize) + Arrays.hashCode(pieceHashes);
     }
 
     /**
@@ -41,20 +77,62 @@ public class FileInfo implements Serializable {
      *
      * @return the size of the file this class represents in {@code bytes}
      */
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
+    /**
+     * Returns the size in {@code bytes} of each {@code Piece} of the file, other than the last which may be shorter.
+     *
+     * @return the size in {@code bytes} of each {@code Piece} of the file
+     */
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    /**
+     * Returns true if this {@code FileInfo} carries the hash of each {@code Piece} of the file.
+     *
+     * @return true if this {@code FileInfo} carries the hash of each {@code Piece} of the file
+     */
+    public boolean hasPieceHashes() {
+        return pieceHashes != null;
+    }
+
+    /**
+     * Returns the hashes of all the {@code Piece}s of the file, in order of {@code ID}.
+     *
+     * @return a copy of the hashes of the {@code Piece}s, or {@code null} if the {@code Piece}s have not been hashed
+     */
+    public byte[] getPieceHashes() {
+        return pieceHashes == null ? null : pieceHashes.clone();
+    }
+
+    /**
+     * Returns the hash of the {@code Piece} with the given {@code ID}.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     * @return a copy of the hash of the {@code Piece}
+     * @throws IllegalStateException if the {@code Piece}s have not been hashed
+     */
+    public byte[] getPieceHash(int id) {
+        if (pieceHashes == null)
+            throw new IllegalStateException("The pieces of " + filename + " have not been hashed");
+        return Arrays.copyOfRange(pieceHashes, id * PieceHasher.HASH_LENGTH, (id + 1) * PieceHasher.HASH_LENGTH);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         FileInfo fileInfo = (FileInfo) o;
-        return totalPieces == fileInfo.totalPieces && size == fileInfo.size && filename.equals(fileInfo.filename);
+        return hash == fileInfo.hash && totalPieces == fileInfo.totalPieces && size == fileInfo.size && pieceSize == fileInfo.pieceSize
+                && filename.equals(fileInfo.filename)
+                && Arrays.equals(pieceHashes, fileInfo.pieceHashes);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(filename, totalPieces, size);
+        return hash;
     }
 }
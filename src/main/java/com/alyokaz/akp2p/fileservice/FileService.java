@@ -1,93 +1,162 @@
 package com.alyokaz.akp2p.fileservice;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 import com.alyokaz.akp2p.fileservice.exceptions.BuildFileException;
+import com.alyokaz.akp2p.fileservice.exceptions.DownloadException;
 import com.alyokaz.akp2p.fileservice.exceptions.GetPeersFileInfoException;
 import com.alyokaz.akp2p.fileservice.exceptions.SeedFileException;
 import com.alyokaz.akp2p.fileservice.tasks.DownloadFileTargetTask;
 import com.alyokaz.akp2p.fileservice.tasks.GetConnectedPeersFilesTask;
 import com.alyokaz.akp2p.peerservice.PeerService;
+import com.alyokaz.akp2p.ratelimit.RateLimits;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.IntStream;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Service class for dealing with file related logic.
  */
 public class FileService {
 
-    public static final int BUFFER_SIZE = 1000000;
+    private static final Logger logger = LogManager.getLogger();
 
     private final Map<String, PieceContainer> files = Collections.synchronizedMap(new HashMap<>());
     private final Map<String, File> completedFiles = new HashMap<>();
     private final Set<FileInfo> availableFiles = Collections.synchronizedSet(new HashSet<>());
     private final PeerService peerService;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ExecutorService executor;
+    private final RateLimits rateLimits;
+    // null if files are downloaded to the working directory, in which case no downloads are restored
+    private final File downloadDirectory;
+    // held while a completed file is built, which blocks on disk I/O
+    private final ReentrantLock buildLock = new ReentrantLock();
 
     private final Map<FileInfo, Set<InetSocketAddress>> fileAddressRegistry = new ConcurrentHashMap<>();
 
+    private final Map<String, PieceAvailability> pieceAvailability = new ConcurrentHashMap<>();
+
+    // the throughput of the peers each file is being downloaded from, by filename
+    private final Map<String, PeerPerformance> peerPerformance = new ConcurrentHashMap<>();
+
+    // the journals of the downloads in progress, by filename
+    private final Map<String, DownloadJournal> journals = new ConcurrentHashMap<>();
+
+    // the filenames of the restored downloads that are waiting for a peer to resume them from
+    private final Set<String> restoredDownloads = ConcurrentHashMap.newKeySet();
+
     /**
      * Construct a new {@code FileService} with the given {@code PeerService}.
      *
      * @param peerService
      */
     public FileService(PeerService peerService) {
-        this.peerService = peerService;
+        this(peerService, ExecutorStrategy.getDefault());
     }
 
     /**
-     * Finds the number of {@code Piece}s a {@code File} can be divided into.
+     * Construct a new {@code FileService} with the given {@code PeerService} that runs its downloads on the threads
+     * of the given {@code ExecutorStrategy}.
      *
-     * @param file the {@code File} to be divided into {@code Piece}s
-     * @return the number of {@code Piece}s the {@codeFile} can be divided
-     * into.
+     * @param peerService      the {@code PeerService} of the node
+     * @param executorStrategy the {@code ExecutorStrategy} for the tasks of this service
      */
-    private static int getNoOfPieces(File file) {
-        int numberOfPieces = (int) file.length() / BUFFER_SIZE;
-        if ((file.length() % BUFFER_SIZE) != 0) {
-            numberOfPieces++;
-        }
-        return numberOfPieces;
+    public FileService(PeerService peerService, ExecutorStrategy executorStrategy) {
+        this(peerService, executorStrategy, new RateLimits());
+    }
+
+    /**
+     * Construct a new {@code FileService} with the given {@code PeerService} that runs its downloads on the threads
+     * of the given {@code ExecutorStrategy}, and limits the rate of its transfers with the given {@code RateLimits}.
+     *
+     * @param peerService      the {@code PeerService} of the node
+     * @param executorStrategy the {@code ExecutorStrategy} for the tasks of this service
+     * @param rateLimits       the upload and download limits of the node
+     */
+    public FileService(PeerService peerService, ExecutorStrategy executorStrategy, RateLimits rateLimits) {
+        this(peerService, executorStrategy, rateLimits, null);
+    }
+
+    /**
+     * Construct a new {@code FileService} with the given {@code PeerService} that runs its downloads on the threads
+     * of the given {@code ExecutorStrategy}, limits the rate of its transfers with the given {@code RateLimits} and
+     * downloads files to the given directory.
+     * <p>
+     * The directory should belong to this node alone, as the unfinished downloads in it are restored by
+     * {@link #restoreDownloads()}.
+     *
+     * @param peerService       the {@code PeerService} of the node
+     * @param executorStrategy  the {@code ExecutorStrategy} for the tasks of this service
+     * @param rateLimits        the upload and download limits of the node
+     * @param downloadDirectory the directory files are downloaded to, or {@code null} for the working directory
+     */
+    public FileService(PeerService peerService, ExecutorStrategy executorStrategy, RateLimits rateLimits,
+                       File downloadDirectory) {
+        this.peerService = peerService;
+        this.executor = executorStrategy.newExecutor();
+        this.rateLimits = rateLimits;
+        this.downloadDirectory = downloadDirectory;
     }
 
     /**
-     * Builds a {@code PieceContainer} for the given {@code File}.
+     * Builds a {@code PieceContainer} for the given {@code File} that serves its {@code Piece}s from a memory mapping
+     * of the file, rather than holding them on the heap.
+     * <p>
+     * The size of the {@code Piece}s is chosen by {@link PieceSize#forFileSize}, and the {@code Piece}s are hashed
+     * in parallel across all cores.
      *
      * @param file the {@code File} for which the {@code PieceContainer} will be built.
-     * @return a {@code PieceContainer} built from the given {@code File}
-     * @throws SeedFileException
-     */
-    public static PieceContainer buildPieceContainer(File file) throws SeedFileException {
-        SortedSet<Piece> pieces = new TreeSet<>();
-        int numberOfPieces = getNoOfPieces(file);
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            IntStream.range(0, numberOfPieces).forEach(i -> {
-                try {
-                    int bytesRead = in.read(buffer);
-                    pieces.add(new Piece(i,
-                            // make last Piece correct length
-                            bytesRead < BUFFER_SIZE ? Arrays.copyOf(buffer, bytesRead) : buffer.clone()));
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-            });
-            return new PieceContainer(getFileInfo(file), pieces);
-        } catch (IOException | UncheckedIOException e) {
+     * @return a {@code PieceContainer} backed by the given {@code File}
+     * @throws SeedFileException if the file could not be read, or would be divided into more than
+     *                           {@link PieceSize#MAX_PIECES} {@code Piece}s
+     */
+    public static PieceContainer mapPieceContainer(File file) throws SeedFileException {
+        PieceFile pieceFile = null;
+        try {
+            pieceFile = PieceFile.open(file, PieceSize.forFileSize(file.length()));
+            return new PieceContainer(getFileInfo(file, pieceFile), pieceFile);
+        } catch (IOException | IllegalArgumentException e) {
+            closeQuietly(pieceFile);
             throw new SeedFileException("Seeding file " + file.getName() + " failed", e);
         }
     }
 
     /**
-     * Returns a {@code FileInfo} for the given {@code File}.
+     * Returns a {@code FileInfo}, including the hash of each {@code Piece}, for the given {@code File}.
      *
      * @param file the {@code File} for which the {@code FileInfo} will be built.
      * @return a {@code FileInfo} for the given {@code File}.
+     * @throws UncheckedIOException     if the file could not be read
+     * @throws IllegalArgumentException if the file would be divided into more than {@link PieceSize#MAX_PIECES}
+     *                                  {@code Piece}s
      */
     public static FileInfo getFileInfo(File file) {
-        return new FileInfo(file.getName(), getNoOfPieces(file), (int) file.length());
+        try (PieceFile pieceFile = PieceFile.open(file, PieceSize.forFileSize(file.length()))) {
+            return getFileInfo(file, pieceFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Reading file " + file.getName() + " failed", e);
+        }
+    }
+
+    private static FileInfo getFileInfo(File file, PieceFile pieceFile) {
+        int numberOfPieces = PieceSize.countPieces(file.length(), pieceFile.getPieceSize());
+        return new FileInfo(file.getName(), numberOfPieces, file.length(), pieceFile.getPieceSize(),
+                PieceHasher.hashPieces(numberOfPieces, pieceFile::slice));
+    }
+
+    private static void closeQuietly(PieceFile pieceFile) {
+        if (pieceFile == null)
+            return;
+        try {
+            pieceFile.close();
+        } catch (IOException e) {
+            logger.error("Closing file {} failed with {}", pieceFile.getFile().getName(), e.getMessage());
+        }
     }
 
     /**
@@ -101,12 +170,27 @@ public class FileService {
 
     /**
      * Makes a {@code File} for available for download by other peers.
+     * <p>
+     * The file is memory-mapped rather than read onto the heap, so the memory used does not grow with the size of
+     * the file.
      *
      * @param file - the {@code File} to be prepared for download
-     * @throws SeedFileException
+     * @throws SeedFileException if the file could not be seeded, or its {@code Piece} hashes would take those of the
+     *                           files held past {@link PieceSize#MAX_LISTED_HASH_BYTES}
      */
     public void addFile(File file) throws SeedFileException {
-        this.files.put(file.getName(), buildPieceContainer(file));
+        PieceContainer container = mapPieceContainer(file);
+        synchronized (files) {
+            if (!fitsListing(container.getFileInfo())) {
+                closePieceFile(container);
+                throw new SeedFileException("Seeding file " + file.getName() + " failed, as the hashes of the files"
+                        + " held would take up more than " + PieceSize.MAX_LISTED_HASH_BYTES + " bytes");
+            }
+            closePieceFile(this.files.put(file.getName(), container));
+        }
+        // the file seeded replaces any download of a file with the same name
+        restoredDownloads.remove(file.getName());
+        closeJournal(journals.remove(file.getName()));
     }
 
     /**
@@ -147,30 +231,51 @@ public class FileService {
 
     /**
      * Build and outputs a {@code File} to local file system for the given completed {@code PieceContainer}.
+     * <p>
+     * The {@code Piece}s of a container backed by a {@code PieceFile} have already been written in place, so the
+     * file is only flushed and marked as complete.
      *
      * @param container the completed {@code PieceContainer} of the {@code File} to be built.
      */
-    public synchronized void buildFile(PieceContainer container) {
-        if (completedFiles.containsKey(container.getFilename()))
-            return;
-
-        File outputFile = new File(container.getFilename());
+    public void buildFile(PieceContainer container) {
+        buildLock.lock();
         try {
-            outputFile.createNewFile();
-            try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
-                container.getPieces().stream()
-                        .sorted(Comparator.comparing(Piece::getId))
-                        .forEach(p -> {
-                            try {
-                                out.write(p.getData());
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-                completedFiles.put(outputFile.getName(), outputFile);
+            if (completedFiles.containsKey(container.getFilename()))
+                return;
+
+            PieceFile pieceFile = container.getPieceFile();
+            if (pieceFile != null) {
+                try {
+                    pieceFile.force();
+                } catch (IOException e) {
+                    throw new BuildFileException("Building file" + container.getFilename() + " failed with "
+                            + e.getMessage(), e);
+                }
+                completedFiles.put(container.getFilename(), pieceFile.getFile());
+                deleteJournal(container.getFilename());
+                return;
             }
-        } catch (IOException e) {
-            throw new BuildFileException("Building file" + container.getFilename() + " failed with " + e.getMessage(), e);
+
+            File outputFile = downloadFile(container.getFilename());
+            try {
+                outputFile.createNewFile();
+                try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                    container.getPieces().stream()
+                            .sorted(Comparator.comparing(Piece::getId))
+                            .forEach(p -> {
+                                try {
+                                    out.write(p.getData());
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            });
+                    completedFiles.put(outputFile.getName(), outputFile);
+                }
+            } catch (IOException e) {
+                throw new BuildFileException("Building file" + container.getFilename() + " failed with " + e.getMessage(), e);
+            }
+        } finally {
+            buildLock.unlock();
         }
     }
 
@@ -215,17 +320,210 @@ public class FileService {
      * Downloads the file for the given {@code FileInfo}.
      * <p>
      * Each known live peer from the register of file to seeding peer addresses will be sent a request for download.
+     * The rarest {@code Piece}s among those peers are downloaded first. The output file is preallocated up front and
+     * each {@code Piece} is written to it as soon as it arrives.
+     * <p>
+     * The {@code Piece}s held are recorded in a {@code DownloadJournal}, so that the download can be resumed if the
+     * node restarts. A download already in progress for the same file carries on from the {@code Piece}s it holds.
      *
      * @param fileInfo the {@code FileInfo} for the file to be downloaded.
      */
     public void downloadFileTarget(FileInfo fileInfo) {
         if (fileAddressRegistry.containsKey(fileInfo)) {
-            files.put(fileInfo.getFilename(), new PieceContainer(fileInfo));
+            PieceContainer existing = files.get(fileInfo.getFilename());
+            if (existing == null || existing.getPieceFile() == null || !existing.getFileInfo().equals(fileInfo)) {
+                if (!fitsListing(fileInfo))
+                    throw new DownloadException("Downloading file " + fileInfo.getFilename() + " failed, as the"
+                            + " hashes of the files held would take up more than " + PieceSize.MAX_LISTED_HASH_BYTES
+                            + " bytes");
+                File file = downloadFile(fileInfo.getFilename());
+                // the journal of an earlier download to the same file is closed before it is replaced
+                closeJournal(journals.remove(fileInfo.getFilename()));
+                PieceFile pieceFile;
+                DownloadJournal journal = null;
+                try {
+                    // the journal is locked before the file is touched, in case another node is downloading to it
+                    journal = DownloadJournal.create(file, fileInfo);
+                    pieceFile = PieceFile.create(file, fileInfo.getSize(), fileInfo.getPieceSize());
+                } catch (IOException e) {
+                    closeJournal(journal);
+                    throw new DownloadException("Preallocating file " + fileInfo.getFilename() + " failed", e);
+                }
+                startDownload(new PieceContainer(fileInfo, pieceFile, new BitSet(fileInfo.getTotalPieces())),
+                        journal);
+            }
+            restoredDownloads.remove(fileInfo.getFilename());
             fileAddressRegistry.get(fileInfo).forEach(address ->
                     executor.execute(new DownloadFileTargetTask(address, this, peerService, fileInfo)));
         }
     }
 
+    private void startDownload(PieceContainer container, DownloadJournal journal) {
+        container.addPieceListener(journal::markHeld);
+        closePieceFile(files.put(container.getFilename(), container));
+        journals.put(container.getFilename(), journal);
+        pieceAvailability.put(container.getFilename(), new PieceAvailability(container.getTotalPieces()));
+        peerPerformance.put(container.getFilename(), new PeerPerformance());
+    }
+
+    // true if the hashes of the given file, in place of any file held with the same name, leave the listing of the
+    // files held within a single message
+    private boolean fitsListing(FileInfo fileInfo) {
+        long hashBytes = hashBytes(fileInfo);
+        synchronized (files) {
+            for (PieceContainer container : files.values())
+                if (!container.getFilename().equals(fileInfo.getFilename()))
+                    hashBytes += hashBytes(container.getFileInfo());
+        }
+        return hashBytes <= PieceSize.MAX_LISTED_HASH_BYTES;
+    }
+
+    private static long hashBytes(FileInfo fileInfo) {
+        return fileInfo.hasPieceHashes() ? (long) fileInfo.getTotalPieces() * PieceHasher.HASH_LENGTH : 0;
+    }
+
+    // the file a download with the given name is written to
+    private File downloadFile(String filename) {
+        return downloadDirectory == null ? new File(filename) : new File(downloadDirectory, filename);
+    }
+
+    /**
+     * Restores the downloads that were left unfinished in the download directory of this service when the node last
+     * stopped, from their {@code DownloadJournal}s. Nothing is restored if files are downloaded to the working
+     * directory, which other nodes may share.
+     * <p>
+     * The {@code Piece}s a journal records as held are checked against their hashes first, as the latest of them
+     * may not have reached the disk. A journal locked by another node is left alone. The restored downloads are
+     * carried on by {@link #resumeDownloads()}.
+     *
+     * @return the {@code FileInfo}s of the restored downloads
+     */
+    public Set<FileInfo> restoreDownloads() {
+        if (downloadDirectory == null)
+            return Set.of();
+        File[] journalFiles = downloadDirectory.listFiles((dir, name) -> name.endsWith(DownloadJournal.SUFFIX));
+        if (journalFiles == null)
+            return Set.of();
+        Set<FileInfo> restored = new HashSet<>();
+        for (File journalFile : journalFiles) {
+            try {
+                restoreDownload(journalFile).ifPresent(restored::add);
+            } catch (IOException e) {
+                logger.error("Restoring download from {} failed with {}", journalFile.getName(), e.getMessage());
+            }
+        }
+        return restored;
+    }
+
+    private Optional<FileInfo> restoreDownload(File journalFile) throws IOException {
+        DownloadJournal journal = DownloadJournal.open(journalFile);
+        FileInfo fileInfo = journal.getFileInfo();
+        if (files.containsKey(fileInfo.getFilename())) {
+            journal.close();
+            return Optional.empty();
+        }
+        if (!fitsListing(fileInfo)) {
+            journal.close();
+            throw new IOException("The hashes of the files held would take up more than "
+                    + PieceSize.MAX_LISTED_HASH_BYTES + " bytes");
+        }
+
+        PieceFile pieceFile;
+        try {
+            pieceFile = PieceFile.create(downloadFile(fileInfo.getFilename()), fileInfo.getSize(),
+                    fileInfo.getPieceSize());
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        BitSet heldPieces = journal.getHeldPieces();
+        if (fileInfo.hasPieceHashes())
+            heldPieces = PieceHasher.verifyPieces(fileInfo, heldPieces, pieceFile::slice);
+        journal.setHeldPieces(heldPieces);
+
+        PieceContainer container = new PieceContainer(fileInfo, pieceFile, heldPieces);
+        startDownload(container, journal);
+        logger.info("Restored download of {} with {} of {} pieces", fileInfo.getFilename(),
+                container.getNoOfHeldPieces(), container.getTotalPieces());
+        if (container.complete())
+            buildFile(container);
+        else
+            restoredDownloads.add(fileInfo.getFilename());
+        return Optional.of(fileInfo);
+    }
+
+    /**
+     * Carries on each restored download that can be downloaded from a known live peer.
+     */
+    public void resumeDownloads() {
+        restoredDownloads.forEach(filename -> {
+            PieceContainer container = files.get(filename);
+            if (container != null && fileAddressRegistry.containsKey(container.getFileInfo())) {
+                logger.info("Resuming download of {}", filename);
+                downloadFileTarget(container.getFileInfo());
+            }
+        });
+    }
+
+    /**
+     * Checks the data of a downloaded {@code Piece} against its hash and, if it matches, adds it to the given
+     * {@code PieceContainer}.
+     * <p>
+     * The {@code Piece} is hashed on the common {@code ForkJoinPool} and then written on the executor of this service,
+     * so that the thread reading from the peer can carry on receiving meanwhile, and a write blocked on the disk holds
+     * up neither the hashing of other {@code Piece}s nor the other users of the common pool.
+     *
+     * @param container the {@code PieceContainer} for the file
+     * @param id        the {@code ID} of the {@code Piece}
+     * @param data      a buffer holding the data of the {@code Piece}, which must not be changed afterwards
+     * @return a future completed with true if the {@code Piece} was added, or false if its data is corrupt. It is
+     * completed exceptionally with an {@code UncheckedIOException} if the {@code Piece} could not be written
+     */
+    public CompletableFuture<Boolean> addVerifiedPiece(PieceContainer container, int id, ByteBuffer data) {
+        return CompletableFuture.supplyAsync(() -> container.verifyPiece(id, data), ForkJoinPool.commonPool())
+                .thenCompose(valid -> !valid ? CompletableFuture.completedFuture(false)
+                        : CompletableFuture.supplyAsync(() -> {
+                            try {
+                                container.addPiece(id, data);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            return true;
+                        }, executor));
+    }
+
+    /**
+     * Returns the number of connected peers holding each {@code Piece} of the file with the given name.
+     * <p>
+     * Each peer a file is being downloaded from adds the {@code Piece}s it holds to the counts, and removes them
+     * again once the download from it ends.
+     *
+     * @param filename the name of the file being downloaded
+     * @return the number of connected peers holding each {@code Piece} of the file
+     */
+    public PieceAvailability getPieceAvailability(String filename) {
+        return pieceAvailability.computeIfAbsent(filename,
+                name -> new PieceAvailability(files.get(name).getTotalPieces()));
+    }
+
+    /**
+     * Returns the throughput and round trip time of each peer the file with the given name is being downloaded from.
+     *
+     * @param filename the name of the file being downloaded
+     * @return the {@code PeerPerformance} of the peers the file is being downloaded from
+     */
+    public PeerPerformance getPeerPerformance(String filename) {
+        return peerPerformance.computeIfAbsent(filename, name -> new PeerPerformance());
+    }
+
+    /**
+     * Returns the upload and download limits of the node, which may be changed while it runs.
+     *
+     * @return the {@code RateLimits} of the node
+     */
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
 
     /**
      * Returns the current download progress of the file for the given name.
@@ -234,8 +532,46 @@ public class FileService {
      * @return a {@code double} representing the current download progress of the file.
      */
     public double getProgress(String name) {
-        PieceContainer container = files.get(name);
-        return container.getPieces().size() / (double) container.getTotalPieces();
+        return files.get(name).getProgress();
+    }
+
+    /**
+     * Stops the downloads of this {@code FileService} and releases the files it holds open.
+     * <p>
+     * The journals of unfinished downloads are written out, so that the downloads can be restored later.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        journals.values().forEach(this::closeJournal);
+        synchronized (files) {
+            files.values().forEach(this::closePieceFile);
+        }
+    }
+
+    private void deleteJournal(String filename) {
+        DownloadJournal journal = journals.remove(filename);
+        if (journal == null)
+            return;
+        try {
+            journal.delete();
+        } catch (IOException e) {
+            logger.error("Deleting journal for {} failed with {}", filename, e.getMessage());
+        }
+    }
+
+    private void closeJournal(DownloadJournal journal) {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.error("Closing journal for {} failed with {}", journal.getFileInfo().getFilename(),
+                    e.getMessage());
+        }
+    }
 
+    private void closePieceFile(PieceContainer container) {
+        if (container != null)
+            closeQuietly(container.getPieceFile());
     }
 }
@@ -0,0 +1,125 @@
+package com.alyokaz.akp2p.fileservice;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class tracks the throughput and round trip time of each peer a single file is being downloaded from.
+ * <p>
+ * Each connection reports the figures its {@code RequestWindow} has measured after every response. A peer whose
+ * throughput stays below {@link #SLOW_SHARE} of the fastest peer's for {@link #SLOW_PERIOD_NANOS} is reported as
+ * persistently slow, so that its connection can give up its {@code Piece}s to the faster peers. A peer that has
+ * stopped responding altogether is reported with a throughput of nothing, and so is judged the same way.
+ */
+public class PeerPerformance {
+
+    /**
+     * The fraction of the fastest peer's throughput below which a peer is slow.
+     */
+    public static final double SLOW_SHARE = 0.1;
+
+    /**
+     * How long, in nanoseconds, a peer must stay slow before it is persistently slow.
+     */
+    public static final long SLOW_PERIOD_NANOS = 10_000_000_000L;
+
+    private final Map<InetSocketAddress, Stats> peers = new HashMap<>();
+
+    /**
+     * Records the latest figures measured for the given peer.
+     *
+     * @param peer           the address of the peer
+     * @param throughput     the smoothed rate, in {@code bytes} per second, at which data arrives from the peer
+     * @param roundTripNanos the lowest round trip time, in nanoseconds, seen with the peer
+     */
+    public synchronized void update(InetSocketAddress peer, double throughput, long roundTripNanos) {
+        Stats stats = peers.computeIfAbsent(peer, p -> new Stats());
+        stats.throughput = throughput;
+        stats.roundTripNanos = roundTripNanos;
+    }
+
+    /**
+     * Stops tracking the given peer, once the download from it has ended.
+     *
+     * @param peer the address of the peer
+     */
+    public synchronized void remove(InetSocketAddress peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     * Returns the smoothed throughput of the given peer.
+     *
+     * @param peer the address of the peer
+     * @return the throughput in {@code bytes} per second, or 0 if nothing has been measured
+     */
+    public synchronized double getThroughput(InetSocketAddress peer) {
+        Stats stats = peers.get(peer);
+        return stats == null ? 0 : stats.throughput;
+    }
+
+    /**
+     * Returns the lowest round trip time seen with the given peer.
+     *
+     * @param peer the address of the peer
+     * @return the round trip time in nanoseconds, or {@code Long.MAX_VALUE} if nothing has been measured
+     */
+    public synchronized long getRoundTripNanos(InetSocketAddress peer) {
+        Stats stats = peers.get(peer);
+        return stats == null ? Long.MAX_VALUE : stats.roundTripNanos;
+    }
+
+    /**
+     * Returns the combined throughput of every peer the file is being downloaded from.
+     *
+     * @return the combined throughput in {@code bytes} per second
+     */
+    public synchronized double getTotalThroughput() {
+        return peers.values().stream().mapToDouble(stats -> stats.throughput).sum();
+    }
+
+    /**
+     * Returns true if the given peer has been slow, compared with the fastest of the other peers, for at least
+     * {@link #SLOW_PERIOD_NANOS}. A peer is never slow while it is the only one measured, nor while none of the
+     * other peers is any faster.
+     *
+     * @param peer the address of the peer
+     * @return true if the peer is persistently slow
+     */
+    public boolean isPersistentlySlow(InetSocketAddress peer) {
+        return isPersistentlySlow(peer, System.nanoTime());
+    }
+
+    /**
+     * Returns true if the given peer has been slow, as {@link #isPersistentlySlow(InetSocketAddress)} does, at the
+     * given time.
+     *
+     * @param peer  the address of the peer
+     * @param nanos the current time, from {@code System.nanoTime()}
+     * @return true if the peer is persistently slow
+     */
+    public synchronized boolean isPersistentlySlow(InetSocketAddress peer, long nanos) {
+        Stats stats = peers.get(peer);
+        if (stats == null)
+            return false;
+        double fastest = peers.entrySet().stream()
+                .filter(entry -> !entry.getKey().equals(peer))
+                .mapToDouble(entry -> entry.getValue().throughput)
+                .max().orElse(0);
+        if (stats.throughput >= SLOW_SHARE * fastest) {
+            stats.slowSince = 0;
+            return false;
+        }
+        if (stats.slowSince == 0)
+            stats.slowSince = nanos;
+        return nanos - stats.slowSince >= SLOW_PERIOD_NANOS;
+    }
+
+    private static class Stats {
+        private double throughput;
+        private long roundTripNanos = Long.MAX_VALUE;
+        // 0 while the peer is not slow
+        private long slowSince;
+    }
+}
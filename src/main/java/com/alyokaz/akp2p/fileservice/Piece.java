@@ -1,14 +1,12 @@
 package com.alyokaz.akp2p.fileservice;
 
-import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Objects;
 
 /**
  * This class a single <i>chunk</i> or <i>piece</i> of a file that can be downloaded interdependently of any other
  * {@code Piece}, allowing a file to be downloaded from multiple peers at once.
  */
-public class Piece implements Serializable, Comparable<Piece> {
+public class Piece implements Comparable<Piece> {
     private final int id;
     private final byte[] data;
 
@@ -45,9 +43,8 @@ public class Piece implements Serializable, Comparable<Piece> {
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(id);
-        result = 31 * result + Arrays.hashCode(data);
-        return result;
+        // the id alone identifies a piece, hashing the data would touch every byte of the piece
+        return Integer.hashCode(id);
     }
 
     @Override
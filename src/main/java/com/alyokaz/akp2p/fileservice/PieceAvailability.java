@@ -0,0 +1,89 @@
+package com.alyokaz.akp2p.fileservice;
+
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * This class counts, for each {@code Piece} of a single file, how many of the connected peers hold it.
+ * <p>
+ * The counts are used to download the rarest {@code Piece}s first, so that a {@code Piece} held by few peers is
+ * copied before those peers leave, and requests are spread evenly over the peers seeding the file.
+ */
+public class PieceAvailability {
+
+    private final int[] counts;
+
+    public PieceAvailability(int totalPieces) {
+        this.counts = new int[totalPieces];
+    }
+
+    /**
+     * Adds the {@code Piece}s held by a peer to the counts.
+     *
+     * @param pieces a {@code BitSet} with a bit set for each {@code Piece} the peer holds
+     */
+    public synchronized void add(BitSet pieces) {
+        pieces.stream().filter(id -> id < counts.length).forEach(id -> counts[id]++);
+    }
+
+    /**
+     * Removes the {@code Piece}s held by a peer, previously added with {@link #add(BitSet)}, from the counts.
+     *
+     * @param pieces a {@code BitSet} with a bit set for each {@code Piece} the peer held
+     */
+    public synchronized void remove(BitSet pieces) {
+        pieces.stream().filter(id -> id < counts.length).forEach(id -> counts[id] = Math.max(0, counts[id] - 1));
+    }
+
+    /**
+     * Returns the number of peers holding the {@code Piece} with the given {@code ID}.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     * @return the number of peers holding the {@code Piece} with the given {@code ID}
+     */
+    public synchronized int getCount(int id) {
+        return counts[id];
+    }
+
+    /**
+     * Returns true if any of the given {@code Piece}s is held by no more than one peer.
+     *
+     * @param pieces a {@code BitSet} with a bit set for each {@code Piece} to check
+     * @return true if any of the {@code Piece}s is held by no more than one peer
+     */
+    public synchronized boolean anyUnique(BitSet pieces) {
+        return pieces.stream().anyMatch(id -> id < counts.length && counts[id] <= 1);
+    }
+
+    /**
+     * Returns the {@code ID} of the candidate {@code Piece} held by the fewest peers, of those the given test
+     * accepts.
+     * <p>
+     * The search starts from the given {@code ID} and wraps around, so that ties are broken by whichever candidate
+     * comes first after it.
+     *
+     * @param candidates a {@code BitSet} with a bit set for each {@code Piece} that may be chosen
+     * @param eligible   a test of whether the candidate with a given {@code ID} may be chosen
+     * @param start      the {@code ID} to start the search from
+     * @return the {@code ID} of the eligible candidate {@code Piece} held by the fewest peers, or {@code -1} if there
+     * are no such candidates
+     */
+    public synchronized int rarest(BitSet candidates, IntPredicate eligible, int start) {
+        int rarest = -1;
+        int fewest = Integer.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            int from = i == 0 ? start : 0;
+            int to = i == 0 ? counts.length : start;
+            for (int id = candidates.nextSetBit(from); id >= 0 && id < to; id = candidates.nextSetBit(id + 1)) {
+                if (counts[id] < fewest && eligible.test(id)) {
+                    rarest = id;
+                    fewest = counts[id];
+                    // a piece the peer offers is held by at least one peer, so none can be rarer
+                    if (fewest <= 1)
+                        return rarest;
+                }
+            }
+        }
+        return rarest;
+    }
+}
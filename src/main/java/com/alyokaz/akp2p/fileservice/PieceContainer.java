@@ -1,31 +1,84 @@
 package com.alyokaz.akp2p.fileservice;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 /**
  * This class contains and coordinates, in terms of downloading, the {@code Piece}s for a single file.
  */
 public class PieceContainer {
 
+    /**
+     * The number of missing {@code Piece}s at or below which the download enters endgame mode.
+     */
+    public static final int ENDGAME_THRESHOLD = 8;
+
+    // indexed by piece id, null when the container is backed by a PieceFile
+    private final Piece[] pieces;
+
+    private final BitSet heldPieces;
 
-    private final SortedSet<Piece> pieces;
+    private volatile int noOfHeldPieces;
 
-    private final Set<Integer> downloadingPieces;
+    // pieces either held or currently assigned for download
+    private final BitSet claimedPieces;
 
     private final FileInfo fileInfo;
 
+    private final PieceFile pieceFile;
+
+    private final List<IntConsumer> pieceListeners = new CopyOnWriteArrayList<>();
+
     public PieceContainer(FileInfo fileInfo) {
         this.fileInfo = fileInfo;
-        this.pieces = new TreeSet<>(Comparator.comparingInt(Piece::getId));
-        this.downloadingPieces = new HashSet<>();
+        this.pieces = new Piece[fileInfo.getTotalPieces()];
+        this.heldPieces = new BitSet(fileInfo.getTotalPieces());
+        this.claimedPieces = new BitSet(fileInfo.getTotalPieces());
+        this.pieceFile = null;
     }
 
     public PieceContainer(FileInfo fileInfo, SortedSet<Piece> pieces) {
+        this(fileInfo);
+        pieces.forEach(piece -> putPiece(piece.getId(), piece));
+    }
+
+    /**
+     * Constructs a complete {@code PieceContainer} whose {@code Piece}s are served from the given {@code PieceFile}
+     * rather than held on the heap.
+     *
+     * @param fileInfo  the {@code FileInfo} for the file
+     * @param pieceFile the {@code PieceFile} holding the data of the file
+     */
+    public PieceContainer(FileInfo fileInfo, PieceFile pieceFile) {
+        this(fileInfo, pieceFile, allPieces(fileInfo));
+    }
+
+    /**
+     * Constructs a {@code PieceContainer} whose {@code Piece}s are written to, and served from, the given
+     * {@code PieceFile} rather than held on the heap.
+     *
+     * @param fileInfo   the {@code FileInfo} for the file
+     * @param pieceFile  the {@code PieceFile} the data of the file is written to
+     * @param heldPieces the {@code ID}s of the {@code Piece}s already held in the {@code PieceFile}
+     */
+    public PieceContainer(FileInfo fileInfo, PieceFile pieceFile, BitSet heldPieces) {
         this.fileInfo = fileInfo;
-        this.pieces = pieces;
-        this.downloadingPieces = new HashSet<>();
+        this.pieces = null;
+        this.heldPieces = heldPieces;
+        this.noOfHeldPieces = heldPieces.cardinality();
+        this.claimedPieces = (BitSet) heldPieces.clone();
+        this.pieceFile = pieceFile;
+    }
+
+    private static BitSet allPieces(FileInfo fileInfo) {
+        BitSet pieces = new BitSet(fileInfo.getTotalPieces());
+        pieces.set(0, fileInfo.getTotalPieces());
+        return pieces;
     }
 
     /**
@@ -47,12 +100,18 @@ public class PieceContainer {
     }
 
     /**
-     * Returns a {@code SortedSet} of the {@code Piece}s this class contains.
+     * Returns a {@code SortedSet} of the {@code Piece}s this class holds in memory.
+     * <p>
+     * The set is a snapshot built on each call, use {@link #getPiece(int)} to look up a single {@code Piece}. A
+     * container backed by a {@code PieceFile} holds no {@code Piece}s in memory and returns an empty set.
      *
-     * @return a {@code SortedSet} of the {@code Piece}s this class contains.
+     * @return a {@code SortedSet} of the {@code Piece}s this class holds in memory.
      */
-    public SortedSet<Piece> getPieces() {
-        return this.pieces;
+    public synchronized SortedSet<Piece> getPieces() {
+        SortedSet<Piece> heldInMemory = new TreeSet<>(Comparator.comparingInt(Piece::getId));
+        if (pieces != null)
+            heldPieces.stream().forEach(id -> heldInMemory.add(pieces[id]));
+        return heldInMemory;
     }
 
     /**
@@ -61,38 +120,297 @@ public class PieceContainer {
      * @return true if all the {@code Piece}s for the file related to this class have been downloaded.
      */
     public boolean complete() {
-        return this.fileInfo.getTotalPieces() == pieces.size();
+        return this.fileInfo.getTotalPieces() == noOfHeldPieces;
+    }
+
+    /**
+     * Returns true if this container holds the {@code Piece} with the given {@code ID}.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     * @return true if this container holds the {@code Piece} with the given {@code ID}
+     */
+    public synchronized boolean hasPiece(int id) {
+        return id >= 0 && id < getTotalPieces() && heldPieces.get(id);
+    }
+
+    /**
+     * Returns the {@code Piece} with the given {@code ID} if this container holds it.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     * @return an {@code Optional} containing the {@code Piece} with the given {@code ID}, or empty if it is not held
+     */
+    public Optional<Piece> getPiece(int id) {
+        if (!hasPiece(id))
+            return Optional.empty();
+        if (pieceFile != null) {
+            ByteBuffer slice = pieceFile.slice(id);
+            byte[] data = new byte[slice.remaining()];
+            slice.get(data);
+            return Optional.of(new Piece(id, data));
+        }
+        synchronized (this) {
+            return Optional.of(pieces[id]);
+        }
+    }
+
+    /**
+     * Returns a {@code BitSet} with a bit set for each {@code Piece} this container holds.
+     * <p>
+     * The {@code BitSet} is a snapshot built on each call.
+     *
+     * @return a {@code BitSet} with a bit set for each {@code Piece} this container holds
+     */
+    public synchronized BitSet getHeldPieces() {
+        return (BitSet) heldPieces.clone();
+    }
+
+    /**
+     * Returns the number of {@code Piece}s this container holds.
+     *
+     * @return the number of {@code Piece}s this container holds
+     */
+    public int getNoOfHeldPieces() {
+        return noOfHeldPieces;
+    }
+
+    /**
+     * Returns the fraction of the {@code Piece}s for the file that this container holds.
+     *
+     * @return the fraction of the {@code Piece}s for the file that this container holds
+     */
+    public double getProgress() {
+        return getTotalPieces() == 0 ? 1 : noOfHeldPieces / (double) getTotalPieces();
     }
 
     /**
      * Add a downloaded {@code Piece} to this container.
+     * <p>
+     * If this container is backed by a {@code PieceFile} the data is written straight to its offset in the file and
+     * is not held in memory.
      *
      * @param piece the {@code Piece} to be added
+     * @throws IOException if the {@code Piece} could not be written to the {@code PieceFile}
+     */
+    public void addPiece(Piece piece) throws IOException {
+        addPiece(piece.getId(), ByteBuffer.wrap(piece.getData()));
+    }
+
+    /**
+     * Add the data of a downloaded {@code Piece} to this container.
+     *
+     * @param id   the {@code ID} of the {@code Piece}
+     * @param data a buffer holding the data of the {@code Piece}
+     * @throws IOException if the {@code Piece} could not be written to the {@code PieceFile}
+     * @see #addPiece(Piece)
+     */
+    public void addPiece(int id, ByteBuffer data) throws IOException {
+        if (id < 0 || id >= getTotalPieces())
+            throw new IOException("Piece " + id + " is not part of " + getFilename());
+        // a piece requested from several peers in endgame mode is kept from whichever arrives first
+        if (hasPiece(id))
+            return;
+        boolean added;
+        if (pieceFile != null) {
+            // written outside the lock so that pieces from different peers are written concurrently
+            pieceFile.write(id, data.duplicate());
+            added = putPiece(id, null);
+        } else {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            added = putPiece(id, new Piece(id, bytes));
+        }
+        if (added)
+            pieceListeners.forEach(listener -> listener.accept(id));
+    }
+
+    /**
+     * Returns true if the given data is that of the {@code Piece} with the given {@code ID}, according to the hashes
+     * in the {@code FileInfo}. If the {@code FileInfo} carries no hashes every {@code Piece} is accepted.
+     *
+     * @param id   the {@code ID} of the {@code Piece}
+     * @param data a buffer holding the data of the {@code Piece}, which is left unread
+     * @return true if the data is that of the {@code Piece} with the given {@code ID}
+     */
+    public boolean verifyPiece(int id, ByteBuffer data) {
+        return !fileInfo.hasPieceHashes() || PieceHasher.matches(fileInfo, id, data);
+    }
+
+    // piece is null when the data is held in the PieceFile rather than in memory
+    private synchronized boolean putPiece(int id, Piece piece) {
+        if (heldPieces.get(id))
+            return false;
+        if (pieces != null)
+            pieces[id] = piece;
+        heldPieces.set(id);
+        claimedPieces.set(id);
+        noOfHeldPieces++;
+        return true;
+    }
+
+    /**
+     * Registers a listener to be called with the {@code ID} of each {@code Piece} added to this container.
+     * <p>
+     * The listener is called on the thread that added the {@code Piece}.
+     *
+     * @param listener the listener to register
+     */
+    public void addPieceListener(IntConsumer listener) {
+        pieceListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener registered with {@link #addPieceListener(IntConsumer)}.
+     *
+     * @param listener the listener to remove
+     */
+    public void removePieceListener(IntConsumer listener) {
+        pieceListeners.remove(listener);
+    }
+
+    /**
+     * Returns true if the download is in endgame mode.
+     * <p>
+     * In endgame mode no more than {@link #ENDGAME_THRESHOLD} {@code Piece}s are missing and every one of them has
+     * already been assigned for download. The missing {@code Piece}s may then be requested from several peers at
+     * once, so that the download does not wait on whichever peer is slowest to send them.
+     *
+     * @return true if the download is in endgame mode
      */
-    public synchronized void addPiece(Piece piece) {
-        this.downloadingPieces.remove(piece.getId());
-        this.pieces.add(piece);
+    public synchronized boolean inEndgame() {
+        int missing = getTotalPieces() - noOfHeldPieces;
+        return missing > 0 && missing <= ENDGAME_THRESHOLD && claimedPieces.cardinality() == getTotalPieces();
     }
 
     /**
      * Returns an {@code ID} of a {@code Piece} that has neither already been assigned for download nor has already
      * been downloaded.
+     * <p>
+     * The search starts from a random {@code ID} so that peers downloading concurrently spread out over the file. If
+     * every missing {@code Piece} is already assigned, one of them is assigned again rather than leave the caller
+     * idle.
      *
      * @return an {@code ID} of a {@code Piece} that has neither already been assigned for download nor has already
-     * been downloaded.
+     * been downloaded, or {@code -1} if all the {@code Piece}s have been downloaded.
+     */
+    public int requestPiece() {
+        return requestPiece(null, null, null, true);
+    }
+
+    /**
+     * Returns an {@code ID} of the rarest {@code Piece} held by a peer that has neither already been assigned for
+     * download nor has already been downloaded.
+     * <p>
+     * If every missing {@code Piece} the peer holds is already assigned, the rarest of them is assigned again rather
+     * than leave the caller idle.
+     *
+     * @param peerPieces   a {@code BitSet} with a bit set for each {@code Piece} the peer holds
+     * @param availability the number of peers holding each {@code Piece}
+     * @return an {@code ID} of the rarest {@code Piece} held by the peer that has not already been downloaded, or
+     * {@code -1} if the peer holds no such {@code Piece}
      */
-    public synchronized int requestPiece() {
-        if (pieces.size() == this.fileInfo.getTotalPieces())
+    public int requestPiece(BitSet peerPieces, PieceAvailability availability) {
+        return requestPiece(peerPieces, null, availability, true);
+    }
+
+    /**
+     * Returns an {@code ID} of the rarest {@code Piece} held by a peer, other than the given ones, as
+     * {@link #requestPiece(BitSet, PieceAvailability)} does.
+     *
+     * @param peerPieces   a {@code BitSet} with a bit set for each {@code Piece} the peer holds
+     * @param excluded     a {@code BitSet} with a bit set for each {@code Piece} that must not be chosen
+     * @param availability the number of peers holding each {@code Piece}
+     * @return an {@code ID} of the rarest {@code Piece} held by the peer that has not already been downloaded and is
+     * not excluded, or {@code -1} if the peer holds no such {@code Piece}
+     */
+    public int requestPiece(BitSet peerPieces, BitSet excluded, PieceAvailability availability) {
+        return requestPiece(peerPieces, excluded, availability, true);
+    }
+
+    /**
+     * Returns an {@code ID} of the rarest {@code Piece} held by a peer that has neither already been assigned for
+     * download nor has already been downloaded, without ever assigning a {@code Piece} a second time.
+     *
+     * @param peerPieces   a {@code BitSet} with a bit set for each {@code Piece} the peer holds
+     * @param availability the number of peers holding each {@code Piece}
+     * @return an {@code ID} of the rarest {@code Piece} held by the peer that has neither already been assigned for
+     * download nor has already been downloaded, or {@code -1} if the peer holds no such {@code Piece}
+     */
+    public int requestUnassignedPiece(BitSet peerPieces, PieceAvailability availability) {
+        return requestPiece(peerPieces, null, availability, false);
+    }
+
+    /**
+     * Returns an {@code ID} of the rarest {@code Piece} held by a peer, other than the given ones, as
+     * {@link #requestUnassignedPiece(BitSet, PieceAvailability)} does.
+     *
+     * @param peerPieces   a {@code BitSet} with a bit set for each {@code Piece} the peer holds
+     * @param excluded     a {@code BitSet} with a bit set for each {@code Piece} that must not be chosen
+     * @param availability the number of peers holding each {@code Piece}
+     * @return an {@code ID} of the rarest {@code Piece} held by the peer that has neither already been assigned for
+     * download nor has already been downloaded and is not excluded, or {@code -1} if the peer holds no such
+     * {@code Piece}
+     */
+    public int requestUnassignedPiece(BitSet peerPieces, BitSet excluded, PieceAvailability availability) {
+        return requestPiece(peerPieces, excluded, availability, false);
+    }
+
+    // The bitfields are scanned in place rather than combined into new ones, so that a pick allocates nothing
+    // whatever the size of the file. peerPieces is null for every piece, excluded null for none, and availability
+    // null when every piece is equally available.
+    private synchronized int requestPiece(BitSet peerPieces, BitSet excluded, PieceAvailability availability,
+                                          boolean reassign) {
+        if (complete())
             return -1;
 
-        List<Integer> ids = this.pieces.stream().map(Piece::getId).collect(Collectors.toList());
-        List<Integer> candidateIds = IntStream.range(0, this.fileInfo.getTotalPieces())
-                .filter(i -> !ids.contains(i)).boxed().collect(Collectors.toList());
-        int chosenId = candidateIds.get(new Random().nextInt(candidateIds.size()));
-        this.downloadingPieces.add(chosenId);
+        int start = ThreadLocalRandom.current().nextInt(getTotalPieces());
+        // a held piece is also claimed, so an unclaimed piece is always missing
+        int chosenId = choose(peerPieces, id -> !claimedPieces.get(id) && !isExcluded(excluded, id), availability,
+                start);
+        if (chosenId == -1 && reassign)
+            chosenId = choose(peerPieces, id -> !heldPieces.get(id) && !isExcluded(excluded, id), availability,
+                    start);
+        if (chosenId == -1)
+            return -1;
+        this.claimedPieces.set(chosenId);
         return chosenId;
     }
 
+    private static boolean isExcluded(BitSet excluded, int id) {
+        return excluded != null && excluded.get(id);
+    }
+
+    private int choose(BitSet peerPieces, IntPredicate eligible, PieceAvailability availability, int start) {
+        if (availability != null && peerPieces != null)
+            return availability.rarest(peerPieces, eligible, start);
+        // any bits a peer sent beyond the end of the file are ignored
+        for (int i = 0; i < 2; i++) {
+            int from = i == 0 ? start : 0;
+            int to = i == 0 ? getTotalPieces() : start;
+            for (int id = next(peerPieces, from); id >= 0 && id < to; id = next(peerPieces, id + 1)) {
+                if (eligible.test(id))
+                    return id;
+            }
+        }
+        return -1;
+    }
+
+    // the next piece held by the peer from the given id, where null holds every piece
+    private static int next(BitSet peerPieces, int from) {
+        return peerPieces == null ? from : peerPieces.nextSetBit(from);
+    }
+
+    /**
+     * Releases the assignment of the {@code Piece} with the given {@code ID}, returned by {@link #requestPiece()},
+     * so that it can be assigned for download again.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     */
+    public synchronized void releasePiece(int id) {
+        if (id < 0 || id >= getTotalPieces() || heldPieces.get(id))
+            return;
+        this.claimedPieces.clear(id);
+    }
+
     /**
      * Returns the {@code FileInfo} for the file related to this {@code PieceContainer}.
      *
@@ -101,4 +419,13 @@ public class PieceContainer {
     public FileInfo getFileInfo() {
         return this.fileInfo;
     }
+
+    /**
+     * Returns the {@code PieceFile} backing this container, or {@code null} if its {@code Piece}s are held in memory.
+     *
+     * @return the {@code PieceFile} backing this container, or {@code null} if its {@code Piece}s are held in memory
+     */
+    public PieceFile getPieceFile() {
+        return this.pieceFile;
+    }
 }
@@ -0,0 +1,205 @@
+package com.alyokaz.akp2p.fileservice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class gives access to the {@code Piece}s of a file held on the local file system, without loading the file
+ * onto the heap.
+ * <p>
+ * The file is memory-mapped in segments, each holding a whole number of {@code Piece}s, so that each {@code Piece}
+ * can be served as a slice of a single mapping. {@code Piece}s being downloaded are written directly to their
+ * offset in the file as they arrive.
+ */
+public class PieceFile implements Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+    private final int pieceSize;
+    private final long segmentSize;
+    private final MappedByteBuffer[] segments;
+
+    private PieceFile(File file, FileChannel channel, long size, int pieceSize) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+        this.pieceSize = pieceSize;
+        // segments must hold a whole number of pieces so that no piece straddles two mappings
+        this.segmentSize = (long) (Integer.MAX_VALUE / pieceSize) * pieceSize;
+        this.segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+        for (int i = 0; i < segments.length; i++) {
+            long position = i * segmentSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+        }
+    }
+
+    /**
+     * Opens the given {@code File} for reading and maps it into memory.
+     *
+     * @param file      the {@code File} to open
+     * @param pieceSize the size in {@code bytes} of each {@code Piece} of the file
+     * @return a {@code PieceFile} for the given {@code File}
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public static PieceFile open(File file, int pieceSize) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new PieceFile(file, channel, channel.size(), pieceSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates, or reuses, the given {@code File} preallocated to the given size, ready for {@code Piece}s to be
+     * written to it.
+     *
+     * @param file      the {@code File} to create
+     * @param size      the size in {@code bytes} of the complete file
+     * @param pieceSize the size in {@code bytes} of each {@code Piece} of the file
+     * @return a {@code PieceFile} for the given {@code File}
+     * @throws IOException if the file could not be created or mapped
+     */
+    public static PieceFile create(File file, long size, int pieceSize) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new PieceFile(file, channel, size, pieceSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the data for the {@code Piece} with the given {@code ID} at its offset in the file.
+     *
+     * @param id   the {@code ID} of the {@code Piece}
+     * @param data the data of the {@code Piece}
+     * @throws IOException if the data is not the length of the {@code Piece} or could not be written
+     */
+    public void write(int id, ByteBuffer data) throws IOException {
+        if (data.remaining() != getPieceLength(id))
+            throw new IOException("Piece " + id + " of " + file.getName() + " has length " + data.remaining()
+                    + ", expected " + getPieceLength(id));
+        long position = (long) id * pieceSize;
+        while (data.hasRemaining())
+            position += channel.write(data, position);
+    }
+
+    /**
+     * Transfers the data for the {@code Piece} with the given {@code ID} directly from the file to the given channel.
+     * <p>
+     * When the target is a socket this lets the operating system send the data straight from the page cache, without
+     * it being copied onto the heap.
+     *
+     * @param id     the {@code ID} of the {@code Piece}
+     * @param target the channel to transfer the data to
+     * @throws IOException if the data could not be transferred
+     */
+    public void transferTo(int id, WritableByteChannel target) throws IOException {
+        long position = (long) id * pieceSize;
+        long remaining = getPieceLength(id);
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0)
+                throw new IOException("Transfer of piece " + id + " of " + file.getName() + " stalled");
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    /**
+     * Transfers as much as the target will currently accept, up to the given number of {@code bytes}, of the data
+     * for the {@code Piece} with the given {@code ID}, starting at the given offset within the {@code Piece}.
+     * <p>
+     * This suits a non-blocking target, which may accept only part of the data, or none, at a time.
+     *
+     * @param id     the {@code ID} of the {@code Piece}
+     * @param offset the offset within the {@code Piece} to start the transfer from
+     * @param count  the most {@code bytes} to transfer
+     * @param target the channel to transfer the data to
+     * @return the number of {@code bytes} transferred
+     * @throws IOException if the data could not be transferred
+     */
+    public long transferTo(int id, long offset, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo((long) id * pieceSize + offset, Math.min(count, getPieceLength(id) - offset),
+                target);
+    }
+
+    /**
+     * Forces any written {@code Piece}s out to the storage device.
+     *
+     * @throws IOException if the file could not be flushed
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Returns a read-only view of the data for the {@code Piece} with the given {@code ID}.
+     * <p>
+     * The returned buffer is a slice of the mapping, no data is copied.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     * @return a read-only view of the data for the {@code Piece} with the given {@code ID}
+     */
+    public ByteBuffer slice(int id) {
+        long offset = (long) id * pieceSize;
+        MappedByteBuffer segment = segments[(int) (offset / segmentSize)];
+        return segment.slice((int) (offset % segmentSize), getPieceLength(id)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the length in {@code bytes} of the {@code Piece} with the given {@code ID}.
+     *
+     * @param id the {@code ID} of the {@code Piece}
+     * @return the length in {@code bytes} of the {@code Piece} with the given {@code ID}
+     */
+    public int getPieceLength(int id) {
+        return (int) Math.min(pieceSize, size - (long) id * pieceSize);
+    }
+
+    /**
+     * Returns the size in {@code bytes} of each {@code Piece}, other than the last which may be shorter.
+     *
+     * @return the size in {@code bytes} of each {@code Piece}
+     */
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    /**
+     * Returns the underlying {@code File}.
+     *
+     * @return the underlying {@code File}
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the size of the underlying file in {@code bytes}.
+     *
+     * @return the size of the underlying file in {@code bytes}
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
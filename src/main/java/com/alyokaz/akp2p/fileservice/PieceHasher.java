@@ -0,0 +1,123 @@
+package com.alyokaz.akp2p.fileservice;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+/**
+ * This class computes and checks the SHA-256 hashes of the {@code Piece}s of a file.
+ * <p>
+ * The hashes of all the {@code Piece}s of a file are computed in parallel on the common {@code ForkJoinPool}, with
+ * each worker hashing a run of neighbouring {@code Piece}s.
+ */
+public final class PieceHasher {
+
+    /**
+     * The algorithm {@code Piece}s are hashed with.
+     */
+    public static final String ALGORITHM = "SHA-256";
+
+    /**
+     * The length in {@code bytes} of the hash of a single {@code Piece}.
+     */
+    public static final int HASH_LENGTH = 32;
+
+    private PieceHasher() {
+    }
+
+    /**
+     * Computes the hashes of the given number of {@code Piece}s in parallel.
+     *
+     * @param totalPieces the number of {@code Piece}s to hash
+     * @param pieceData   returns the data of the {@code Piece} with the given {@code ID}
+     * @return the hashes of the {@code Piece}s, {@link #HASH_LENGTH} {@code bytes} each, in order of {@code ID}
+     */
+    public static byte[] hashPieces(int totalPieces, IntFunction<ByteBuffer> pieceData) {
+        byte[] hashes = new byte[totalPieces * HASH_LENGTH];
+        ForkJoinPool.commonPool().invoke(new HashPiecesTask(pieceData, hashes, 0, totalPieces));
+        return hashes;
+    }
+
+    /**
+     * Checks the given {@code Piece}s against their recorded hashes in parallel.
+     *
+     * @param fileInfo  the {@code FileInfo} holding the hashes of the file
+     * @param pieces    a {@code BitSet} with a bit set for each {@code Piece} to check
+     * @param pieceData returns the data of the {@code Piece} with the given {@code ID}
+     * @return a {@code BitSet} with a bit set for each of the given {@code Piece}s that has its recorded hash
+     */
+    public static BitSet verifyPieces(FileInfo fileInfo, BitSet pieces, IntFunction<ByteBuffer> pieceData) {
+        // parallel streams run on the common ForkJoinPool
+        BitSet valid = new BitSet(fileInfo.getTotalPieces());
+        pieces.stream().parallel()
+                .filter(id -> matches(fileInfo, id, pieceData.apply(id)))
+                .forEachOrdered(valid::set);
+        return valid;
+    }
+
+    /**
+     * Returns true if the given data has the hash recorded for the {@code Piece} with the given {@code ID}.
+     *
+     * @param fileInfo the {@code FileInfo} holding the hashes of the file
+     * @param id       the {@code ID} of the {@code Piece}
+     * @param data     the data of the {@code Piece}, which is left unread
+     * @return true if the data has the recorded hash
+     */
+    public static boolean matches(FileInfo fileInfo, int id, ByteBuffer data) {
+        if (id < 0 || id >= fileInfo.getTotalPieces())
+            return false;
+        MessageDigest digest = newDigest();
+        digest.update(data.duplicate());
+        return MessageDigest.isEqual(digest.digest(), fileInfo.getPieceHash(id));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    }
+
+    /**
+     * Hashes a range of {@code Piece}s, splitting it between workers until each has only a few {@code Piece}s left.
+     */
+    private static class HashPiecesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 4;
+
+        // the task is never serialized, it only extends a serializable class
+        private final transient IntFunction<ByteBuffer> pieceData;
+        private final byte[] hashes;
+        private final int from;
+        private final int to;
+
+        HashPiecesTask(IntFunction<ByteBuffer> pieceData, byte[] hashes, int from, int to) {
+            this.pieceData = pieceData;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashPiecesTask(pieceData, hashes, from, middle),
+                        new HashPiecesTask(pieceData, hashes, middle, to));
+                return;
+            }
+            MessageDigest digest = newDigest();
+            for (int id = from; id < to; id++) {
+                digest.update(pieceData.apply(id));
+                System.arraycopy(digest.digest(), 0, hashes, id * HASH_LENGTH, HASH_LENGTH);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.alyokaz.akp2p.fileservice;
+
+/**
+ * This class chooses the size of the {@code Piece}s a file is divided into when it is seeded.
+ * <p>
+ * By default the size is chosen from the size of the file, so that a small file is not sent in a few large
+ * {@code Piece}s while a large file is not divided into a great many small ones:
+ * <pre>
+ *     up to 64 MiB     256 KiB pieces
+ *     up to 1 GiB      1 MiB pieces
+ *     up to 16 GiB     4 MiB pieces
+ *     larger           16 MiB pieces
+ * </pre>
+ * A single size for every file can be set instead with {@link #setOverride}. The size chosen is carried in the
+ * {@code FileInfo} of the file, so that downloading peers divide it the same way.
+ * <p>
+ * The {@code FileInfo} holds a hash of each {@code Piece} and is sent in a single message, so a file may be divided
+ * into no more than {@link #MAX_PIECES} {@code Piece}s. A file that the size set would divide into more is not seeded.
+ * The {@code FileInfo}s of all the files a node holds are listed together in one message as well, so their hashes may
+ * take up no more than {@link #MAX_LISTED_HASH_BYTES} between them.
+ */
+public final class PieceSize {
+
+    /**
+     * The size in {@code bytes} of the {@code Piece}s of a file whose {@code FileInfo} does not give one.
+     */
+    public static final int DEFAULT = 1000000;
+
+    /**
+     * The smallest size in {@code bytes} a {@code Piece} may be.
+     */
+    public static final int MIN = 16 * 1024;
+
+    /**
+     * The largest size in {@code bytes} a {@code Piece} may be, which leaves room within the largest frame a peer
+     * will accept for the rest of a {@code PIECE} message.
+     */
+    public static final int MAX = 32 * 1024 * 1024;
+
+    /**
+     * The most {@code Piece}s a file may be divided into. Their hashes take up 32 MiB, half of the largest frame a
+     * peer will accept.
+     */
+    public static final int MAX_PIECES = 1 << 20;
+
+    /**
+     * The most {@code bytes} of {@code Piece} hashes the {@code FileInfo}s of all the files a node holds may take up
+     * between them, as they are listed in a single message. The 16 MiB left of the largest frame a peer will accept
+     * holds the filename and sizes of each file.
+     */
+    public static final long MAX_LISTED_HASH_BYTES = 48L << 20;
+
+    private static final long[] BAND_LIMITS = {64L << 20, 1L << 30, 16L << 30};
+    private static final int[] BAND_SIZES = {256 << 10, 1 << 20, 4 << 20, 16 << 20};
+
+    // 0 when the size is chosen from the size of the file
+    private static volatile int override;
+
+    private PieceSize() {
+    }
+
+    /**
+     * Returns the size in {@code bytes} of the {@code Piece}s a file of the given size should be divided into.
+     *
+     * @param fileSize the size of the file in {@code bytes}
+     * @return the size in {@code bytes} of the {@code Piece}s for the file
+     * @throws IllegalArgumentException if the file would be divided into more than {@link #MAX_PIECES}
+     *                                  {@code Piece}s
+     */
+    public static int forFileSize(long fileSize) {
+        int size = override;
+        if (size == 0)
+            size = bandSize(fileSize);
+        // counted as a long, as a tiny piece size could leave a huge file with more pieces than an int holds
+        if (fileSize / size + (fileSize % size == 0 ? 0 : 1) > MAX_PIECES)
+            throw new IllegalArgumentException("A file of " + fileSize + " bytes would be divided into more than "
+                    + MAX_PIECES + " pieces of " + size + " bytes");
+        return size;
+    }
+
+    private static int bandSize(long fileSize) {
+        for (int i = 0; i < BAND_LIMITS.length; i++)
+            if (fileSize <= BAND_LIMITS[i])
+                return BAND_SIZES[i];
+        return BAND_SIZES[BAND_SIZES.length - 1];
+    }
+
+    /**
+     * Sets a single size for the {@code Piece}s of every file seeded from now on, in place of the size chosen from
+     * the size of the file.
+     *
+     * @param pieceSize the size in {@code bytes} of each {@code Piece}, or 0 to choose it from the size of the file
+     * @throws IllegalArgumentException if the size is outside the range {@link #MIN} to {@link #MAX}
+     */
+    public static void setOverride(int pieceSize) {
+        if (pieceSize != 0 && (pieceSize < MIN || pieceSize > MAX))
+            throw new IllegalArgumentException("Piece size " + pieceSize + " is not between " + MIN + " and " + MAX);
+        override = pieceSize;
+    }
+
+    /**
+     * Returns the size set with {@link #setOverride}, or 0 if the size is chosen from the size of each file.
+     *
+     * @return the size set with {@link #setOverride}, or 0
+     */
+    public static int getOverride() {
+        return override;
+    }
+
+    /**
+     * Returns the number of {@code Piece}s a file of the given size is divided into.
+     *
+     * @param fileSize  the size of the file in {@code bytes}
+     * @param pieceSize the size in {@code bytes} of each {@code Piece}
+     * @return the number of {@code Piece}s
+     */
+    public static int countPieces(long fileSize, int pieceSize) {
+        return Math.toIntExact(fileSize / pieceSize + (fileSize % pieceSize == 0 ? 0 : 1));
+    }
+}
@@ -0,0 +1,124 @@
+package com.alyokaz.akp2p.fileservice;
+
+/**
+ * This class decides how many {@code Piece} requests may be outstanding on a single peer connection at once.
+ * <p>
+ * The depth grows additively, by one for each window of responses, while the round trip time of requests stays
+ * close to the lowest seen, so that more requests are kept in flight to cover the latency of the link. Once the
+ * round trip time doubles the requests are queueing at the peer rather than filling the link, and the depth is
+ * halved. The throughput observed from the peer is tracked alongside.
+ * <p>
+ * The depth is also held to twice the number of {@code Piece}s the peer can deliver in one round trip at its
+ * observed throughput, so that a slow peer is not handed many more {@code Piece}s than it can serve while faster
+ * peers wait for work. Twice that number leaves room for the throughput observed to keep growing.
+ */
+public class RequestWindow {
+
+    public static final int INITIAL_DEPTH = 2;
+    public static final int MAX_DEPTH = 64;
+
+    /**
+     * The most {@code Piece} data, in {@code bytes}, requests may be outstanding for at once, which limits the depth
+     * for large {@code Piece}s.
+     */
+    public static final int MAX_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+
+    // weight given to each new sample in the smoothed throughput
+    private static final double SMOOTHING = 0.25;
+
+    private final int maxDepth;
+    private final int pieceSize;
+    private double depth = INITIAL_DEPTH;
+    private long minRoundTripNanos = Long.MAX_VALUE;
+    private int responsesSinceDecrease;
+    private long lastResponseNanos;
+    private double throughput;
+
+    public RequestWindow() {
+        this(MAX_DEPTH, PieceSize.DEFAULT);
+    }
+
+    private RequestWindow(int maxDepth, int pieceSize) {
+        this.maxDepth = maxDepth;
+        this.pieceSize = pieceSize;
+    }
+
+    /**
+     * Constructs a {@code RequestWindow} for requests of {@code Piece}s of the given size.
+     *
+     * @param pieceSize the size in {@code bytes} of each {@code Piece}
+     * @return a {@code RequestWindow} whose depth keeps no more than {@link #MAX_BYTES_IN_FLIGHT} in flight
+     */
+    public static RequestWindow forPieceSize(int pieceSize) {
+        return new RequestWindow(Math.max(INITIAL_DEPTH, Math.min(MAX_DEPTH, MAX_BYTES_IN_FLIGHT / pieceSize)),
+                pieceSize);
+    }
+
+    /**
+     * Returns the number of requests that may currently be outstanding.
+     *
+     * @return the number of requests that may currently be outstanding
+     */
+    public int getDepth() {
+        if (throughput == 0 || minRoundTripNanos == Long.MAX_VALUE)
+            return (int) depth;
+        double piecesPerRoundTrip = throughput * (minRoundTripNanos / 1e9) / pieceSize;
+        return (int) Math.min(depth, Math.max(INITIAL_DEPTH, Math.ceil(2 * piecesPerRoundTrip)));
+    }
+
+    /**
+     * Records a response to a request.
+     *
+     * @param roundTripNanos the time in nanoseconds between sending the request and receiving its response
+     * @param bytes          the number of {@code bytes} of {@code Piece} data in the response
+     */
+    public void onResponse(long roundTripNanos, int bytes) {
+        long now = System.nanoTime();
+        if (lastResponseNanos != 0 && now > lastResponseNanos) {
+            double sample = bytes / ((now - lastResponseNanos) / 1e9);
+            throughput = throughput == 0 ? sample : throughput + SMOOTHING * (sample - throughput);
+        }
+        lastResponseNanos = now;
+
+        minRoundTripNanos = Math.min(minRoundTripNanos, roundTripNanos);
+        responsesSinceDecrease++;
+        if (roundTripNanos > 2 * minRoundTripNanos) {
+            // responses already in flight saw the old depth, so only back off once per window
+            if (responsesSinceDecrease >= depth)
+                decrease();
+        } else {
+            depth = Math.min(maxDepth, depth + 1 / depth);
+        }
+    }
+
+    /**
+     * Records a failed request, halving the depth.
+     */
+    public void onFailure() {
+        decrease();
+    }
+
+    /**
+     * Returns the smoothed rate, in {@code bytes} per second, at which {@code Piece} data has arrived from the peer.
+     *
+     * @return the smoothed rate, in {@code bytes} per second, at which {@code Piece} data has arrived from the peer
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Returns the lowest round trip time seen, in nanoseconds, or {@code Long.MAX_VALUE} if there have been no
+     * responses.
+     *
+     * @return the lowest round trip time seen, in nanoseconds
+     */
+    public long getMinRoundTripNanos() {
+        return minRoundTripNanos;
+    }
+
+    private void decrease() {
+        depth = Math.max(1, depth / 2);
+        responsesSinceDecrease = 0;
+    }
+}
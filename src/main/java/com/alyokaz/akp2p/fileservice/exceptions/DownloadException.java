@@ -2,6 +2,10 @@ package com.alyokaz.akp2p.fileservice.exceptions;
 
 public class DownloadException extends RuntimeException {
 
+    public DownloadException(String message) {
+        super(message);
+    }
+
     public DownloadException(String message, Throwable cause) {
         super(message, cause);
     }
@@ -2,6 +2,10 @@ package com.alyokaz.akp2p.fileservice.exceptions;
 
 public class SeedFileException extends Exception {
 
+    public SeedFileException(String message) {
+        super(message);
+    }
+
     public SeedFileException(String message, Throwable e) {
         super(message, e);
     }
@@ -2,26 +2,67 @@ package com.alyokaz.akp2p.fileservice.tasks;
 
 import com.alyokaz.akp2p.fileservice.FileInfo;
 import com.alyokaz.akp2p.fileservice.FileService;
-import com.alyokaz.akp2p.fileservice.Piece;
+import com.alyokaz.akp2p.fileservice.PeerPerformance;
+import com.alyokaz.akp2p.fileservice.PieceAvailability;
 import com.alyokaz.akp2p.fileservice.PieceContainer;
+import com.alyokaz.akp2p.fileservice.RequestWindow;
 import com.alyokaz.akp2p.fileservice.exceptions.DownloadException;
 import com.alyokaz.akp2p.peerservice.PeerService;
+import com.alyokaz.akp2p.server.message.BitfieldMessage;
+import com.alyokaz.akp2p.server.message.CancelPieceMessage;
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageInputStream;
+import com.alyokaz.akp2p.server.message.MessageOutputStream;
+import com.alyokaz.akp2p.server.message.MessageType;
+import com.alyokaz.akp2p.server.message.PieceMessage;
+import com.alyokaz.akp2p.server.message.RequestBitfieldMessage;
 import com.alyokaz.akp2p.server.message.RequestPieceMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.message.StringFormattedMessage;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
 
 /**
  * This class handles the downloading of {@code Pieces} for a single file from a single peer.
  */
 public class DownloadFileTargetTask implements Runnable {
 
+    /**
+     * The most {@code Piece}s received from a peer that may be waiting to be verified before the next response is
+     * read.
+     */
+    public static final int MAX_PENDING_VERIFICATIONS = 8;
+
+    /**
+     * How long, in milliseconds, a read from the peer waits for data before the peer is judged to have stalled.
+     */
+    public static final int STALL_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * How long, in nanoseconds, the peer may send nothing at all before the download from it fails.
+     */
+    public static final long MAX_SILENCE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
     protected static final Logger logger = LogManager.getLogger();
     protected final InetSocketAddress address;
     protected final FileService fileService;
@@ -43,59 +84,320 @@ public class DownloadFileTargetTask implements Runnable {
     @Override
     public void run() {
         try (Socket socket = new Socket(address.getAddress(), address.getPort());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
+             MessageInputStream in = new MessageInputStream(new BufferedInputStream(socket.getInputStream()));
+             MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            // pipelined requests are small and must not wait on acknowledgements of earlier ones
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(STALL_TIMEOUT_MILLIS);
             downloadPieces(fileInfo.getFilename(), out, in);
         } catch (IOException | DownloadException e) {
             // We handle the exceptions here to allow any other peer connections to continue
-            peerService.removeFromLivePeers(address);
+            peerService.reportFailure(address);
             logger.error("Download from peer at {} failed for {}", address, e.getMessage());
         }
     }
 
     /**
      * This method handles the downloading of {@code Piece}s from the peer connection.
+     * <p>
+     * The peer is first asked for a bitfield of the {@code Piece}s it holds, which is added to the availability
+     * counts for the file, and the rarest of those {@code Piece}s are requested first. Requests are pipelined, so
+     * several may be outstanding at once to keep the connection busy. The number outstanding is adapted to the peer
+     * by a {@code RequestWindow}, which keeps more in flight for a fast peer than for a slow one. Each {@code Piece}
+     * received is matched to its request by its {@code ID}, and one that was not requested is a protocol error that
+     * ends the download from the peer. A peer answers a request for a {@code Piece} it does not hold with an
+     * {@code END}, which carries no {@code ID}, so it is matched to the oldest request still outstanding.
+     * <p>
+     * A peer that stays far slower than the other peers of the file is dropped, leaving its {@code Piece}s to the
+     * faster peers, unless it is the only one of them holding some {@code Piece} still needed. Should a read time out,
+     * as it does on a socket with a read timeout while requests go unanswered, the peer has stalled and is taken to
+     * have a throughput of nothing, so that a stalled peer is dropped in the same way. A peer that sends nothing for
+     * {@link #MAX_SILENCE_NANOS} fails the download from it whatever it holds.
+     * <p>
+     * In endgame mode the last missing {@code Piece}s are requested even though other peers have already been asked
+     * for them. Whichever copy arrives first is kept and the requests still outstanding for it are cancelled.
+     * <p>
+     * Each {@code Piece} received is checked against its hash off this thread, while later responses are read. A
+     * {@code Piece} that turns out to be corrupt is left to be downloaded again from another peer. Should more than
+     * {@link #MAX_PENDING_VERIFICATIONS} {@code Piece}s be waiting to be checked, no more is read or requested from
+     * the peer until the checks catch up, so that a peer faster than the hashing cannot fill the heap.
+     * <p>
+     * Once each {@code Piece} has been handed off, the download waits for as long as the download limits of the node
+     * require before reading the next response. Only this connection is held back, and the peer in turn by TCP flow
+     * control.
      *
      * @param filename the filename the {@code PieceContainer} for the related file is stored under
      * @param out      the {@code OutputStream} for the peer connection
      * @param in       the {@code InputStream} for the peer connection
      */
-    protected void downloadPieces(String filename, ObjectOutputStream out, ObjectInputStream in) {
+    protected void downloadPieces(String filename, MessageOutputStream out, MessageInputStream in) {
         // the container is potentially shared between multiple connections and is responsible for managing the
         // allocation of which pieces should be downloaded
         PieceContainer container = fileService.getFile(filename);
         if (container.complete()) return;
 
+        PieceAvailability availability = fileService.getPieceAvailability(filename);
+        PeerPerformance performance = fileService.getPeerPerformance(filename);
+        RequestWindow window = RequestWindow.forPieceSize(container.getFileInfo().getPieceSize());
+        // in the order the requests were sent
+        Map<Integer, Request> outstanding = new LinkedHashMap<>();
+        Deque<Verification> verifying = new ArrayDeque<>();
+        BitSet peerPieces = new BitSet();
+        // the pieces requested on this connection that are yet to be answered, or have been received and are still
+        // being verified, none of which is requested here again
+        BitSet inFlight = new BitSet();
+
+        // requested and cancelled are shared with the cancel listener, which runs on the threads of other
+        // connections, and are guarded by writeLock along with every write to the peer
+        ReentrantLock writeLock = new ReentrantLock();
+        BitSet requested = new BitSet();
+        BitSet cancelled = new BitSet();
+        IntConsumer cancelListener = id -> {
+            writeLock.lock();
+            try {
+                if (!requested.get(id) || cancelled.get(id))
+                    return;
+                out.writeMessage(new CancelPieceMessage(filename, id, peerService.getServerAddress()));
+                cancelled.set(id);
+            } catch (IOException e) {
+                // the connection has failed, which the thread reading from it will discover
+                logger.debug("Cancelling piece {} with peer at {} failed for {}", id, address, e.getMessage());
+            } finally {
+                writeLock.unlock();
+            }
+        };
+        container.addPieceListener(cancelListener);
 
         logger.info("Beginning download of {} ... from {}", filename, address);
-        while (!container.complete()) {
-            // claim a piece that is not yet downloaded, or is not currently downloading, to prevent duplicate
-            // downloads of the same piece
-            int nextId = container.requestPiece();
-            if (nextId == -1) break;
+        try {
+            peerPieces = requestBitfield(filename, out, in, writeLock);
+            availability.add(peerPieces);
+            long heardAt = System.nanoTime();
+            // every piece the peer has ever claimed to hold, a refreshed bitfield is only of use if it adds to these
+            BitSet seenPieces = (BitSet) peerPieces.clone();
 
-            try {
-                // request piece from peer
-                out.writeObject(new RequestPieceMessage(filename, nextId,
-                        peerService.getServerAddress()));
+            while (true) {
+                // the node is shutting down, and a restarted node may carry the download on from its journal
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("Interrupted while downloading from " + address);
+                while (!container.complete() && outstanding.size() < window.getDepth()) {
+                    // claim a piece that is not yet downloaded, or is not currently downloading, to prevent
+                    // duplicate downloads of the same piece. Only a peer with nothing outstanding, or a download in
+                    // endgame mode, may be given a piece already assigned to another peer.
+                    // A piece in flight on this connection is never requested again, so that each response matches
+                    // a single request and a piece is not downloaded twice from the same peer.
+                    int nextId = outstanding.isEmpty() || container.inEndgame()
+                            ? container.requestPiece(peerPieces, inFlight, availability)
+                            : container.requestUnassignedPiece(peerPieces, inFlight, availability);
+                    if (nextId == -1) break;
+                    writeLock.lock();
+                    try {
+                        out.write(new RequestPieceMessage(filename, nextId, peerService.getServerAddress()));
+                        requested.set(nextId);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    outstanding.put(nextId, new Request(nextId, System.nanoTime()));
+                    inFlight.set(nextId);
+                }
 
-                Object readObject = null;
-                readObject = in.readObject();
+                if (outstanding.isEmpty()) {
+                    // a piece still being verified may turn out to be corrupt and need downloading again
+                    checkVerifications(verifying, 0, inFlight, container, availability, peerPieces);
+                    if (container.complete()) break;
+                    // the peer may have downloaded more pieces since it sent its bitfield
+                    BitSet refreshed = requestBitfield(filename, out, in, writeLock);
+                    BitSet gained = (BitSet) refreshed.clone();
+                    gained.andNot(seenPieces);
+                    if (gained.isEmpty()) break;
+                    seenPieces.or(refreshed);
+                    availability.remove(peerPieces);
+                    availability.add(refreshed);
+                    peerPieces = refreshed;
+                    heardAt = System.nanoTime();
+                    continue;
+                }
+                writeLock.lock();
+                try {
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
 
-                if (readObject instanceof Piece) {
-                    container.addPiece((Piece) readObject);
+                Message message = null;
+                try {
+                    message = in.readMessage();
+                    heardAt = System.nanoTime();
+                } catch (SocketTimeoutException e) {
+                    if (System.nanoTime() - heardAt >= MAX_SILENCE_NANOS)
+                        throw e;
+                    // the requests outstanding have gone unanswered for a whole read timeout
+                    window.onFailure();
+                    performance.update(address, 0, window.getMinRoundTripNanos());
+                }
+                if (message != null) {
+                    Request request = matchRequest(message, outstanding);
+                    boolean wasCancelled;
+                    writeLock.lock();
+                    try {
+                        requested.clear(request.pieceId());
+                        wasCancelled = cancelled.get(request.pieceId());
+                        cancelled.clear(request.pieceId());
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    if (message instanceof PieceMessage piece) {
+                        int length = piece.getData().remaining();
+                        window.onResponse(System.nanoTime() - request.sentAt(), length);
+                        verifying.add(new Verification(piece.getPieceId(),
+                                fileService.addVerifiedPiece(container, piece.getPieceId(), piece.getData())));
+                        limitDownload(length);
+                        performance.update(address, window.getThroughput(), window.getMinRoundTripNanos());
+                    } else {
+                        inFlight.clear(request.pieceId());
+                        if (!wasCancelled) {
+                            // the peer does not hold the piece after all, so leave it for another peer
+                            window.onFailure();
+                            abandonPiece(request.pieceId(), container, availability, peerPieces);
+                        }
+                    }
+                }
+                checkVerifications(verifying, MAX_PENDING_VERIFICATIONS, inFlight, container, availability,
+                        peerPieces);
+
+                if (performance.isPersistentlySlow(address) && !holdsUniquePieces(container, availability,
+                        peerPieces)) {
+                    logger.info("Dropping slow peer at {} for {} at {} bytes/s", address, filename,
+                            (long) performance.getThroughput(address));
+                    checkVerifications(verifying, 0, inFlight, container, availability, peerPieces);
+                    return;
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                throw new DownloadException(e.getMessage(), e);
-            }
 
-            StringFormattedMessage formattedMessage = new StringFormattedMessage("%.2f %%%n",
-                    (container.getPieces().size() / (double) container.getTotalPieces()) * 100);
-            logger.debug(formattedMessage);
+                StringFormattedMessage formattedMessage = new StringFormattedMessage("%.2f %%%n",
+                        container.getProgress() * 100);
+                logger.debug(formattedMessage);
+            }
+        } catch (IOException e) {
+            throw new DownloadException(e.getMessage(), e);
+        } finally {
+            // however the download ends, the pieces still outstanding are left to other peers, as are those still
+            // being verified should they turn out to be corrupt
+            outstanding.keySet().forEach(container::releasePiece);
+            verifying.forEach(verification -> verification.result().whenComplete((valid, e) -> {
+                if (e != null || !valid)
+                    container.releasePiece(verification.pieceId());
+            }));
+            container.removePieceListener(cancelListener);
+            availability.remove(peerPieces);
+            performance.remove(address);
         }
+
+        if (!container.complete()) return;
         logger.info("Download of {} from {} complete.", filename, address);
-        // build the file and save it to the local file system
+        // mark the file as complete, its pieces have already been written to the local file system
         fileService.buildFile(container);
+    }
+
+    private void limitDownload(int bytes) throws InterruptedIOException {
+        try {
+            fileService.getRateLimits().getDownload().acquire(address, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while limiting download from " + address);
+        }
+    }
+
+    // handles the verifications that have finished, waiting for the oldest until no more than maxPending remain
+    private void checkVerifications(Deque<Verification> verifying, int maxPending, BitSet inFlight,
+                                    PieceContainer container, PieceAvailability availability, BitSet peerPieces)
+            throws IOException {
+        while (!verifying.isEmpty() && (verifying.size() > maxPending || verifying.peek().result().isDone())) {
+            Verification verification = verifying.remove();
+            inFlight.clear(verification.pieceId());
+            boolean valid;
+            try {
+                valid = verification.result().join();
+            } catch (CompletionException e) {
+                container.releasePiece(verification.pieceId());
+                if (e.getCause() instanceof UncheckedIOException unchecked)
+                    throw unchecked.getCause();
+                throw new DownloadException("Adding piece " + verification.pieceId() + " of "
+                        + container.getFilename() + " failed", e.getCause());
+            }
+            if (!valid) {
+                logger.warn("Piece {} of {} from peer at {} is corrupt", verification.pieceId(),
+                        container.getFilename(), address);
+                abandonPiece(verification.pieceId(), container, availability, peerPieces);
+            }
+        }
+    }
+
+    // removes and returns the outstanding request the response answers
+    private static Request matchRequest(Message message, Map<Integer, Request> outstanding) throws ProtocolException {
+        if (message instanceof PieceMessage piece) {
+            Request request = outstanding.remove(piece.getPieceId());
+            if (request == null)
+                throw new ProtocolException("Received piece " + piece.getPieceId() + " which was not requested");
+            return request;
+        }
+        if (message.getType() != MessageType.END)
+            throw new ProtocolException("Expected PIECE or END but received " + message.getType());
+        Iterator<Request> oldest = outstanding.values().iterator();
+        Request request = oldest.next();
+        oldest.remove();
+        return request;
+    }
+
+    // leaves the piece to be downloaded from another peer
+    private static void abandonPiece(int pieceId, PieceContainer container, PieceAvailability availability,
+                                     BitSet peerPieces) {
+        container.releasePiece(pieceId);
+        if (!peerPieces.get(pieceId))
+            return;
+        BitSet abandoned = new BitSet();
+        abandoned.set(pieceId);
+        availability.remove(abandoned);
+        peerPieces.clear(pieceId);
+    }
+
+    // true if the peer is the only one holding some piece that is still needed
+    private static boolean holdsUniquePieces(PieceContainer container, PieceAvailability availability,
+                                             BitSet peerPieces) {
+        BitSet needed = (BitSet) peerPieces.clone();
+        needed.andNot(container.getHeldPieces());
+        return availability.anyUnique(needed);
+    }
+
+    private BitSet requestBitfield(String filename, MessageOutputStream out, MessageInputStream in,
+                                   ReentrantLock writeLock) throws IOException {
+        writeLock.lock();
+        try {
+            out.writeMessage(new RequestBitfieldMessage(filename, peerService.getServerAddress()));
+        } finally {
+            writeLock.unlock();
+        }
+        Message message = readPatiently(in);
+        if (!(message instanceof BitfieldMessage bitfield))
+            throw new ProtocolException("Expected BITFIELD but received " + message.getType());
+        return bitfield.getPieces();
+    }
+
+    // reads the next message, waiting through read timeouts for up to MAX_SILENCE_NANOS
+    private static Message readPatiently(MessageInputStream in) throws IOException {
+        long startedAt = System.nanoTime();
+        while (true) {
+            try {
+                return in.readMessage();
+            } catch (SocketTimeoutException e) {
+                if (System.nanoTime() - startedAt >= MAX_SILENCE_NANOS)
+                    throw e;
+            }
+        }
+    }
+
+    private record Request(int pieceId, long sentAt) {
+    }
 
+    private record Verification(int pieceId, CompletableFuture<Boolean> result) {
     }
 }
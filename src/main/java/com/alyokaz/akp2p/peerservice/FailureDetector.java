@@ -0,0 +1,159 @@
+package com.alyokaz.akp2p.peerservice;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class judges whether peers are still live from the heartbeats received from them, with the phi accrual
+ * method of Hayashibara et al.
+ * <p>
+ * Rather than declaring a peer dead once a fixed timeout has passed, the time since its last heartbeat is weighed
+ * against the intervals between its recent heartbeats, which are taken to be normally distributed. The result,
+ * phi, is the negative base 10 logarithm of the chance that a heartbeat that late would still arrive, so a phi of 8
+ * means a one in a hundred million chance that a live peer is judged dead. A peer whose heartbeats are regular is
+ * judged quickly, while one whose heartbeats are irregular, from a lossy or busy link, is given longer. A pause of
+ * up to {@link #ACCEPTABLE_PAUSE_NANOS} beyond the usual interval is always allowed for, so that a few lost pings
+ * do not cost a healthy peer its place.
+ * <p>
+ * The interval heartbeats are expected at may be raised while the detector is in use, as when each peer is pinged
+ * less often because there are more of them. The mean interval of a peer is never taken to be shorter than the
+ * interval expected, so that a peer is not judged late by the heartbeats it sent while it was pinged more often.
+ */
+public class FailureDetector {
+
+    /**
+     * The phi above which a peer is judged to have failed.
+     */
+    public static final double PHI_THRESHOLD = 8;
+
+    /**
+     * The number of the most recent intervals between heartbeats the distribution is taken from.
+     */
+    public static final int WINDOW_SIZE = 100;
+
+    /**
+     * The lowest standard deviation, in nanoseconds, assumed for the intervals, so that a peer whose heartbeats
+     * have been very regular is not judged dead the moment one is slightly late.
+     */
+    public static final long MIN_STD_DEVIATION_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The pause, in nanoseconds, beyond the mean interval that is always allowed for.
+     */
+    public static final long ACCEPTABLE_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    private volatile long expectedIntervalNanos;
+    private final Map<InetSocketAddress, History> histories = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a {@code FailureDetector} for heartbeats sent at the given interval.
+     *
+     * @param expectedIntervalNanos the interval, in nanoseconds, heartbeats are expected at, taken as the
+     *                              distribution of a peer until its heartbeats have been measured
+     */
+    public FailureDetector(long expectedIntervalNanos) {
+        this.expectedIntervalNanos = expectedIntervalNanos;
+    }
+
+    /**
+     * Sets the interval heartbeats are expected at from now on.
+     *
+     * @param expectedIntervalNanos the interval, in nanoseconds, heartbeats are expected at
+     */
+    public void setExpectedInterval(long expectedIntervalNanos) {
+        this.expectedIntervalNanos = expectedIntervalNanos;
+    }
+
+    /**
+     * Records a heartbeat from the given peer.
+     *
+     * @param address the address of the peer
+     * @param nanos   the time, from {@code System.nanoTime()}, the heartbeat arrived
+     */
+    public void heartbeat(InetSocketAddress address, long nanos) {
+        histories.computeIfAbsent(address, a -> new History(expectedIntervalNanos, nanos)).heartbeat(nanos);
+    }
+
+    /**
+     * Returns the suspicion that the given peer has failed.
+     *
+     * @param address the address of the peer
+     * @param nanos   the current time, from {@code System.nanoTime()}
+     * @return the phi of the peer, or 0 if no heartbeat has been received from it
+     */
+    public double phi(InetSocketAddress address, long nanos) {
+        History history = histories.get(address);
+        return history == null ? 0 : history.phi(nanos, expectedIntervalNanos);
+    }
+
+    /**
+     * Returns true if the phi of the given peer is above {@link #PHI_THRESHOLD}.
+     *
+     * @param address the address of the peer
+     * @param nanos   the current time, from {@code System.nanoTime()}
+     * @return true if the peer is judged to have failed
+     */
+    public boolean hasFailed(InetSocketAddress address, long nanos) {
+        return phi(address, nanos) > PHI_THRESHOLD;
+    }
+
+    /**
+     * Forgets the heartbeats of the given peer.
+     *
+     * @param address the address of the peer
+     */
+    public void remove(InetSocketAddress address) {
+        histories.remove(address);
+    }
+
+    private static class History {
+        private final long[] intervals = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private double sum;
+        private double sumOfSquares;
+        private long lastHeartbeat;
+
+        // seeded with two intervals either side of the expected one, so that phi is meaningful from the start
+        private History(long expectedIntervalNanos, long firstHeartbeat) {
+            long deviation = expectedIntervalNanos / 4;
+            add(expectedIntervalNanos - deviation);
+            add(expectedIntervalNanos + deviation);
+            lastHeartbeat = firstHeartbeat;
+        }
+
+        private synchronized void heartbeat(long nanos) {
+            long interval = nanos - lastHeartbeat;
+            if (interval <= 0)
+                return;
+            add(interval);
+            lastHeartbeat = nanos;
+        }
+
+        private synchronized double phi(long nanos, long expectedIntervalNanos) {
+            double measured = sum / count;
+            double variance = Math.max(0, sumOfSquares / count - measured * measured);
+            double mean = Math.max(measured, expectedIntervalNanos);
+            double deviation = Math.max(Math.sqrt(variance), MIN_STD_DEVIATION_NANOS);
+            double y = (nanos - lastHeartbeat - mean - ACCEPTABLE_PAUSE_NANOS) / deviation;
+            // a logistic approximation of the cumulative distribution function of the normal distribution
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+
+        private void add(long interval) {
+            if (count == WINDOW_SIZE) {
+                sum -= intervals[next];
+                sumOfSquares -= (double) intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW_SIZE;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+    }
+}
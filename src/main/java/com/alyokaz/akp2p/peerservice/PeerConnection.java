@@ -0,0 +1,126 @@
+package com.alyokaz.akp2p.peerservice;
+
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageInputStream;
+import com.alyokaz.akp2p.server.message.MessageOutputStream;
+import com.alyokaz.akp2p.server.message.MessageType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a long-lived connection to a single peer, over which any number of requests can be sent, one at a
+ * time, each followed by its response.
+ * <p>
+ * Opening the connection, and waiting for each response, give up after a timeout, so that a peer that has gone
+ * silent cannot hold up the thread asking it indefinitely.
+ */
+public class PeerConnection implements Closeable {
+
+    /**
+     * How long, in milliseconds, opening a connection waits for the peer to accept it.
+     */
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * How long, in milliseconds, a request waits for the peer to respond.
+     */
+    public static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final MessageInputStream in;
+    private final MessageOutputStream out;
+    // held by a request until its response has been read
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private PeerConnection(InetSocketAddress address, Socket socket) throws IOException {
+        this.address = address;
+        this.socket = socket;
+        this.in = new MessageInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new MessageOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Opens a connection to the peer at the given address.
+     *
+     * @param address the address of the peer
+     * @return a {@code PeerConnection} to the peer
+     * @throws IOException if the connection could not be opened
+     */
+    public static PeerConnection open(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address.isUnresolved()
+                    ? new InetSocketAddress(address.getHostString(), address.getPort()) : address,
+                    CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            return new PeerConnection(address, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the given request to the peer and waits for its response.
+     *
+     * @param request the request to send
+     * @return the response from the peer
+     * @throws IOException if the request could not be sent or the response could not be read, including when the
+     *                     peer does not respond within {@link #READ_TIMEOUT_MILLIS}
+     */
+    public Message request(Message request) throws IOException {
+        lock.lock();
+        try {
+            out.writeMessage(request);
+            return in.readMessage();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the address of the peer.
+     *
+     * @return the address of the peer
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns true if the connection has been closed.
+     *
+     * @return true if the connection has been closed
+     */
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /**
+     * Tells the peer the connection is ending and closes it.
+     * <p>
+     * If a request is waiting on a response the socket is closed straight away instead, which ends the request with
+     * an {@code IOException}, rather than waiting for the peer to respond.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!lock.tryLock()) {
+            socket.close();
+            return;
+        }
+        try (socket) {
+            if (!socket.isClosed())
+                out.writeMessage(new Message(MessageType.END, null));
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.alyokaz.akp2p.peerservice;
+
+import com.alyokaz.akp2p.server.message.Message;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps a {@code PeerConnection} open to each peer it is asked to contact, so that repeated requests to
+ * the same peer do not each pay for setting up a new connection.
+ */
+public class PeerConnectionPool {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Map<InetSocketAddress, PeerConnection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Sends the given request to the peer at the given address, over the pooled connection to that peer, and waits
+     * for its response.
+     * <p>
+     * A connection is opened if the pool does not yet hold one for the peer. If a pooled connection turns out to have
+     * been closed by the peer, the request is retried once over a new connection, unless the peer simply did not
+     * respond in time.
+     *
+     * @param address the address of the peer
+     * @param request the request to send
+     * @return the response from the peer
+     * @throws IOException if the request could not be sent or the response could not be read
+     */
+    public Message request(InetSocketAddress address, Message request) throws IOException {
+        PeerConnection pooled = connections.get(address);
+        if (pooled != null) {
+            try {
+                return pooled.request(request);
+            } catch (SocketTimeoutException e) {
+                // the peer is connected but not responding, which a new connection would not change
+                discard(pooled);
+                throw e;
+            } catch (IOException e) {
+                logger.debug("Pooled connection to {} failed with {}, reconnecting", address, e.getMessage());
+                discard(pooled);
+            }
+        }
+
+        PeerConnection connection = connect(address);
+        try {
+            return connection.request(request);
+        } catch (IOException e) {
+            discard(connection);
+            throw e;
+        }
+    }
+
+    private PeerConnection connect(InetSocketAddress address) throws IOException {
+        // the connection is opened outside of the map, so that connecting does not hold up other peers' requests
+        PeerConnection connection = PeerConnection.open(address);
+        while (true) {
+            PeerConnection existing = connections.putIfAbsent(address, connection);
+            if (existing == null)
+                return connection;
+            // another thread may have connected to the peer first
+            if (!existing.isClosed()) {
+                closeQuietly(connection);
+                return existing;
+            }
+            if (connections.replace(address, existing, connection))
+                return connection;
+        }
+    }
+
+    /**
+     * Closes and removes the pooled connection to the peer at the given address, if there is one.
+     *
+     * @param address the address of the peer
+     */
+    public void close(InetSocketAddress address) {
+        PeerConnection connection = connections.remove(address);
+        if (connection != null)
+            closeQuietly(connection);
+    }
+
+    /**
+     * Closes and removes every pooled connection.
+     */
+    public void closeAll() {
+        connections.keySet().forEach(this::close);
+    }
+
+    private void discard(PeerConnection connection) {
+        connections.remove(connection.getAddress(), connection);
+        closeQuietly(connection);
+    }
+
+    private void closeQuietly(PeerConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.debug("Closing connection to {} failed with {}", connection.getAddress(), e.getMessage());
+        }
+    }
+}
@@ -1,55 +1,143 @@
 package com.alyokaz.akp2p.peerservice;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 import com.alyokaz.akp2p.peerservice.exceptions.ContactBeaconException;
 import com.alyokaz.akp2p.peerservice.exceptions.DiscoverPeersException;
 import com.alyokaz.akp2p.peerservice.exceptions.PingPeerException;
 import com.alyokaz.akp2p.peerservice.tasks.DiscoverPeersTask;
-import com.alyokaz.akp2p.pingserver.PingServer;
-import com.alyokaz.akp2p.server.message.BeaconMessage;
-import com.alyokaz.akp2p.server.message.MessageType;
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageInputStream;
+import com.alyokaz.akp2p.server.message.MessageOutputStream;
+import com.alyokaz.akp2p.server.message.PeersMessage;
+import com.alyokaz.akp2p.server.message.RequestPeersMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 /**
  * Service class for dealing with peer related logic,
  */
 public class PeerService {
+
+    /**
+     * The most live peers contacted in a single round of peer discovery.
+     */
+    public static final int GOSSIP_FANOUT = 4;
+
+    /**
+     * The most peers asked of a {@code Beacon} when contacting it.
+     */
+    public static final int BEACON_SAMPLE_SIZE = 32;
+
+    /**
+     * How often, in milliseconds, a round of heartbeats is run.
+     */
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The most live peers pinged in a single round of heartbeats.
+     */
+    public static final int MAX_HEARTBEATS_PER_ROUND = 32;
+
+    /**
+     * The number of heartbeat rounds between pings of the peers not known to be live, to find any that have
+     * recovered.
+     */
+    public static final int RECHECK_ROUNDS = 10;
+
+    /**
+     * How long, in milliseconds, a peer that is not known to be live is kept in the hope that it recovers.
+     */
+    public static final long SUSPECT_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
     private static final Logger logger = LogManager.getLogger();
     private final Set<InetSocketAddress> peers = Collections.synchronizedSet(new HashSet<>());
-    private final Set<InetSocketAddress> livePeers = new HashSet<>();
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final PeerTable livePeers = new PeerTable();
+    // the version of each live peer's table last received from it
+    private final Map<InetSocketAddress, Long> gossipVersions = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
     private final Set<InetSocketAddress> excluded = new HashSet<>();
+    private final PeerConnectionPool connectionPool = new PeerConnectionPool();
+    private final PingClient pingClient;
+    // the peers being pinged by addPeer, guarded by addPeerLock along with peers. Only the bookkeeping is done
+    // under the lock, the pings themselves are sent and awaited outside it.
+    private final Map<InetSocketAddress, CompletableFuture<Boolean>> addingPeers = new HashMap<>();
+    private final ReentrantLock addPeerLock = new ReentrantLock();
+    private final FailureDetector failureDetector =
+            new FailureDetector(TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL_MILLIS));
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "peer-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong heartbeatRounds = new AtomicLong();
+    // the live peers still to be pinged in the current turn, guarded by itself
+    private final Deque<InetSocketAddress> heartbeatQueue = new ArrayDeque<>();
+    // when each peer not known to be live was first rechecked
+    private final Map<InetSocketAddress, Long> suspectedSince = new ConcurrentHashMap<>();
     private InetSocketAddress serverAddress;
 
     public PeerService() {
+        this(ExecutorStrategy.getDefault());
     }
 
     /**
-     * Attempts to discover new peers by contacting all known live peers
-     * and requesting the address of all known live peers that peer holds.
+     * Constructs a new {@code PeerService} that runs its tasks on the threads of the given {@code ExecutorStrategy}.
+     *
+     * @param executorStrategy the {@code ExecutorStrategy} for the tasks of this service
+     */
+    public PeerService(ExecutorStrategy executorStrategy) {
+        this.executor = executorStrategy.newExecutor();
+        try {
+            this.pingClient = new PingClient(executor);
+        } catch (SocketException e) {
+            executor.shutdownNow();
+            throw new UncheckedIOException("Opening ping socket failed", e);
+        }
+    }
+
+    /**
+     * Attempts to discover new peers by contacting up to {@link #GOSSIP_FANOUT} known live peers, chosen at random,
+     * and requesting the addresses of the live peers each has learned of since it was last contacted.
      *
      * @throws PingPeerException
      */
     public void discoverPeers() throws PingPeerException {
+        List<InetSocketAddress> candidates = new ArrayList<>(livePeers.getAddresses());
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
         Set<Future<?>> futures = new HashSet<>();
-        livePeers.forEach(address ->
+        candidates.stream().limit(GOSSIP_FANOUT).forEach(address ->
                 futures.add(executor.submit(new DiscoverPeersTask(address, this, serverAddress))));
 
         futures.forEach(future -> {
@@ -67,75 +155,341 @@ public class PeerService {
      * @param address address of peer to add
      * @return true if peer is added to live peers
      */
-    public synchronized boolean addPeer(InetSocketAddress address) {
-        if (excluded.contains(address) || !peers.add(address))
-            return false;
-        if (pingPeer(address)) {
-            livePeers.add(address);
-            peers.remove(address);
-            return true;
-        } else
-            return false;
+    public boolean addPeer(InetSocketAddress address) {
+        return addPeerAsync(address).join();
     }
 
+    /**
+     * Pings the peer at the given address and adds it to the live peers if it responds, without waiting for the
+     * ping. A peer already being pinged is not pinged again, the ping under way is shared instead.
+     *
+     * @param address address of peer to add
+     * @return a future completed with true if the peer is added to the live peers
+     */
+    public CompletableFuture<Boolean> addPeerAsync(InetSocketAddress address) {
+        CompletableFuture<Boolean> result;
+        addPeerLock.lock();
+        try {
+            if (address == null || excluded.contains(address))
+                return CompletableFuture.completedFuture(false);
+            CompletableFuture<Boolean> adding = addingPeers.get(address);
+            if (adding != null)
+                return adding;
+            if (!peers.add(address))
+                return CompletableFuture.completedFuture(false);
+            result = pingClient.ping(address).handle((roundTripNanos, e) -> {
+                if (e != null) {
+                    logger.error("Ping for peer at {} failed with {}", address, e.getClass().getSimpleName());
+                    return false;
+                }
+                failureDetector.heartbeat(address, System.nanoTime());
+                livePeers.add(address);
+                addPeerLock.lock();
+                try {
+                    peers.remove(address);
+                    suspectedSince.remove(address);
+                } finally {
+                    addPeerLock.unlock();
+                }
+                return true;
+            });
+            addingPeers.put(address, result);
+        } finally {
+            addPeerLock.unlock();
+        }
+        result.whenComplete((added, e) -> {
+            addPeerLock.lock();
+            try {
+                addingPeers.remove(address, result);
+            } finally {
+                addPeerLock.unlock();
+            }
+        });
+        return result;
+    }
 
     /**
-     * Attempts to ping the peer at the given address
+     * Pings each of the peers at the given addresses in a single round, and adds those that respond to the live
+     * peers.
      *
-     * @param address the address of the peer to ping
-     * @return {@code true} if peer is successfully pinged.
+     * @param addresses the addresses of the peers to add
+     * @return the addresses of the peers added to the live peers
      */
-    private boolean pingPeer(InetSocketAddress address) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            byte[] buf = PingServer.PING_PAYLOAD.getBytes();
-            DatagramPacket packet = new DatagramPacket(buf, buf.length, address.getAddress(), address.getPort());
-            socket.send(packet);
+    public Set<InetSocketAddress> addPeers(Collection<InetSocketAddress> addresses) {
+        Map<InetSocketAddress, CompletableFuture<Boolean>> results = new HashMap<>();
+        addresses.forEach(address -> results.computeIfAbsent(address, this::addPeerAsync));
+        return results.entrySet().stream()
+                .filter(entry -> entry.getValue().join())
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
 
-            buf = new byte[PingServer.BUFFER_SIZE];
-            packet = new DatagramPacket(buf, buf.length);
-            socket.setSoTimeout(1000);
-            socket.receive(packet);
+    /**
+     * Returns the version of the given peer's table last received from it, to ask it for only what has changed
+     * since.
+     *
+     * @param address the address of the peer
+     * @return the version last received, or 0 if nothing has been received from the peer
+     */
+    public long getGossipVersion(InetSocketAddress address) {
+        return gossipVersions.getOrDefault(address, 0L);
+    }
 
-            String payload = new String(packet.getData(), StandardCharsets.UTF_8).trim();
-            return (payload.equals(PingServer.PONG_PAYLOAD));
-        } catch (IllegalArgumentException e) {
-            logger.error("Ping timed out for {}", address);
-            return false;
-        } catch (IOException e) {
-            logger.error("Ping for peer at {} failed", address);
-            return false;
-        }
+    /**
+     * Handles the peers received from the given peer in reply to a request for its changes. The version of its
+     * table is recorded, and those of the peers that are not already known to be live are pinged and added.
+     *
+     * @param address the address of the peer the reply came from
+     * @param reply   the reply from the peer
+     * @return the addresses of the peers added to the live peers
+     */
+    public Set<InetSocketAddress> addGossipedPeers(InetSocketAddress address, PeersMessage reply) {
+        if (livePeers.contains(address))
+            gossipVersions.put(address, reply.getVersion());
+        Set<InetSocketAddress> unknown = reply.getPeers().stream()
+                .filter(peer -> !livePeers.contains(peer))
+                .collect(Collectors.toSet());
+        return addPeers(unknown);
     }
 
     /**
-     * Attempts to contact the {@code Beacon} at the supplied address.
+     * Returns the live peers added since the given version of this node's peer table.
+     *
+     * @param sinceVersion the version last received by the requesting peer, or 0 for every live peer
+     * @param limit        the most peers to return, or 0 for no limit
+     * @return the changes since the given version
+     */
+    public PeerTable.Changes getLivePeerChanges(long sinceVersion, int limit) {
+        return livePeers.changesSince(sinceVersion, limit);
+    }
+
+    /**
+     * Pings the peer at the given address without waiting for the pong.
+     *
+     * @param address the address of the peer
+     * @return a future completed with the round trip time in nanoseconds, or exceptionally if the peer did not
+     * respond in time
+     */
+    public CompletableFuture<Long> ping(InetSocketAddress address) {
+        return pingClient.ping(address);
+    }
+
+    /**
+     * Attempts to contact the {@code Beacon} at the supplied address, and adds a random sample of up to
+     * {@link #BEACON_SAMPLE_SIZE} of the peers registered with it. The rest of the network is then found by
+     * gossiping with those peers.
      *
      * @param serverAddress the address given to register with the {@code beacon}
      * @param beaconAddress the address of the {@code Beacon}
      */
     public void contactBeacon(InetSocketAddress serverAddress, InetSocketAddress beaconAddress) {
-        try (Socket socket = new Socket(beaconAddress.getHostName(), beaconAddress.getPort());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        contactBeacon(serverAddress, List.of(beaconAddress));
+    }
 
-            out.writeObject(new BeaconMessage(MessageType.REQUEST_PEERS, serverAddress));
-            Object obj = in.readObject();
-            ((List<InetSocketAddress>) obj).forEach(this::addPeer);
+    /**
+     * Attempts to contact one of the {@code Beacon}s of a cluster at the supplied addresses, as
+     * {@link #contactBeacon(InetSocketAddress, InetSocketAddress)} does.
+     * <p>
+     * Every {@code Beacon} is pinged, and the first to answer is contacted. Should that fail, the others are tried
+     * in order of their round trip times, followed by any that did not answer the ping, as their UDP port may simply
+     * be unreachable. A {@code Beacon} that does not accept the connection within
+     * {@link PeerConnection#CONNECT_TIMEOUT_MILLIS}, or answer within {@link PeerConnection#READ_TIMEOUT_MILLIS}, has
+     * failed.
+     *
+     * @param serverAddress   the address given to register with the {@code beacon}
+     * @param beaconAddresses the addresses of the {@code Beacon}s
+     * @throws ContactBeaconException if no {@code Beacon} could be contacted
+     */
+    public void contactBeacon(InetSocketAddress serverAddress, List<InetSocketAddress> beaconAddresses) {
+        Map<InetSocketAddress, CompletableFuture<Long>> pings = pingClient.pingAll(beaconAddresses);
+        CompletableFuture<InetSocketAddress> fastest = new CompletableFuture<>();
+        pings.forEach((address, ping) -> ping.thenRun(() -> fastest.complete(address)));
+        CompletableFuture<Void> allPinged = CompletableFuture.allOf(pings.values().toArray(CompletableFuture[]::new))
+                .handle((result, e) -> null);
+        allPinged.thenRun(() -> fastest.complete(null));
+
+        List<IOException> failures = new ArrayList<>();
+        InetSocketAddress first = fastest.join();
+        if (first != null && tryContactBeacon(serverAddress, first, failures))
+            return;
+        allPinged.join();
+        List<InetSocketAddress> remaining = pings.keySet().stream()
+                .filter(address -> !address.equals(first))
+                .sorted(Comparator.comparingLong(address -> roundTripOrMax(pings.get(address))))
+                .toList();
+        for (InetSocketAddress address : remaining) {
+            if (tryContactBeacon(serverAddress, address, failures))
+                return;
+        }
+        ContactBeaconException exception = new ContactBeaconException("Contacting Beacon failed",
+                failures.isEmpty() ? null : failures.get(0));
+        failures.stream().skip(1).forEach(exception::addSuppressed);
+        throw exception;
+    }
+
+    private boolean tryContactBeacon(InetSocketAddress serverAddress, InetSocketAddress beaconAddress,
+                                     List<IOException> failures) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(beaconAddress.getHostName(), beaconAddress.getPort()),
+                    PeerConnection.CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(PeerConnection.READ_TIMEOUT_MILLIS);
+            MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            MessageInputStream in = new MessageInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeMessage(new RequestPeersMessage(0, BEACON_SAMPLE_SIZE, serverAddress));
+            Message message = in.readMessage();
+            if (!(message instanceof PeersMessage peers))
+                throw new ProtocolException("Unexpected " + message.getType() + " reply from Beacon");
+            addPeers(peers.getPeers().stream().filter(peer -> !livePeers.contains(peer)).toList());
+            return true;
+
+        } catch (IOException e) {
+            logger.error("Contacting Beacon at {} failed with {}", beaconAddress, e.getMessage());
+            failures.add(e);
+            return false;
+        }
+    }
+
+    // the round trip time of a finished ping, or Long.MAX_VALUE if it failed
+    private static long roundTripOrMax(CompletableFuture<Long> ping) {
+        return ping.isCompletedExceptionally() ? Long.MAX_VALUE : ping.join();
+    }
+
+    /**
+     * Starts running a round of heartbeats each {@link #HEARTBEAT_INTERVAL_MILLIS} in the background.
+     * <p>
+     * The live peers are pinged in turn, up to {@link #MAX_HEARTBEATS_PER_ROUND} of them each round, so every live
+     * peer is pinged each round in a small network, while in a large one each is pinged less often rather than the
+     * pings growing with its size. Each pong is a heartbeat for the {@code FailureDetector}, which is told how often
+     * each peer is being pinged, and after each round the peers it judges to have failed are removed from the live
+     * peers. Every {@link #RECHECK_ROUNDS} rounds the peers not known to be live are pinged as well, and those that
+     * answer are returned to the live peers. A peer that has not answered for {@link #SUSPECT_EXPIRY_MILLIS} is
+     * forgotten.
+     */
+    public void startHeartbeats() {
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a single round of heartbeats, without waiting for the pongs. The pongs are counted in later rounds.
+     */
+    public void heartbeat() {
+        synchronized (heartbeatQueue) {
+            if (heartbeatQueue.isEmpty()) {
+                Set<InetSocketAddress> live = Set.copyOf(livePeers.getAddresses());
+                int rounds = Math.max(1, (live.size() + MAX_HEARTBEATS_PER_ROUND - 1) / MAX_HEARTBEATS_PER_ROUND);
+                failureDetector.setExpectedInterval(TimeUnit.MILLISECONDS.toNanos(rounds * HEARTBEAT_INTERVAL_MILLIS));
+                heartbeatQueue.addAll(live);
+            }
+            for (int pinged = 0; pinged < MAX_HEARTBEATS_PER_ROUND && !heartbeatQueue.isEmpty(); ) {
+                InetSocketAddress address = heartbeatQueue.remove();
+                if (!livePeers.contains(address))
+                    continue;
+                // a pong arriving after the peer was removed must not bring back its history
+                pingClient.ping(address).thenRun(() -> {
+                    if (livePeers.contains(address))
+                        failureDetector.heartbeat(address, System.nanoTime());
+                });
+                pinged++;
+            }
+        }
+        if (heartbeatRounds.getAndIncrement() % RECHECK_ROUNDS == 0)
+            recheckSuspects();
+
+        long now = System.nanoTime();
+        for (InetSocketAddress address : livePeers.getAddresses()) {
+            if (failureDetector.hasFailed(address, now)) {
+                logger.info("Peer at {} failed, phi {}", address, failureDetector.phi(address, now));
+                removeFromLivePeers(address);
+            }
+        }
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
-            throw new ContactBeaconException("Contacting Beacon failed", e);
+    /**
+     * Reports that a request to the peer at the given address failed.
+     * <p>
+     * A single failure may just be a hiccup, so rather than being removed straight away the peer is pinged, and only
+     * removed from the live peers if it does not answer. Its pooled connection is closed either way. The ping is not
+     * waited for.
+     *
+     * @param address the address of the peer
+     * @return a future completed with true if the peer was removed from the live peers
+     */
+    public CompletableFuture<Boolean> reportFailure(InetSocketAddress address) {
+        connectionPool.close(address);
+        return pingClient.ping(address).handle((roundTripNanos, e) -> {
+            if (e == null) {
+                if (livePeers.contains(address))
+                    failureDetector.heartbeat(address, System.nanoTime());
+                return false;
+            }
+            removeFromLivePeers(address);
+            return true;
+        });
+    }
+
+    /**
+     * Returns the suspicion that the live peer at the given address has failed.
+     *
+     * @param address the address of the peer
+     * @return the phi of the peer, or 0 if it has not been heard from
+     */
+    public double getSuspicion(InetSocketAddress address) {
+        return failureDetector.phi(address, System.nanoTime());
+    }
+
+    // pings the peers not known to be live, forgetting those that have not answered for SUSPECT_EXPIRY_MILLIS
+    private void recheckSuspects() {
+        Set<InetSocketAddress> suspects;
+        synchronized (peers) {
+            suspects = Set.copyOf(peers);
+        }
+        long now = System.nanoTime();
+        long expiry = TimeUnit.MILLISECONDS.toNanos(SUSPECT_EXPIRY_MILLIS);
+        for (InetSocketAddress address : suspects) {
+            if (now - suspectedSince.computeIfAbsent(address, a -> now) < expiry) {
+                pingClient.ping(address).thenRun(() -> restoreLivePeer(address));
+                continue;
+            }
+            addPeerLock.lock();
+            try {
+                if (addingPeers.containsKey(address))
+                    continue;
+                peers.remove(address);
+                suspectedSince.remove(address);
+            } finally {
+                addPeerLock.unlock();
+            }
+            logger.info("Forgot peer at {}, which has not answered for {} ms", address, SUSPECT_EXPIRY_MILLIS);
+        }
+    }
+
+    // returns a peer that answered a ping to the live peers, unless it is being added by addPeer
+    private void restoreLivePeer(InetSocketAddress address) {
+        addPeerLock.lock();
+        try {
+            if (addingPeers.containsKey(address) || !peers.remove(address))
+                return;
+            suspectedSince.remove(address);
+            failureDetector.heartbeat(address, System.nanoTime());
+            livePeers.add(address);
+        } finally {
+            addPeerLock.unlock();
         }
+        logger.info("Peer at {} is live again", address);
     }
 
     /**
      * {@return a {@code Set} of addresses of peers currently know to be live}
      */
     public Set<InetSocketAddress> getLivePeers() {
-        return Collections.unmodifiableSet(this.livePeers);
+        return livePeers.getAddresses();
     }
 
     /**
-     * {@return a {@code Set} of peer addresses not currently know to be live}
+     * {@return a {@code Set} of peer addresses not currently know to be live, each held for up to
+     * {@link #SUSPECT_EXPIRY_MILLIS}}
      */
     public Set<InetSocketAddress> getPeers() {
         return Collections.unmodifiableSet(this.peers);
@@ -149,7 +503,34 @@ public class PeerService {
      */
     public void removeFromLivePeers(InetSocketAddress address) {
         livePeers.remove(address);
+        failureDetector.remove(address);
+        gossipVersions.remove(address);
         peers.add(address);
+        connectionPool.close(address);
+    }
+
+    /**
+     * Sends the given request to the peer at the given address and waits for its response.
+     * <p>
+     * The connection to the peer is kept open and reused for later requests to the same peer.
+     *
+     * @param address the address of the peer
+     * @param request the request to send
+     * @return the response from the peer
+     * @throws IOException if the request could not be sent or the response could not be read
+     */
+    public Message request(InetSocketAddress address, Message request) throws IOException {
+        return connectionPool.request(address, request);
+    }
+
+    /**
+     * Closes the connections held open to peers and stops the threads of this service.
+     */
+    public void shutdown() {
+        heartbeats.shutdownNow();
+        pingClient.close();
+        connectionPool.closeAll();
+        executor.shutdownNow();
     }
 
     /**
@@ -0,0 +1,122 @@
+package com.alyokaz.akp2p.peerservice;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * This class holds the addresses of the peers known to be live, each stamped with the version of the table it was
+ * added at.
+ * <p>
+ * The version of the table goes up by one with every peer added, so a peer that has been sent the table at some
+ * version only needs the peers added since then to catch up. Removing a peer does not change the version, as each
+ * node decides for itself which of its peers are live. The table may be read, including iterated over, while it is
+ * being changed.
+ */
+public class PeerTable {
+
+    private final Map<InetSocketAddress, Long> peers = new ConcurrentHashMap<>();
+    // guarded by this, so that a peer is never stamped with a version that has already been handed out
+    private long version;
+
+    /**
+     * Adds the given peer to the table, unless it is already there.
+     *
+     * @param address the address of the peer
+     * @return true if the peer was added
+     */
+    public synchronized boolean add(InetSocketAddress address) {
+        if (peers.containsKey(address))
+            return false;
+        peers.put(address, ++version);
+        return true;
+    }
+
+    /**
+     * Removes the given peer from the table.
+     *
+     * @param address the address of the peer
+     * @return true if the peer was in the table
+     */
+    public synchronized boolean remove(InetSocketAddress address) {
+        return peers.remove(address) != null;
+    }
+
+    /**
+     * Returns true if the given peer is in the table.
+     *
+     * @param address the address of the peer
+     * @return true if the peer is in the table, or false if the address is {@code null}
+     */
+    public boolean contains(InetSocketAddress address) {
+        return address != null && peers.containsKey(address);
+    }
+
+    /**
+     * Returns the current version of the table.
+     *
+     * @return the current version of the table
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the peers added after the given version along with the current version, which should be passed in
+     * here the next time. A version later than the current one, as held by a peer that knew this table before its
+     * node restarted, is answered with every peer.
+     *
+     * @param since the version of the table last seen, or 0 for every peer
+     * @return the changes since the given version
+     */
+    public synchronized Changes changesSince(long since) {
+        long from = since > version ? 0 : since;
+        Set<InetSocketAddress> added = peers.entrySet().stream()
+                .filter(entry -> entry.getValue() > from)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toUnmodifiableSet());
+        return new Changes(added, version);
+    }
+
+    /**
+     * Returns the peers added after the given version, as {@link #changesSince(long)} does, but no more than the
+     * given number of them. When there are more, a random sample of them is returned along with the given version
+     * rather than the current one, so that the rest are still sent the next time.
+     *
+     * @param since the version of the table last seen, or 0 for every peer
+     * @param limit the most peers to return, or 0 for no limit
+     * @return the changes since the given version
+     */
+    public Changes changesSince(long since, int limit) {
+        Changes changes = changesSince(since);
+        if (limit <= 0 || changes.added().size() <= limit)
+            return changes;
+        List<InetSocketAddress> added = new ArrayList<>(changes.added());
+        Collections.shuffle(added, ThreadLocalRandom.current());
+        return new Changes(Set.copyOf(added.subList(0, limit)), Math.min(since, changes.version()));
+    }
+
+    /**
+     * Returns a read only view of the addresses in the table.
+     *
+     * @return a read only view of the addresses in the table
+     */
+    public Set<InetSocketAddress> getAddresses() {
+        return Collections.unmodifiableSet(peers.keySet());
+    }
+
+    /**
+     * The peers added to a {@code PeerTable} since some version.
+     *
+     * @param added   the addresses of the peers added
+     * @param version the version of the table the changes bring a peer up to
+     */
+    public record Changes(Set<InetSocketAddress> added, long version) {
+    }
+}
@@ -0,0 +1,159 @@
+package com.alyokaz.akp2p.peerservice;
+
+import com.alyokaz.akp2p.pingserver.PingServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class pings the {@code PingServer}s of peers over a single long-lived UDP socket.
+ * <p>
+ * Each ping carries a nonce, which the {@code PingServer} echoes back in its pong. A single thread receives every
+ * pong on the socket and matches it to its ping by the nonce, so any number of pings may be outstanding at once and
+ * their pongs may arrive in any order. Each ping resolves to its round trip time, or fails if no pong arrives within
+ * {@link #TIMEOUT_MILLIS}.
+ * <p>
+ * The nonces are drawn at random and a pong is only accepted from the address its ping was sent to, so that a peer
+ * cannot answer for another peer that has gone down. A ping to the wildcard address, which reaches this host, may be
+ * answered from any of its own addresses.
+ */
+public class PingClient implements Closeable {
+
+    /**
+     * How long, in milliseconds, to wait for the pong to a ping.
+     */
+    public static final long TIMEOUT_MILLIS = 1000;
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final DatagramSocket socket;
+    private final Map<Long, PendingPing> pending = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Opens the socket pings are sent from and starts receiving pongs on a thread of the given {@code Executor}.
+     *
+     * @param executor the {@code Executor} to receive pongs on
+     * @throws SocketException if the socket could not be opened
+     */
+    public PingClient(Executor executor) throws SocketException {
+        this.socket = new DatagramSocket();
+        executor.execute(this::receive);
+    }
+
+    /**
+     * Sends a ping to the {@code PingServer} at the given address without waiting for the pong.
+     *
+     * @param address the address of the {@code PingServer}
+     * @return a future completed with the round trip time in nanoseconds, or exceptionally if the ping could not be
+     * sent or no pong arrived in time
+     */
+    public CompletableFuture<Long> ping(InetSocketAddress address) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        if (address.isUnresolved()) {
+            result.completeExceptionally(new UnknownHostException(address.getHostString()));
+            return result;
+        }
+
+        long nonce = register(new PendingPing(address, System.nanoTime(), result));
+        byte[] payload = PingServer.encode(PingServer.PING, nonce);
+        result.orTimeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((rtt, e) -> pending.remove(nonce));
+        try {
+            socket.send(new DatagramPacket(payload, payload.length, address));
+        } catch (IOException | IllegalArgumentException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Sends a ping to each of the {@code PingServer}s at the given addresses in a single round, without waiting for
+     * the pongs.
+     *
+     * @param addresses the addresses of the {@code PingServer}s
+     * @return the future for each address, as returned by {@link #ping}
+     */
+    public Map<InetSocketAddress, CompletableFuture<Long>> pingAll(Collection<InetSocketAddress> addresses) {
+        Map<InetSocketAddress, CompletableFuture<Long>> results = new HashMap<>();
+        addresses.forEach(address -> results.computeIfAbsent(address, this::ping));
+        return results;
+    }
+
+    /**
+     * Closes the socket, failing any pings still waiting for a pong.
+     */
+    @Override
+    public void close() {
+        socket.close();
+        pending.values().forEach(ping -> ping.result().completeExceptionally(new SocketException("Socket closed")));
+    }
+
+    // stores the ping under a random nonce that no other outstanding ping holds
+    private long register(PendingPing ping) {
+        while (true) {
+            long nonce = random.nextLong();
+            if (pending.putIfAbsent(nonce, ping) == null)
+                return nonce;
+        }
+    }
+
+    // an error receiving one pong, such as an ICMP error reported on the socket, leaves the socket usable, so only
+    // closing the socket ends the loop
+    private void receive() {
+        byte[] buffer = new byte[PingServer.BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (!PingServer.matches(PingServer.PONG, buffer, packet.getLength()))
+                    continue;
+                long nonce = PingServer.nonce(buffer);
+                PendingPing ping = pending.get(nonce);
+                if (ping != null && answeredFrom(ping.address(), (InetSocketAddress) packet.getSocketAddress())
+                        && pending.remove(nonce, ping))
+                    ping.result().complete(System.nanoTime() - ping.sentAt());
+            } catch (IOException e) {
+                if (!socket.isClosed())
+                    logger.error("Receiving pongs failed with {}", e.getMessage());
+            }
+        }
+        logger.debug("Ping client socket closed");
+    }
+
+    // a ping to the wildcard address reaches this host, and is answered from one of its own addresses
+    private static boolean answeredFrom(InetSocketAddress target, InetSocketAddress sender) {
+        if (target.equals(sender))
+            return true;
+        return target.getAddress().isAnyLocalAddress() && target.getPort() == sender.getPort()
+                && isLocal(sender.getAddress());
+    }
+
+    private static boolean isLocal(InetAddress address) {
+        try {
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    private record PendingPing(InetSocketAddress address, long sentAt, CompletableFuture<Long> result) {
+    }
+}
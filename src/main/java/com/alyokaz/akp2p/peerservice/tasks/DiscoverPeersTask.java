@@ -2,16 +2,13 @@ package com.alyokaz.akp2p.peerservice.tasks;
 
 import com.alyokaz.akp2p.peerservice.PeerService;
 import com.alyokaz.akp2p.server.message.Message;
-import com.alyokaz.akp2p.server.message.MessageType;
+import com.alyokaz.akp2p.server.message.PeersMessage;
+import com.alyokaz.akp2p.server.message.RequestPeersMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.Set;
 
 /**
  * This class is for send request for and handling the results of a request for a {@code Set} of know live peers from
@@ -32,21 +29,20 @@ public class DiscoverPeersTask implements Runnable {
     }
 
     /**
-     * Contacts the peer at the given address, requests a {@code Set} of known live peers and then attempts to add
-     * each received peer to this nodes {@code Set} of known live peers.
+     * Contacts the peer at the given address, over a pooled connection, requests the live peers it has learned of
+     * since it was last contacted and then attempts to add each of those not already known to this nodes
+     * {@code Set} of known live peers.
      */
     @Override
     public void run() {
-        try (Socket socket = new Socket(address.getHostName(), address.getPort());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-            out.writeObject(new Message(MessageType.REQUEST_PEERS, serverAddress));
-            Object obj = in.readObject();
-            if (obj instanceof Set<?>) {
-                ((Set<InetSocketAddress>) obj).forEach(peerService::addPeer);
+        try {
+            Message message = peerService.request(address,
+                    new RequestPeersMessage(peerService.getGossipVersion(address), serverAddress));
+            if (message instanceof PeersMessage peers) {
+                peerService.addGossipedPeers(address, peers);
             }
-        } catch (IOException | ClassNotFoundException e) {
-            peerService.removeFromLivePeers(address);
+        } catch (IOException e) {
+            peerService.reportFailure(address);
             logger.error("Peer discovery failed at {} with {}", address, e.getMessage());
         }
     }
@@ -1,5 +1,6 @@
 package com.alyokaz.akp2p.pingserver;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -8,38 +9,75 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * This class is for responding to pings for other peers in the network.
+ * <p>
+ * A ping is the {@link #PING_PAYLOAD} followed by an 8 byte nonce chosen by the sender. The reply is the
+ * {@link #PONG_PAYLOAD} followed by the same nonce, so that the sender can match it to its ping.
  */
 public class PingServer {
 
     public static final int BUFFER_SIZE = 1400;
     public static final String PING_PAYLOAD = "ping";
     public static final String PONG_PAYLOAD = "pong";
+    public static final int NONCE_LENGTH = Long.BYTES;
+
+    /**
+     * The {@link #PING_PAYLOAD} as {@code bytes}.
+     */
+    public static final byte[] PING = PING_PAYLOAD.getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The {@link #PONG_PAYLOAD} as {@code bytes}.
+     */
+    public static final byte[] PONG = PONG_PAYLOAD.getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The length in {@code bytes} of a ping or a pong.
+     */
+    public static final int PACKET_LENGTH = PING.length + NONCE_LENGTH;
     private static final Logger logger = LogManager.getLogger();
     private final DatagramSocket socket;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ExecutorService executor;
 
     public PingServer(DatagramSocket socket) {
+        this(socket, ExecutorStrategy.getDefault());
+    }
+
+    public PingServer(DatagramSocket socket, ExecutorStrategy executorStrategy) {
         this.socket = socket;
+        this.executor = executorStrategy.newExecutor();
     }
 
     /**
      * Starts this server.
+     * <p>
+     * Pings are answered inline by the thread receiving them. The pong is written over the ping in the receive
+     * buffer, which already holds the nonce, and sent back to the sender in the same packet, so answering a ping
+     * allocates nothing.
      */
     public void start() {
         executor.execute(() -> {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             try (DatagramSocket inSocket = socket) {
                 while (!Thread.currentThread().isInterrupted()) {
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    packet.setLength(buffer.length);
                     inSocket.receive(packet);
-                    String payload = new String(packet.getData(), StandardCharsets.UTF_8).trim();
-                    if (payload.equals(PING_PAYLOAD))
-                        executor.execute(new PingHandler(packet, inSocket));
+                    if (!matches(PING, buffer, packet.getLength()))
+                        continue;
+                    System.arraycopy(PONG, 0, buffer, 0, PONG.length);
+                    // the packet is addressed to its sender, and its length is that of the ping
+                    try {
+                        inSocket.send(packet);
+                    } catch (SocketException e) {
+                        if (inSocket.isClosed())
+                            throw e;
+                        logger.debug("Sending pong to {} failed with {}", packet.getSocketAddress(), e.getMessage());
+                    }
                 }
             } catch (SocketException e) {
                 logger.info("Ping server socket closed");
@@ -49,12 +87,52 @@ public class PingServer {
         });
     }
 
+    /**
+     * Encodes a ping or a pong.
+     *
+     * @param type  {@link #PING} or {@link #PONG}
+     * @param nonce the nonce of the ping
+     * @return the encoded packet
+     */
+    public static byte[] encode(byte[] type, long nonce) {
+        byte[] packet = Arrays.copyOf(type, PACKET_LENGTH);
+        for (int i = 0; i < NONCE_LENGTH; i++)
+            packet[type.length + i] = (byte) (nonce >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+        return packet;
+    }
+
+    /**
+     * Returns true if the given packet is a ping or a pong, as given.
+     *
+     * @param type   {@link #PING} or {@link #PONG}
+     * @param data   the data of the packet
+     * @param length the length of the packet
+     * @return true if the packet is of the given type
+     */
+    public static boolean matches(byte[] type, byte[] data, int length) {
+        return length == PACKET_LENGTH && Arrays.equals(data, 0, type.length, type, 0, type.length);
+    }
+
+    /**
+     * Returns the nonce of a ping or a pong.
+     *
+     * @param data the data of the packet
+     * @return the nonce of the packet
+     */
+    public static long nonce(byte[] data) {
+        long nonce = 0;
+        for (int i = PING.length; i < PACKET_LENGTH; i++)
+            nonce = nonce << Byte.SIZE | (data[i] & 0xFF);
+        return nonce;
+    }
+
     /**
      * Stops this server.
      */
     public void shutdown() {
         logger.info("Ping server at {} shutting down...", socket.getLocalSocketAddress());
         this.socket.close();
+        executor.shutdown();
     }
 
 
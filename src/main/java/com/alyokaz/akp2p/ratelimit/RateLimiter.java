@@ -0,0 +1,208 @@
+package com.alyokaz.akp2p.ratelimit;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits the rate at which {@code bytes} are transferred in one direction, both across every peer and
+ * with each peer on its own.
+ * <p>
+ * A transfer with a peer takes tokens from the {@code TokenBucket} shared by every peer as well as from the
+ * {@code TokenBucket} of that peer, so it is held to whichever limit is lower. Peers are identified by the address of
+ * their server. Either limit may be changed at any time, and takes effect for transfers already under way.
+ * <p>
+ * The {@code TokenBucket} of a peer is dropped once it has been full and unused for {@link #IDLE_NANOS}, so that the
+ * buckets held grow with the peers being transferred with rather than with every peer ever seen. A new bucket starts
+ * full, so a peer that comes back is treated as it would have been had its bucket been kept.
+ */
+public class RateLimiter {
+
+    /**
+     * The fewest {@code bytes} worth handing out to a transfer that must not wait, so that a limited transfer is
+     * made in reasonably sized writes rather than a great many tiny ones.
+     */
+    public static final long MIN_GRANT = 16 * 1024;
+
+    /**
+     * How long, in nanoseconds, the {@code TokenBucket} of a peer is kept once it is full and unused.
+     */
+    public static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final TokenBucket global;
+    private final Map<InetSocketAddress, TokenBucket> peers = new ConcurrentHashMap<>();
+    private final long idleNanos;
+    // when the idle buckets are next looked for
+    private final AtomicLong nextEviction;
+    private volatile long peerRate;
+
+    /**
+     * Constructs a {@code RateLimiter} that does not limit the rate.
+     */
+    public RateLimiter() {
+        this(TokenBucket.UNLIMITED, TokenBucket.UNLIMITED);
+    }
+
+    /**
+     * Constructs a {@code RateLimiter} with the given limits.
+     *
+     * @param globalRate the rate in {@code bytes} per second across every peer, or {@link TokenBucket#UNLIMITED}
+     * @param peerRate   the rate in {@code bytes} per second with each peer, or {@link TokenBucket#UNLIMITED}
+     * @throws IllegalArgumentException if either rate is negative
+     */
+    public RateLimiter(long globalRate, long peerRate) {
+        this(globalRate, peerRate, IDLE_NANOS);
+    }
+
+    RateLimiter(long globalRate, long peerRate, long idleNanos) {
+        if (peerRate < 0)
+            throw new IllegalArgumentException("Bad rate " + peerRate);
+        this.global = new TokenBucket(globalRate);
+        this.peerRate = peerRate;
+        this.idleNanos = idleNanos;
+        this.nextEviction = new AtomicLong(System.nanoTime() + idleNanos);
+    }
+
+    /**
+     * Sets the rate across every peer.
+     *
+     * @param rate the rate in {@code bytes} per second, or {@link TokenBucket#UNLIMITED}
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    public void setGlobalRate(long rate) {
+        global.setRate(rate);
+    }
+
+    /**
+     * Returns the rate across every peer.
+     *
+     * @return the rate in {@code bytes} per second, or {@link TokenBucket#UNLIMITED}
+     */
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    /**
+     * Sets the rate with each peer.
+     *
+     * @param rate the rate in {@code bytes} per second, or {@link TokenBucket#UNLIMITED}
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    public void setPeerRate(long rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Bad rate " + rate);
+        peerRate = rate;
+        peers.values().forEach(bucket -> bucket.setRate(rate));
+    }
+
+    /**
+     * Returns the rate with each peer.
+     *
+     * @return the rate in {@code bytes} per second, or {@link TokenBucket#UNLIMITED}
+     */
+    public long getPeerRate() {
+        return peerRate;
+    }
+
+    /**
+     * Takes an allowance of up to the given number of {@code bytes} to transfer with the given peer, without
+     * waiting. Any part of the allowance that is not used should be handed back with {@link #release}.
+     *
+     * @param peer  the address of the peer, or {@code null} if it is not known, when only the global limit applies
+     * @param bytes the number of {@code bytes} waiting to be transferred
+     * @return the number of {@code bytes} that may be transferred now, 0 if the transfer must wait
+     */
+    public long tryAcquire(InetSocketAddress peer, long bytes) {
+        long min = Math.min(bytes, MIN_GRANT);
+        TokenBucket bucket = bucketFor(peer);
+        long granted = bucket == null ? bytes : bucket.tryAcquire(min, bytes);
+        if (granted == 0)
+            return 0;
+        long globalGranted = global.tryAcquire(Math.min(granted, min), granted);
+        if (bucket != null && globalGranted < granted)
+            bucket.release(granted - globalGranted);
+        return globalGranted;
+    }
+
+    /**
+     * Hands back part of an allowance taken with {@link #tryAcquire} that was not used.
+     *
+     * @param peer  the address of the peer the allowance was taken for
+     * @param bytes the number of {@code bytes} not transferred
+     */
+    public void release(InetSocketAddress peer, long bytes) {
+        TokenBucket bucket = bucketFor(peer);
+        if (bucket != null)
+            bucket.release(bytes);
+        global.release(bytes);
+    }
+
+    /**
+     * Returns the time to wait before {@link #tryAcquire} will hand out an allowance for the given peer.
+     *
+     * @param peer  the address of the peer, or {@code null} if it is not known
+     * @param bytes the number of {@code bytes} waiting to be transferred
+     * @return the time to wait in nanoseconds
+     */
+    public long nanosUntilAvailable(InetSocketAddress peer, long bytes) {
+        long min = Math.min(bytes, MIN_GRANT);
+        TokenBucket bucket = bucketFor(peer);
+        long peerWait = bucket == null ? 0 : bucket.nanosUntilAvailable(min);
+        return Math.max(peerWait, global.nanosUntilAvailable(min));
+    }
+
+    /**
+     * Accounts for the given number of {@code bytes} transferred with the given peer, waiting for as long as the
+     * limits require before returning.
+     * <p>
+     * This suits a thread given over to a single transfer. Waiting holds back only that transfer.
+     *
+     * @param peer  the address of the peer, or {@code null} if it is not known
+     * @param bytes the number of {@code bytes} transferred
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(InetSocketAddress peer, long bytes) throws InterruptedException {
+        TokenBucket bucket = bucketFor(peer);
+        long peerWait = bucket == null ? 0 : bucket.reserve(bytes);
+        long wait = Math.max(peerWait, global.reserve(bytes));
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Drops the {@code TokenBucket} of each peer that is full and has not been used for the idle time. This is done
+     * in passing every idle time by the transfers themselves.
+     *
+     * @return the number of buckets dropped
+     */
+    public int evictIdle() {
+        int evicted = 0;
+        for (Map.Entry<InetSocketAddress, TokenBucket> entry : peers.entrySet())
+            if (entry.getValue().isIdle(idleNanos) && peers.remove(entry.getKey(), entry.getValue()))
+                evicted++;
+        return evicted;
+    }
+
+    /**
+     * Returns the number of peers a {@code TokenBucket} is held for.
+     *
+     * @return the number of peer buckets held
+     */
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    private TokenBucket bucketFor(InetSocketAddress peer) {
+        long rate = peerRate;
+        if (peer == null || (rate == TokenBucket.UNLIMITED && peers.isEmpty()))
+            return null;
+        long now = System.nanoTime();
+        long next = nextEviction.get();
+        // a single transfer looks for idle buckets each time, the others carry on
+        if (now - next >= 0 && nextEviction.compareAndSet(next, now + idleNanos))
+            evictIdle();
+        return peers.computeIfAbsent(peer, p -> new TokenBucket(peerRate));
+    }
+}
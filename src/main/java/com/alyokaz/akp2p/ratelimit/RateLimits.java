@@ -0,0 +1,58 @@
+package com.alyokaz.akp2p.ratelimit;
+
+/**
+ * This class holds the upload and download {@code RateLimiter}s of a node.
+ * <p>
+ * Uploads are limited as each {@code Piece} is written to the peer that requested it, and downloads as each
+ * {@code Piece} is read from the peer sending it. Each node is given its own {@code RateLimits} when it is built,
+ * and the limits can be changed while it runs through {@link #getUpload()} and {@link #getDownload()}.
+ */
+public class RateLimits {
+
+    private final RateLimiter upload;
+    private final RateLimiter download;
+
+    /**
+     * Constructs {@code RateLimits} that do not limit the rate in either direction.
+     */
+    public RateLimits() {
+        this(new RateLimiter(), new RateLimiter());
+    }
+
+    /**
+     * Constructs {@code RateLimits} with the given limits. Each rate is in {@code bytes} per second, or
+     * {@link TokenBucket#UNLIMITED}.
+     *
+     * @param uploadRate       the upload rate across every peer
+     * @param peerUploadRate   the upload rate to each peer
+     * @param downloadRate     the download rate across every peer
+     * @param peerDownloadRate the download rate from each peer
+     * @throws IllegalArgumentException if any rate is negative
+     */
+    public RateLimits(long uploadRate, long peerUploadRate, long downloadRate, long peerDownloadRate) {
+        this(new RateLimiter(uploadRate, peerUploadRate), new RateLimiter(downloadRate, peerDownloadRate));
+    }
+
+    public RateLimits(RateLimiter upload, RateLimiter download) {
+        this.upload = upload;
+        this.download = download;
+    }
+
+    /**
+     * Returns the {@code RateLimiter} for {@code Piece}s sent to peers.
+     *
+     * @return the upload {@code RateLimiter}
+     */
+    public RateLimiter getUpload() {
+        return upload;
+    }
+
+    /**
+     * Returns the {@code RateLimiter} for {@code Piece}s received from peers.
+     *
+     * @return the download {@code RateLimiter}
+     */
+    public RateLimiter getDownload() {
+        return download;
+    }
+}
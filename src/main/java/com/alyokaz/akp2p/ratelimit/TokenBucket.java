@@ -0,0 +1,149 @@
+package com.alyokaz.akp2p.ratelimit;
+
+/**
+ * This class limits the rate at which {@code bytes} are sent or received with a token bucket.
+ * <p>
+ * The bucket fills with one token per {@code byte} at the configured rate, up to a capacity of a tenth of a second's
+ * worth of tokens, and each {@code byte} transferred takes a token. A small capacity keeps the rate predictable over
+ * short periods, at the cost of a burst after an idle period being no more than the capacity.
+ * <p>
+ * Tokens may be taken without waiting, in which case no more than are in the bucket are handed out, or reserved
+ * ahead of time, in which case the bucket goes into debt and the caller waits until it is paid off.
+ */
+public class TokenBucket {
+
+    /**
+     * The rate given for a bucket that does not limit the rate at all.
+     */
+    public static final long UNLIMITED = 0;
+
+    /**
+     * The smallest capacity in {@code bytes} of a bucket, however low its rate.
+     */
+    public static final long MIN_CAPACITY = 64 * 1024;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private long rate;
+    private double capacity;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long lastUsed = lastRefill;
+
+    /**
+     * Constructs a full {@code TokenBucket} with the given rate.
+     *
+     * @param rate the rate in {@code bytes} per second, or {@link #UNLIMITED}
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    public TokenBucket(long rate) {
+        setRate(rate);
+        tokens = capacity;
+    }
+
+    /**
+     * Changes the rate of the bucket. Tokens already in the bucket are kept, up to the capacity for the new rate.
+     *
+     * @param rate the rate in {@code bytes} per second, or {@link #UNLIMITED}
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    public synchronized void setRate(long rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Bad rate " + rate);
+        refill();
+        this.rate = rate;
+        this.capacity = Math.max(rate / 10, MIN_CAPACITY);
+        tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * Returns the rate of the bucket.
+     *
+     * @return the rate in {@code bytes} per second, or {@link #UNLIMITED}
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Takes as many tokens as are in the bucket, up to the given maximum, without waiting.
+     *
+     * @param min the fewest tokens worth taking, if there are fewer in the bucket none are taken
+     * @param max the most tokens to take
+     * @return the number of tokens taken
+     */
+    public synchronized long tryAcquire(long min, long max) {
+        if (rate == UNLIMITED)
+            return max;
+        refill();
+        lastUsed = lastRefill;
+        if (tokens < min)
+            return 0;
+        long taken = Math.min(max, (long) tokens);
+        tokens -= taken;
+        return taken;
+    }
+
+    /**
+     * Puts back tokens taken with {@link #tryAcquire} that were not used.
+     *
+     * @param count the number of tokens to put back
+     */
+    public synchronized void release(long count) {
+        if (rate != UNLIMITED)
+            tokens = Math.min(capacity, tokens + count);
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Takes the given number of tokens, putting the bucket into debt if there are not enough.
+     *
+     * @param count the number of tokens to take
+     * @return the time in nanoseconds to wait before the tokens have been paid for
+     */
+    public synchronized long reserve(long count) {
+        if (rate == UNLIMITED)
+            return 0;
+        refill();
+        lastUsed = lastRefill;
+        tokens -= count;
+        return tokens >= 0 ? 0 : nanosFor(-tokens);
+    }
+
+    /**
+     * Returns true if no tokens have been taken or put back for at least the given time and the bucket is full, so
+     * that a new bucket with the same rate would behave the same.
+     *
+     * @param idleNanos the time in nanoseconds
+     * @return true if the bucket is full and has not been used for the given time
+     */
+    public synchronized boolean isIdle(long idleNanos) {
+        refill();
+        return lastRefill - lastUsed >= idleNanos && (rate == UNLIMITED || tokens >= capacity);
+    }
+
+    /**
+     * Returns the time until the given number of tokens, or a full bucket if that is fewer, will be in the bucket.
+     *
+     * @param count the number of tokens wanted
+     * @return the time in nanoseconds until the tokens are in the bucket, 0 if they are already
+     */
+    public synchronized long nanosUntilAvailable(long count) {
+        if (rate == UNLIMITED)
+            return 0;
+        refill();
+        double missing = Math.min(count, capacity) - tokens;
+        return missing <= 0 ? 0 : nanosFor(missing);
+    }
+
+    private long nanosFor(double count) {
+        return (long) Math.ceil(count * NANOS_PER_SECOND / rate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate != UNLIMITED)
+            tokens = Math.min(capacity, tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+}
@@ -1,72 +1,134 @@
 package com.alyokaz.akp2p.server;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * Abstract class implementing the {@code Server} interface with boilerplate code common to all {@code Server}
  * implementations.
+ * <p>
+ * Connections are non-blocking and shared between a small, fixed number of {@code EventLoop} threads, rather than
+ * each being given a thread of its own. The {@code Message}s received are handled on a fixed pool of worker threads,
+ * so that a slow handler does not hold up the other connections on its loop. With an {@code ExecutorStrategy} that
+ * uses virtual threads, each {@code Message} is instead handled on a virtual thread of its own.
  */
 public abstract class AbstractServer implements Server {
 
+    /**
+     * The number of {@code EventLoop} threads connections are shared between.
+     */
+    public static final int EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of platform worker threads {@code Message}s are handled on.
+     */
+    public static final int WORKER_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
     private static final Logger logger = LogManager.getLogger();
-    final ServerSocket serverSocket;
-    final ExecutorService executor = Executors.newCachedThreadPool();
+    final ServerSocketChannel serverChannel;
+    private final InetSocketAddress serverAddress;
+    private final EventLoop[] loops = new EventLoop[EVENT_LOOPS];
+    private final ExecutorService workers;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // only used on the thread of the first loop, which accepts connections
+    private int nextLoop;
+
+    /**
+     * Constructs a new instance of this class with the given {@code ServerSocketChannel}
+     *
+     * @param serverChannel the bound {@code ServerSocketChannel} for the server to accept connections on
+     */
+    public AbstractServer(ServerSocketChannel serverChannel) {
+        this(serverChannel, ExecutorStrategy.getDefault());
+    }
 
     /**
-     * Constructs a new instance of this class with the given {@code ServerSocket}
+     * Constructs a new instance of this class with the given {@code ServerSocketChannel}, handling {@code Message}s
+     * on the threads of the given {@code ExecutorStrategy}.
      *
-     * @param serverSocket the {@code ServerSocket} for the server to listen for connections on
+     * @param serverChannel    the bound {@code ServerSocketChannel} for the server to accept connections on
+     * @param executorStrategy the {@code ExecutorStrategy} for the threads {@code Message}s are handled on
      */
-    public AbstractServer(ServerSocket serverSocket) {
-        this.serverSocket = serverSocket;
+    public AbstractServer(ServerSocketChannel serverChannel, ExecutorStrategy executorStrategy) {
+        this.serverChannel = serverChannel;
+        // the loops only ever wait in select, so stay on platform threads whatever the strategy
+        this.workers = executorStrategy.isVirtual()
+                ? executorStrategy.newExecutor() : Executors.newFixedThreadPool(WORKER_THREADS);
+        this.serverAddress = new InetSocketAddress(serverChannel.socket().getInetAddress(),
+                serverChannel.socket().getLocalPort());
+        try {
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new EventLoop("server-" + serverAddress.getPort() + "-loop-" + i);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void start() {
-        executor.execute(() -> {
-            try (serverSocket) {
-                logger.info("Server at {} has started", serverSocket.getLocalSocketAddress());
-                while (!Thread.currentThread().isInterrupted()) {
-                    executor.execute(process(serverSocket.accept()));
-                }
+        for (EventLoop loop : loops)
+            loop.start();
+        loops[0].execute(() -> {
+            try {
+                serverChannel.configureBlocking(false);
+                loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, key -> accept());
+                logger.info("Server at {} has started", serverAddress);
             } catch (IOException e) {
-                logger.info("Server at {} shutdown", serverSocket.getLocalSocketAddress());
+                logger.error("Server at {} failed to start with {}", serverAddress, e.getMessage());
             }
         });
     }
 
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                Connection connection = new Connection(channel, loop, getHandler(), workers, connections::remove);
+                connections.add(connection);
+                loop.execute(connection::register);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Server at {} failed to accept a connection with {}", serverAddress, e.toString());
+        }
+    }
+
     @Override
     public void shutdown() {
         try {
-            this.serverSocket.close();
+            this.serverChannel.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        // connections from peers may be kept open between requests, so are closed along with the server
+        connections.forEach(Connection::closeNow);
+        for (EventLoop loop : loops)
+            loop.shutdown();
+        workers.shutdownNow();
+        logger.info("Server at {} shutdown", serverAddress);
     }
 
     @Override
     public InetSocketAddress getServerAddress() {
-        return new InetSocketAddress(serverSocket.getInetAddress(),
-                serverSocket.getLocalPort());
+        return serverAddress;
     }
 
     /**
-     * Returns a {@code Runnable} to handle a connection from a peer to the {@code Server}.
-     * <p>
-     * Called from within the {@link #start()} method upon a new connection to the {@code Server} from a peer.
+     * Returns the {@code MessageHandler} for the {@code Message}s received from peers connected to the
+     * {@code Server}.
      *
-     * @param socket the {@code Socket} for the connection to the peer
-     * @return a {@code Runnable} to handle to connection to the peer
+     * @return the {@code MessageHandler} for the {@code Message}s received from peers
      */
-    protected abstract Runnable process(Socket socket);
-
-
+    protected abstract MessageHandler getHandler();
 }
@@ -1,27 +1,31 @@
 package com.alyokaz.akp2p.server;
 
-import com.alyokaz.akp2p.beacon.BeaconTask;
+import com.alyokaz.akp2p.beacon.BeaconHandler;
+import com.alyokaz.akp2p.beacon.BeaconRegistry;
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.List;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * An implementation of {@code Server} to be used in {@code Beacon} nodes.
  */
 public class BeaconServer extends AbstractServer {
 
-    private final List<InetSocketAddress> peers;
+    private final BeaconHandler handler;
 
-    public BeaconServer(ServerSocket serverSocket, List<InetSocketAddress> peers) {
-        super(serverSocket);
-        this.peers = peers;
+    public BeaconServer(ServerSocketChannel serverChannel, BeaconRegistry registry) {
+        this(serverChannel, registry, ExecutorStrategy.getDefault());
+    }
+
+    public BeaconServer(ServerSocketChannel serverChannel, BeaconRegistry registry,
+                        ExecutorStrategy executorStrategy) {
+        super(serverChannel, executorStrategy);
+        this.handler = new BeaconHandler(registry);
     }
 
     @Override
-    public Runnable process(Socket socket) {
-        return new BeaconTask(socket, peers);
+    protected MessageHandler getHandler() {
+        return handler;
     }
 
 }
@@ -0,0 +1,457 @@
+package com.alyokaz.akp2p.server;
+
+import com.alyokaz.akp2p.fileservice.PieceFile;
+import com.alyokaz.akp2p.ratelimit.RateLimiter;
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageCodec;
+import com.alyokaz.akp2p.server.message.PieceMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * This class is a single non-blocking connection accepted by a {@code Server}.
+ * <p>
+ * The connection's {@code EventLoop} reads frames into a per-connection buffer and decodes them into
+ * {@code Message}s, which are handed to the {@code MessageHandler} on a worker thread, one at a time. Responses are
+ * queued by the handler and written out by the {@code EventLoop} as the peer accepts them.
+ * <p>
+ * Reading is paused while too many {@code Message}s are waiting to be handled, or too many {@code bytes} are waiting
+ * to be sent, so that a peer that sends requests faster than it reads the responses is held back by TCP flow control
+ * rather than by the memory of this node.
+ * <p>
+ * Once an upload {@code RateLimiter} is set, responses are written no faster than it allows. When the limit is
+ * reached the connection stops waiting to write until the {@code RateLimiter} has an allowance for it again, so the
+ * {@code EventLoop} carries on serving its other connections in the meantime.
+ */
+public class Connection {
+
+    /**
+     * The initial size in {@code bytes} of the buffer frames are read into. It grows to fit any larger frame.
+     */
+    public static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The number of received {@code Message}s waiting to be handled at which reading is paused.
+     */
+    public static final int MAX_RECEIVED = 64;
+
+    /**
+     * The number of {@code bytes} waiting to be sent at which reading is paused.
+     */
+    public static final long HIGH_WATER_MARK = 4 * 1024 * 1024;
+
+    /**
+     * The number of {@code bytes} waiting to be sent at or below which paused reading resumes.
+     */
+    public static final long LOW_WATER_MARK = 1024 * 1024;
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final MessageHandler handler;
+    private final Executor workers;
+    private final Consumer<Connection> onClose;
+
+    // only used on the loop's thread
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private boolean writeThrottled;
+
+    private volatile RateLimiter uploadLimiter;
+    private volatile InetSocketAddress uploadPeer;
+
+    // guarded by this
+    private final Deque<Message> received = new ArrayDeque<>();
+    private final Deque<Outbound> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    private boolean handling;
+    private boolean readPaused;
+    private boolean closing;
+    private boolean closed;
+    private boolean interestUpdateScheduled;
+
+    Connection(SocketChannel channel, EventLoop loop, MessageHandler handler, Executor workers,
+               Consumer<Connection> onClose) {
+        this.channel = channel;
+        this.loop = loop;
+        this.handler = handler;
+        this.workers = workers;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Registers the connection with its {@code EventLoop}. Must be called on the loop's thread.
+     */
+    void register() {
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = loop.register(channel, SelectionKey.OP_READ, this::onReady);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Registering connection from {} failed with {}", getRemoteAddress(), e.getMessage());
+            closeNow();
+        }
+    }
+
+    /**
+     * Queues the given {@code Message} to be sent to the peer.
+     *
+     * @param message the {@code Message} to send
+     */
+    public void send(Message message) {
+        if (message instanceof PieceMessage piece) {
+            // avoid copying the data of the piece into the frame buffer
+            ByteBuffer data = piece.getData().duplicate();
+            send(MessageCodec.encodePieceHeader(piece.getPieceId(), data.remaining(), piece.getServerAddress()));
+            send(data);
+        } else {
+            send(MessageCodec.encode(message));
+        }
+    }
+
+    /**
+     * Queues the remaining contents of the given buffer to be sent to the peer.
+     *
+     * @param buffer the buffer to send
+     */
+    public void send(ByteBuffer buffer) {
+        enqueue(new BufferOutbound(buffer));
+    }
+
+    /**
+     * Queues the data for the {@code Piece} with the given {@code ID} to be sent to the peer straight from the given
+     * {@code PieceFile}, without it being copied onto the heap.
+     *
+     * @param pieceFile the {@code PieceFile} holding the {@code Piece}
+     * @param id        the {@code ID} of the {@code Piece}
+     */
+    public void sendPiece(PieceFile pieceFile, int id) {
+        enqueue(new PieceOutbound(pieceFile, id));
+    }
+
+    /**
+     * Limits the rate responses are sent at with the given {@code RateLimiter}, counting them against the peer with
+     * the given server address.
+     *
+     * @param limiter the upload {@code RateLimiter} of the node
+     * @param peer    the address of the peer's server, or {@code null} if it is not known
+     */
+    public void setUploadLimit(RateLimiter limiter, InetSocketAddress peer) {
+        this.uploadPeer = peer;
+        this.uploadLimiter = limiter;
+    }
+
+    /**
+     * Removes the first {@code Message} that has been received but not yet handled that matches the given predicate.
+     * <p>
+     * This lets a handler act on a {@code Message} that arrived after the one it is handling, such as a cancellation.
+     *
+     * @param match the predicate to match
+     * @return true if a {@code Message} was removed
+     */
+    public synchronized boolean removeReceived(Predicate<Message> match) {
+        for (Iterator<Message> messages = received.iterator(); messages.hasNext(); ) {
+            if (match.test(messages.next())) {
+                messages.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the connection once every queued response has been sent.
+     */
+    public synchronized void close() {
+        closing = true;
+        scheduleInterestUpdate();
+    }
+
+    /**
+     * Returns the address of the peer.
+     *
+     * @return the address of the peer, or {@code null} if it is not known
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Closes the connection immediately, discarding any queued responses.
+     */
+    void closeNow() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            received.clear();
+            pending.clear();
+        }
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Closing connection from {} failed with {}", getRemoteAddress(), e.getMessage());
+        }
+        onClose.accept(this);
+    }
+
+    private void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable())
+                read();
+            if (key.isValid() && key.isWritable())
+                write();
+            if (key.isValid())
+                updateInterest();
+        } catch (CancelledKeyException e) {
+            // the connection was closed by another thread
+        } catch (IOException | RuntimeException e) {
+            logger.error("Connection from {} failed with {}", getRemoteAddress(), e.toString());
+            closeNow();
+        }
+    }
+
+    // runs work handed to the loop, closing the connection rather than the loop should it fail
+    private void runOnLoop(Runnable task) {
+        try {
+            task.run();
+        } catch (CancelledKeyException e) {
+            // the connection was closed by another thread
+        } catch (RuntimeException e) {
+            logger.error("Connection from {} failed with {}", getRemoteAddress(), e.toString());
+            closeNow();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            closeNow();
+            return;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.remaining() >= MessageCodec.LENGTH_SIZE) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 2 || length > MessageCodec.MAX_FRAME_LENGTH)
+                throw new ProtocolException("Bad frame length " + length);
+            if (readBuffer.remaining() < MessageCodec.LENGTH_SIZE + length) {
+                if (MessageCodec.LENGTH_SIZE + length > readBuffer.capacity())
+                    readBuffer = ByteBuffer.allocate(MessageCodec.LENGTH_SIZE + length).put(readBuffer).flip();
+                break;
+            }
+            readBuffer.position(readBuffer.position() + MessageCodec.LENGTH_SIZE);
+            // copied out of the buffer, which is reused, as a decoded message may keep a view of its frame
+            byte[] frame = new byte[length];
+            readBuffer.get(frame);
+            Message message = MessageCodec.decode(ByteBuffer.wrap(frame));
+            synchronized (this) {
+                received.add(message);
+            }
+        }
+        readBuffer.compact();
+
+        synchronized (this) {
+            if (!handling && !received.isEmpty()) {
+                handling = true;
+                workers.execute(this::handleReceived);
+            }
+        }
+    }
+
+    private void handleReceived() {
+        while (true) {
+            Message message;
+            synchronized (this) {
+                message = received.poll();
+                if (message == null || closed) {
+                    handling = false;
+                    return;
+                }
+                if (readPaused && received.size() < MAX_RECEIVED / 2)
+                    scheduleInterestUpdate();
+            }
+            try {
+                handler.handle(message, this);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Handling {} from {} failed with {}", message.getType(), getRemoteAddress(),
+                        e.getMessage());
+                synchronized (this) {
+                    handling = false;
+                }
+                closeNow();
+                return;
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        RateLimiter limiter = uploadLimiter;
+        InetSocketAddress peer = uploadPeer;
+        while (true) {
+            Outbound head;
+            synchronized (this) {
+                head = pending.peek();
+            }
+            if (head == null)
+                return;
+            long allowance = head.remaining();
+            if (limiter != null && allowance > 0) {
+                allowance = limiter.tryAcquire(peer, allowance);
+                if (allowance == 0) {
+                    throttleWrites(limiter.nanosUntilAvailable(peer, head.remaining()));
+                    return;
+                }
+            }
+            long written = head.writeTo(channel, allowance);
+            if (limiter != null && written < allowance)
+                limiter.release(peer, allowance - written);
+            // the peer is not accepting any more for now, or the allowance has been used up
+            if (head.remaining() > 0)
+                return;
+            synchronized (this) {
+                pending.remove();
+                pendingBytes -= head.size();
+            }
+        }
+    }
+
+    // stops waiting to write until the rate limit allows it
+    private void throttleWrites(long nanos) {
+        writeThrottled = true;
+        loop.schedule(() -> runOnLoop(() -> {
+            writeThrottled = false;
+            updateInterest();
+        }), nanos);
+    }
+
+    private synchronized void enqueue(Outbound outbound) {
+        if (closing || closed)
+            return;
+        pending.add(outbound);
+        pendingBytes += outbound.size();
+        scheduleInterestUpdate();
+    }
+
+    // called with the lock held
+    private void scheduleInterestUpdate() {
+        if (!interestUpdateScheduled && !closed) {
+            interestUpdateScheduled = true;
+            loop.execute(() -> runOnLoop(this::updateInterest));
+        }
+    }
+
+    // runs on the loop's thread
+    private void updateInterest() {
+        synchronized (this) {
+            interestUpdateScheduled = false;
+            if (closed || key == null)
+                return;
+            if (!closing || !pending.isEmpty()) {
+                if (pendingBytes >= HIGH_WATER_MARK || received.size() >= MAX_RECEIVED)
+                    readPaused = true;
+                else if (pendingBytes <= LOW_WATER_MARK && received.size() < MAX_RECEIVED / 2)
+                    readPaused = false;
+                int ops = (readPaused || closing ? 0 : SelectionKey.OP_READ)
+                        | (pending.isEmpty() || writeThrottled ? 0 : SelectionKey.OP_WRITE);
+                key.interestOps(ops);
+                return;
+            }
+        }
+        // closing and every response has been sent
+        closeNow();
+    }
+
+    /**
+     * Data queued to be sent to the peer.
+     */
+    private interface Outbound {
+
+        // writes as much as the channel accepts, up to max bytes, and returns the number of bytes written
+        long writeTo(WritableByteChannel channel, long max) throws IOException;
+
+        long remaining();
+
+        long size();
+    }
+
+    private static class BufferOutbound implements Outbound {
+
+        private final ByteBuffer buffer;
+        private final long size;
+
+        BufferOutbound(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel channel, long max) throws IOException {
+            if (max >= buffer.remaining())
+                return channel.write(buffer);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + (int) max);
+            try {
+                return channel.write(buffer);
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+
+        @Override
+        public long remaining() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+    }
+
+    private static class PieceOutbound implements Outbound {
+
+        private final PieceFile pieceFile;
+        private final int id;
+        private long offset;
+
+        PieceOutbound(PieceFile pieceFile, int id) {
+            this.pieceFile = pieceFile;
+            this.id = id;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel channel, long max) throws IOException {
+            long transferred = pieceFile.transferTo(id, offset, max, channel);
+            offset += transferred;
+            return transferred;
+        }
+
+        @Override
+        public long remaining() {
+            return size() - offset;
+        }
+
+        @Override
+        public long size() {
+            return pieceFile.getPieceLength(id);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.alyokaz.akp2p.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A single thread that waits on a {@code Selector} for its channels to become ready, and runs the handler attached
+ * to each ready channel's {@code SelectionKey}.
+ * <p>
+ * Channels may only be registered, and their interest changed, on the loop's own thread, so other threads hand
+ * such work to the loop with {@link #execute(Runnable)}. Work that must wait, such as a write held back by a rate
+ * limit, is handed to the loop with {@link #schedule(Runnable, long)} rather than holding up the loop's thread.
+ * <p>
+ * A handler, task or timer that throws is logged and the loop carries on, as every channel registered with it
+ * would otherwise be left stalled. A channel whose handler throws is closed.
+ */
+class EventLoop implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // only used on the loop's thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs the given task on the loop's thread.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    /**
+     * Runs the given task on the loop's thread once the given delay has passed.
+     *
+     * @param task       the task to run
+     * @param delayNanos the delay in nanoseconds
+     */
+    void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+
+    /**
+     * Registers the given channel with the loop's {@code Selector}. Must be called on the loop's thread.
+     *
+     * @param channel the channel to register
+     * @param ops     the operations the loop is initially interested in
+     * @param handler the handler to run each time the channel is ready
+     * @return the {@code SelectionKey} for the channel
+     * @throws ClosedChannelException if the channel is closed
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Consumer<SelectionKey> handler)
+            throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Stops the loop, closing every channel registered with it.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        try (selector) {
+            while (running) {
+                // tasks queued by the loop itself do not wake the selector, so must not wait behind it
+                long timeout = tasks.isEmpty() ? millisUntilNextTimer() : 0;
+                if (timeout < 0)
+                    selector.select();
+                else if (timeout == 0)
+                    selector.selectNow();
+                else
+                    selector.select(timeout);
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    runTask(task);
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline() - now <= 0)
+                    runTask(timers.remove().task());
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        ((Consumer<SelectionKey>) key.attachment()).accept(key);
+                    } catch (CancelledKeyException e) {
+                        // the channel was closed by an earlier handler
+                    } catch (RuntimeException e) {
+                        logger.error("Handler on event loop {} failed with {}", thread.getName(), e.toString());
+                        closeQuietly(key);
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+        } catch (IOException e) {
+            logger.error("Event loop {} failed with {}", thread.getName(), e.getMessage());
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Task on event loop {} failed with {}", thread.getName(), e.toString());
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.debug("Closing channel failed with {}", e.getMessage());
+        }
+    }
+
+    // -1 if there are no timers, or 0 if the next is already due
+    private long millisUntilNextTimer() {
+        if (timers.isEmpty())
+            return -1;
+        long nanos = timers.peek().deadline() - System.nanoTime();
+        return nanos <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+}
@@ -0,0 +1,24 @@
+package com.alyokaz.akp2p.server;
+
+import com.alyokaz.akp2p.server.message.Message;
+
+import java.io.IOException;
+
+/**
+ * An interface for handling the {@code Message}s a {@code Server} receives from its connections.
+ * <p>
+ * The {@code Message}s from a single {@code Connection} are handled one at a time, in the order they arrived, but
+ * {@code Message}s from different {@code Connection}s may be handled concurrently.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    /**
+     * Handles a {@code Message} received from the given {@code Connection}.
+     *
+     * @param message    the {@code Message} received
+     * @param connection the {@code Connection} the {@code Message} was received from, to send any responses over
+     * @throws IOException if handling the {@code Message} fails, in which case the {@code Connection} is closed
+     */
+    void handle(Message message, Connection connection) throws IOException;
+}
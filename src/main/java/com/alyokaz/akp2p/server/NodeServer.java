@@ -1,28 +1,31 @@
 package com.alyokaz.akp2p.server;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
 import com.alyokaz.akp2p.fileservice.FileService;
 import com.alyokaz.akp2p.peerservice.PeerService;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * A {@code Server} implementation to be used in non-{@code Beacon} nodes.
  */
 public class NodeServer extends AbstractServer {
 
-    private final PeerService peerService;
-    private final FileService fileService;
+    private final PeerHandler handler;
 
-    public NodeServer(ServerSocket serverSocket, PeerService peerService,
+    public NodeServer(ServerSocketChannel serverChannel, PeerService peerService,
                       FileService fileService) {
-        super(serverSocket);
-        this.peerService = peerService;
-        this.fileService = fileService;
+        this(serverChannel, peerService, fileService, ExecutorStrategy.getDefault());
+    }
+
+    public NodeServer(ServerSocketChannel serverChannel, PeerService peerService,
+                      FileService fileService, ExecutorStrategy executorStrategy) {
+        super(serverChannel, executorStrategy);
+        this.handler = new PeerHandler(peerService, fileService);
     }
 
     @Override
-    public Runnable process(Socket socket) {
-        return new PeerHandler(socket, peerService, fileService);
+    protected MessageHandler getHandler() {
+        return handler;
     }
 }
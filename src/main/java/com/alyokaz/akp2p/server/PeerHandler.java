@@ -2,104 +2,125 @@ package com.alyokaz.akp2p.server;
 
 import com.alyokaz.akp2p.fileservice.FileInfo;
 import com.alyokaz.akp2p.fileservice.FileService;
-import com.alyokaz.akp2p.fileservice.Piece;
 import com.alyokaz.akp2p.fileservice.PieceContainer;
+import com.alyokaz.akp2p.fileservice.PieceFile;
 import com.alyokaz.akp2p.peerservice.PeerService;
+import com.alyokaz.akp2p.peerservice.PeerTable;
+import com.alyokaz.akp2p.server.message.BitfieldMessage;
+import com.alyokaz.akp2p.server.message.CancelPieceMessage;
+import com.alyokaz.akp2p.server.message.FileInfosMessage;
+import com.alyokaz.akp2p.server.message.FilenamesMessage;
 import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageCodec;
 import com.alyokaz.akp2p.server.message.MessageType;
+import com.alyokaz.akp2p.server.message.PeersMessage;
+import com.alyokaz.akp2p.server.message.PieceMessage;
+import com.alyokaz.akp2p.server.message.RequestBitfieldMessage;
+import com.alyokaz.akp2p.server.message.RequestPeersMessage;
 import com.alyokaz.akp2p.server.message.RequestPieceMessage;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
-public class PeerHandler implements Runnable {
+/**
+ * This class handles the {@code Message}s a node receives from its peers.
+ */
+public class PeerHandler implements MessageHandler {
 
-    private static final Logger logger = LogManager.getLogger();
-    private final Socket peerSocket;
     private final PeerService peerService;
     private final FileService fileService;
 
-    public PeerHandler(Socket peerSocket, PeerService peerService, FileService fileService) {
-        this.peerSocket = peerSocket;
+    public PeerHandler(PeerService peerService, FileService fileService) {
         this.peerService = peerService;
         this.fileService = fileService;
     }
 
     @Override
-    public void run() {
-        try (Socket peerSocket = this.peerSocket;
-             ObjectOutputStream out = new ObjectOutputStream(peerSocket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(peerSocket.getInputStream())
-        ) {
-            logger.info("Client connected to server at {}", peerService.getServerAddress());
-
-            boolean end = false;
-            while (!Thread.currentThread().isInterrupted() && !end) {
-                Message message = (Message) in.readObject();
-                peerService.addPeer(message.getServerAddress());
-                switch (message.getType()) {
-                    case REQUEST_FILENAMES -> out.writeObject(Set.copyOf(fileService.getFiles().keySet()));
-                    case REQUEST_PIECE -> processPieceRequest((RequestPieceMessage) message, out);
-                    case REQUEST_AVAILABLE_FILES -> processAvailableFilesRequest(out);
-                    case REQUEST_PEERS -> processRequestPeers(out);
-                    case REQUSET_FILE_INFOS -> processRequestFileInfos(out);
-                    case END -> end = true;
-                }
+    public void handle(Message message, Connection connection) throws IOException {
+        // a new peer is pinged in the background, rather than holding up its messages. When it gossips with this
+        // node the reply is only sent once the ping has finished, so that the peer is known to be live here by the
+        // time it has the reply, but no worker waits on the ping meanwhile. A peer waits for the reply to each of
+        // its requests before sending the next, so nothing is answered out of turn. A message sent without a server
+        // address, such as the END a peer closes with, says nothing about a peer to add.
+        if (message.getServerAddress() != null && !peerService.getLivePeers().contains(message.getServerAddress())) {
+            CompletableFuture<Boolean> added = peerService.addPeerAsync(message.getServerAddress());
+            if (message instanceof RequestPeersMessage request) {
+                added.whenComplete((live, e) -> processRequestPeers(request, connection));
+                return;
+            }
+        }
+        switch (message.getType()) {
+            case REQUEST_FILENAMES -> connection.send(new FilenamesMessage(
+                    Set.copyOf(fileService.getFiles().keySet()), peerService.getServerAddress()));
+            case REQUEST_PIECE -> {
+                RequestPieceMessage request = (RequestPieceMessage) message;
+                connection.setUploadLimit(fileService.getRateLimits().getUpload(), request.getServerAddress());
+                // a cancellation that arrived behind the request is answered in its place
+                if (connection.removeReceived(m -> m instanceof CancelPieceMessage cancel && cancel.cancels(request)))
+                    connection.send(new Message(MessageType.END, peerService.getServerAddress()));
+                else
+                    processPieceRequest(request, connection);
+            }
+            case CANCEL_PIECE -> {
+                // the request has already been answered
             }
-        } catch (EOFException e) {
-            //TODO confusing error message
-            logger.error("Client connected at {} closed with {}", peerService.getServerAddress(), e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
+            case REQUEST_AVAILABLE_FILES -> processAvailableFilesRequest(connection);
+            case REQUEST_PEERS -> processRequestPeers((RequestPeersMessage) message, connection);
+            case REQUSET_FILE_INFOS -> processRequestFileInfos(connection);
+            case REQUEST_BITFIELD -> processBitfieldRequest((RequestBitfieldMessage) message, connection);
+            case END -> connection.close();
         }
-        logger.info("Client connect to server at {} closed", peerService.getServerAddress());
     }
 
-    private void processRequestFileInfos(ObjectOutputStream out) {
+    private void processRequestFileInfos(Connection connection) {
         Set<FileInfo> fileInfos = fileService.getFiles().entrySet().stream()
                 .map(Map.Entry::getValue).map(PieceContainer::getFileInfo).collect(Collectors.toSet());
-        try {
-            out.writeObject(fileInfos);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        connection.send(new FileInfosMessage(fileInfos, peerService.getServerAddress()));
     }
 
 
-    private void processRequestPeers(ObjectOutputStream out) throws IOException {
-        out.writeObject(peerService.getLivePeers());
+    private void processBitfieldRequest(RequestBitfieldMessage request, Connection connection) {
+        PieceContainer container = fileService.getFile(request.getFilename());
+        BitSet pieces = container == null ? new BitSet() : container.getHeldPieces();
+        connection.send(new BitfieldMessage(request.getFilename(), pieces, peerService.getServerAddress()));
+    }
+
+    private void processRequestPeers(RequestPeersMessage request, Connection connection) {
+        PeerTable.Changes changes = peerService.getLivePeerChanges(request.getSinceVersion(), request.getLimit());
+        connection.send(new PeersMessage(changes.added(), changes.version(), peerService.getServerAddress()));
     }
 
-    private void processAvailableFilesRequest(ObjectOutputStream out) throws IOException {
-        out.writeObject(fileService.getAvailableFiles());
+    private void processAvailableFilesRequest(Connection connection) {
+        connection.send(new FileInfosMessage(fileService.getAvailableFiles(), peerService.getServerAddress()));
     }
 
-    private void processPieceRequest(RequestPieceMessage request, ObjectOutputStream out) {
+    /**
+     * Sends the requested {@code Piece} as a {@link MessageType#PIECE} frame, or an {@link MessageType#END} frame
+     * if the {@code Piece} is not held.
+     * <p>
+     * Data for a {@code Piece} backed by a file on disk is handed to the socket with {@code FileChannel.transferTo}
+     * after the header of the frame, rather than being copied onto the heap. The rate the response is sent at is
+     * held to the upload limits of the node by the {@code Connection}.
+     */
+    private void processPieceRequest(RequestPieceMessage request, Connection connection) {
         PieceContainer container = fileService.getFile(request.getFilename());
-        Optional<Piece> piece = container.getPieces().stream().filter(p -> p.getId() == request.getPieceId()).findFirst();
+        int id = request.getPieceId();
 
-        try {
-            if (piece.isEmpty())
-                out.writeObject(new Message(MessageType.END, null));
-            else
-                out.writeObject(piece.get());
-            //TODO Replace with download speed settings option
-            Thread.sleep(0); //simulate download speed limit / connection speed
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        if (container == null || !container.hasPiece(id)) {
+            connection.send(new Message(MessageType.END, peerService.getServerAddress()));
+        } else if (container.getPieceFile() != null) {
+            PieceFile pieceFile = container.getPieceFile();
+            connection.send(MessageCodec.encodePieceHeader(id, pieceFile.getPieceLength(id),
+                    peerService.getServerAddress()));
+            connection.sendPiece(pieceFile, id);
+        } else {
+            connection.send(new PieceMessage(id, ByteBuffer.wrap(container.getPiece(id).get().getData()),
+                    peerService.getServerAddress()));
         }
     }
 }
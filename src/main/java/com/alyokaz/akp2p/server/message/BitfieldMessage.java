@@ -0,0 +1,38 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+
+/**
+ * A subclass of {@code Message} used to send the {@code ID}s of the {@code Piece}s a peer holds for a file, as a
+ * {@code BitSet} with a bit set for each held {@code Piece}.
+ */
+public class BitfieldMessage extends Message {
+
+    private final String filename;
+    private final BitSet pieces;
+
+    public BitfieldMessage(String filename, BitSet pieces, InetSocketAddress serverAddress) {
+        super(MessageType.BITFIELD, serverAddress);
+        this.filename = filename;
+        this.pieces = pieces;
+    }
+
+    /**
+     * Returns the filename the bitfield is for.
+     *
+     * @return the filename the bitfield is for
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Returns a {@code BitSet} with a bit set for each {@code Piece} the peer holds.
+     *
+     * @return a {@code BitSet} with a bit set for each {@code Piece} the peer holds
+     */
+    public BitSet getPieces() {
+        return pieces;
+    }
+}
@@ -0,0 +1,50 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A subclass of {@code Message} used to cancel an earlier request for an individual {@code Piece}, once a copy of
+ * the {@code Piece} has arrived from another peer.
+ * <p>
+ * A cancelled request is still answered, so that responses stay in the order of the requests, but with an
+ * {@link MessageType#END} message in place of the {@code Piece} if it has not already been sent.
+ */
+public class CancelPieceMessage extends Message {
+
+    private final String filename;
+    private final int pieceId;
+
+    public CancelPieceMessage(String filename, int pieceId, InetSocketAddress serverAddress) {
+        super(MessageType.CANCEL_PIECE, serverAddress);
+        this.filename = filename;
+        this.pieceId = pieceId;
+    }
+
+    /**
+     * Returns the filename the cancelled {@code Piece} belongs to.
+     *
+     * @return the filename the cancelled {@code Piece} belongs to
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Returns the {@code ID} of the cancelled {@code Piece}.
+     *
+     * @return the {@code ID} of the cancelled {@code Piece}
+     */
+    public int getPieceId() {
+        return pieceId;
+    }
+
+    /**
+     * Returns true if this message cancels the given request.
+     *
+     * @param request the request for a {@code Piece}
+     * @return true if this message cancels the given request
+     */
+    public boolean cancels(RequestPieceMessage request) {
+        return request.getPieceId() == pieceId && request.getFilename().equals(filename);
+    }
+}
@@ -0,0 +1,28 @@
+package com.alyokaz.akp2p.server.message;
+
+import com.alyokaz.akp2p.fileservice.FileInfo;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+
+/**
+ * A subclass of {@code Message} used to send a {@code Set} of {@code FileInfo}s for the files available from a peer.
+ */
+public class FileInfosMessage extends Message {
+
+    private final Set<FileInfo> fileInfos;
+
+    public FileInfosMessage(Set<FileInfo> fileInfos, InetSocketAddress serverAddress) {
+        super(MessageType.FILE_INFOS, serverAddress);
+        this.fileInfos = fileInfos;
+    }
+
+    /**
+     * Returns the {@code FileInfo}s.
+     *
+     * @return the {@code FileInfo}s
+     */
+    public Set<FileInfo> getFileInfos() {
+        return fileInfos;
+    }
+}
@@ -0,0 +1,26 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+
+/**
+ * A subclass of {@code Message} used to send the names of the files held by a peer.
+ */
+public class FilenamesMessage extends Message {
+
+    private final Set<String> filenames;
+
+    public FilenamesMessage(Set<String> filenames, InetSocketAddress serverAddress) {
+        super(MessageType.FILENAMES, serverAddress);
+        this.filenames = filenames;
+    }
+
+    /**
+     * Returns the names of the files.
+     *
+     * @return the names of the files
+     */
+    public Set<String> getFilenames() {
+        return filenames;
+    }
+}
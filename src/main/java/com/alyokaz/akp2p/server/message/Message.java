@@ -1,12 +1,13 @@
 package com.alyokaz.akp2p.server.message;
 
-import java.io.Serializable;
 import java.net.InetSocketAddress;
 
 /**
  * This class is used for communication between peers.
+ * <p>
+ * {@code Message}s are sent between peers in the binary format defined by {@link MessageCodec}.
  */
-public class Message implements Serializable {
+public class Message {
 
     private final MessageType type;
     private final InetSocketAddress serverAddress;
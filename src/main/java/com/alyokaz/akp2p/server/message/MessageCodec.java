@@ -0,0 +1,370 @@
+package com.alyokaz.akp2p.server.message;
+
+import com.alyokaz.akp2p.fileservice.FileInfo;
+import com.alyokaz.akp2p.fileservice.PieceHasher;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class encodes and decodes {@code Message}s to and from the binary wire format used between peers.
+ * <p>
+ * Every {@code Message} is sent as a single length-prefixed frame:
+ * <pre>
+ *     int32   length of the rest of the frame in bytes
+ *     uint8   protocol version
+ *     uint8   {@code MessageType} code
+ *     address the server address of the sender
+ *     ...     the payload for the {@code MessageType}
+ * </pre>
+ * An address is encoded as a single byte giving the length of the raw IP address (0 for no address, 4 for IPv4, 16
+ * for IPv6 or 255 for an unresolved host name sent as a string), followed by the address and an unsigned 16 bit
+ * port. Strings are encoded as UTF-8 prefixed by their length as an unsigned 16 bit integer. A {@code FileInfo} is
+ * encoded as its filename, piece count, size as a 64 bit integer and piece size followed by its piece hashes
+ * prefixed by their total length in bytes, which is 0 if the pieces have not been hashed.
+ */
+public final class MessageCodec {
+
+    /**
+     * The version of the protocol written into every frame.
+     */
+    public static final byte PROTOCOL_VERSION = 6;
+
+    /**
+     * The size in {@code bytes} of the length prefix of a frame.
+     */
+    public static final int LENGTH_SIZE = Integer.BYTES;
+
+    /**
+     * The largest frame, excluding its length prefix, that will be accepted from a peer.
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private static final int NO_ADDRESS = 0;
+    private static final int UNRESOLVED_ADDRESS = 255;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes the given {@code Message} as a complete frame, including its length prefix.
+     *
+     * @param message the {@code Message} to encode
+     * @return a buffer, ready to be read, holding the encoded frame
+     */
+    public static ByteBuffer encode(Message message) {
+        FrameWriter writer = new FrameWriter(message);
+        switch (message.getType()) {
+            case REQUEST_PIECE -> {
+                RequestPieceMessage request = (RequestPieceMessage) message;
+                writer.putString(request.getFilename());
+                writer.putInt(request.getPieceId());
+            }
+            case PIECE -> {
+                PieceMessage piece = (PieceMessage) message;
+                writer.putInt(piece.getPieceId());
+                writer.putInt(piece.getData().remaining());
+                writer.put(piece.getData().duplicate());
+            }
+            case REQUEST_PEERS -> {
+                RequestPeersMessage request = (RequestPeersMessage) message;
+                writer.putLong(request.getSinceVersion());
+                writer.putInt(request.getLimit());
+            }
+            case PEERS -> {
+                PeersMessage peersMessage = (PeersMessage) message;
+                Set<InetSocketAddress> peers = peersMessage.getPeers();
+                writer.putLong(peersMessage.getVersion());
+                writer.putInt(peers.size());
+                peers.forEach(writer::putAddress);
+            }
+            case FILE_INFOS -> {
+                Set<FileInfo> fileInfos = ((FileInfosMessage) message).getFileInfos();
+                writer.putInt(fileInfos.size());
+                fileInfos.forEach(writer::putFileInfo);
+            }
+            case FILENAMES -> {
+                Set<String> filenames = ((FilenamesMessage) message).getFilenames();
+                writer.putInt(filenames.size());
+                filenames.forEach(writer::putString);
+            }
+            case CANCEL_PIECE -> {
+                CancelPieceMessage cancel = (CancelPieceMessage) message;
+                writer.putString(cancel.getFilename());
+                writer.putInt(cancel.getPieceId());
+            }
+            case REGISTRY -> {
+                RegistryMessage registry = (RegistryMessage) message;
+                writer.putLong(registry.getChangedWithinMillis());
+                writer.putInt(registry.getRegistrations().size());
+                registry.getRegistrations().forEach((address, age) -> {
+                    writer.putAddress(address);
+                    writer.putLong(age);
+                });
+            }
+            case REQUEST_BITFIELD -> writer.putString(((RequestBitfieldMessage) message).getFilename());
+            case BITFIELD -> {
+                BitfieldMessage bitfield = (BitfieldMessage) message;
+                writer.putString(bitfield.getFilename());
+                byte[] bytes = bitfield.getPieces().toByteArray();
+                writer.putInt(bytes.length);
+                writer.put(ByteBuffer.wrap(bytes));
+            }
+            default -> {
+                // requests without a payload
+            }
+        }
+        return writer.finish();
+    }
+
+    /**
+     * Encodes the start of a {@link MessageType#PIECE} frame, up to but excluding the data of the {@code Piece}.
+     * <p>
+     * This allows the data to be written to the peer separately, for example straight from a file.
+     *
+     * @param pieceId       the {@code ID} of the {@code Piece}
+     * @param length        the length of the data of the {@code Piece} that will follow
+     * @param serverAddress the server address of the sender
+     * @return a buffer, ready to be read, holding the start of the frame
+     */
+    public static ByteBuffer encodePieceHeader(int pieceId, int length, InetSocketAddress serverAddress) {
+        FrameWriter writer = new FrameWriter(MessageType.PIECE, serverAddress);
+        writer.putInt(pieceId);
+        writer.putInt(length);
+        return writer.finish(length);
+    }
+
+    /**
+     * Decodes a {@code Message} from the given frame.
+     *
+     * @param frame a buffer holding a single frame, excluding its length prefix
+     * @return the decoded {@code Message}
+     * @throws ProtocolException if the frame is not a valid {@code Message}
+     */
+    public static Message decode(ByteBuffer frame) throws ProtocolException {
+        try {
+            byte version = frame.get();
+            if (version != PROTOCOL_VERSION)
+                throw new ProtocolException("Unsupported protocol version " + version);
+            MessageType type = MessageType.fromCode(frame.get());
+            if (type == null)
+                throw new ProtocolException("Unknown message type");
+            InetSocketAddress serverAddress = getAddress(frame);
+
+            Message message = switch (type) {
+                case REQUEST_PIECE -> new RequestPieceMessage(getString(frame), frame.getInt(), serverAddress);
+                case PIECE -> {
+                    int pieceId = frame.getInt();
+                    int length = frame.getInt();
+                    if (length < 0 || length > frame.remaining())
+                        throw new ProtocolException("Bad piece length " + length);
+                    ByteBuffer data = frame.slice(frame.position(), length);
+                    frame.position(frame.position() + length);
+                    yield new PieceMessage(pieceId, data, serverAddress);
+                }
+                case REQUEST_PEERS -> {
+                    long since = frame.getLong();
+                    int limit = frame.getInt();
+                    if (limit < 0)
+                        throw new ProtocolException("Bad peer limit " + limit);
+                    yield new RequestPeersMessage(since, limit, serverAddress);
+                }
+                case PEERS -> {
+                    long tableVersion = frame.getLong();
+                    int count = getCount(frame);
+                    Set<InetSocketAddress> peers = new HashSet<>();
+                    for (int i = 0; i < count; i++)
+                        peers.add(getAddress(frame));
+                    yield new PeersMessage(peers, tableVersion, serverAddress);
+                }
+                case FILE_INFOS -> {
+                    int count = getCount(frame);
+                    Set<FileInfo> fileInfos = new HashSet<>();
+                    for (int i = 0; i < count; i++)
+                        fileInfos.add(getFileInfo(frame));
+                    yield new FileInfosMessage(fileInfos, serverAddress);
+                }
+                case FILENAMES -> {
+                    int count = getCount(frame);
+                    Set<String> filenames = new HashSet<>();
+                    for (int i = 0; i < count; i++)
+                        filenames.add(getString(frame));
+                    yield new FilenamesMessage(filenames, serverAddress);
+                }
+                case CANCEL_PIECE -> new CancelPieceMessage(getString(frame), frame.getInt(), serverAddress);
+                case REGISTRY -> {
+                    long changedWithin = frame.getLong();
+                    int count = getCount(frame);
+                    Map<InetSocketAddress, Long> registrations = new HashMap<>();
+                    for (int i = 0; i < count; i++)
+                        registrations.put(getAddress(frame), frame.getLong());
+                    yield new RegistryMessage(registrations, changedWithin, serverAddress);
+                }
+                case REQUEST_BITFIELD -> new RequestBitfieldMessage(getString(frame), serverAddress);
+                case BITFIELD -> {
+                    String filename = getString(frame);
+                    byte[] bytes = new byte[getCount(frame)];
+                    frame.get(bytes);
+                    yield new BitfieldMessage(filename, BitSet.valueOf(bytes), serverAddress);
+                }
+                default -> new Message(type, serverAddress);
+            };
+            if (frame.hasRemaining())
+                throw new ProtocolException(frame.remaining() + " unexpected bytes after " + type + " message");
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated message");
+        }
+    }
+
+    private static int getCount(ByteBuffer frame) throws ProtocolException {
+        int count = frame.getInt();
+        // every entry takes at least one byte, so a larger count cannot be genuine
+        if (count < 0 || count > frame.remaining())
+            throw new ProtocolException("Bad entry count " + count);
+        return count;
+    }
+
+    private static String getString(ByteBuffer frame) {
+        byte[] bytes = new byte[Short.toUnsignedInt(frame.getShort())];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static InetSocketAddress getAddress(ByteBuffer frame) throws ProtocolException {
+        int length = Byte.toUnsignedInt(frame.get());
+        if (length == NO_ADDRESS)
+            return null;
+        if (length == UNRESOLVED_ADDRESS) {
+            String host = getString(frame);
+            return InetSocketAddress.createUnresolved(host, Short.toUnsignedInt(frame.getShort()));
+        }
+        if (length != 4 && length != 16)
+            throw new ProtocolException("Bad address length " + length);
+        byte[] address = new byte[length];
+        frame.get(address);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), Short.toUnsignedInt(frame.getShort()));
+        } catch (UnknownHostException e) {
+            throw new ProtocolException("Bad address");
+        }
+    }
+
+    private static FileInfo getFileInfo(ByteBuffer frame) throws ProtocolException {
+        String filename = getString(frame);
+        int totalPieces = frame.getInt();
+        long size = frame.getLong();
+        int pieceSize = frame.getInt();
+        if (size < 0 || pieceSize <= 0 || totalPieces != size / pieceSize + (size % pieceSize == 0 ? 0 : 1))
+            throw new ProtocolException(totalPieces + " pieces of " + pieceSize + " bytes for a file of " + size
+                    + " bytes");
+        int hashesLength = getCount(frame);
+        if (hashesLength == 0)
+            return new FileInfo(filename, totalPieces, size, pieceSize, null);
+        if (hashesLength != (long) totalPieces * PieceHasher.HASH_LENGTH)
+            throw new ProtocolException(hashesLength + " bytes of hashes for " + totalPieces + " pieces");
+        byte[] hashes = new byte[hashesLength];
+        frame.get(hashes);
+        return new FileInfo(filename, totalPieces, size, pieceSize, hashes);
+    }
+
+    /**
+     * Writes a single frame into a buffer that grows as needed.
+     */
+    private static class FrameWriter {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        FrameWriter(Message message) {
+            this(message.getType(), message.getServerAddress());
+        }
+
+        FrameWriter(MessageType type, InetSocketAddress serverAddress) {
+            buffer.position(LENGTH_SIZE);
+            buffer.put(PROTOCOL_VERSION);
+            buffer.put(type.getCode());
+            putAddress(serverAddress);
+        }
+
+        void putInt(int value) {
+            ensureCapacity(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensureCapacity(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void put(ByteBuffer bytes) {
+            ensureCapacity(bytes.remaining());
+            buffer.put(bytes);
+        }
+
+        void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF)
+                throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long to encode");
+            ensureCapacity(Short.BYTES + bytes.length);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+
+        void putAddress(InetSocketAddress address) {
+            if (address == null) {
+                ensureCapacity(1);
+                buffer.put((byte) NO_ADDRESS);
+            } else if (address.isUnresolved()) {
+                ensureCapacity(1);
+                buffer.put((byte) UNRESOLVED_ADDRESS);
+                putString(address.getHostString());
+                ensureCapacity(Short.BYTES);
+                buffer.putShort((short) address.getPort());
+            } else {
+                byte[] bytes = address.getAddress().getAddress();
+                ensureCapacity(1 + bytes.length + Short.BYTES);
+                buffer.put((byte) bytes.length);
+                buffer.put(bytes);
+                buffer.putShort((short) address.getPort());
+            }
+        }
+
+        void putFileInfo(FileInfo fileInfo) {
+            putString(fileInfo.getFilename());
+            putInt(fileInfo.getTotalPieces());
+            putLong(fileInfo.getSize());
+            putInt(fileInfo.getPieceSize());
+            byte[] hashes = fileInfo.hasPieceHashes() ? fileInfo.getPieceHashes() : new byte[0];
+            putInt(hashes.length);
+            put(ByteBuffer.wrap(hashes));
+        }
+
+        ByteBuffer finish() {
+            return finish(0);
+        }
+
+        // trailing is the number of bytes that will be sent after this buffer as part of the same frame
+        ByteBuffer finish(int trailing) {
+            buffer.putInt(0, buffer.position() - LENGTH_SIZE + trailing);
+            return buffer.flip();
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                larger.put(buffer.flip());
+                buffer = larger;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@code InputStream} that reads {@code Message}s sent by a peer in the format defined by {@link MessageCodec}.
+ * <p>
+ * Should a read time out part way through a {@code Message}, as it may on a socket with a read timeout, the
+ * {@code bytes} read so far are kept and the next call to {@link #readMessage()} carries on from where it stopped.
+ */
+public class MessageInputStream extends FilterInputStream {
+
+    // the frame being read, kept across a read timeout
+    private final byte[] header = new byte[Integer.BYTES];
+    private int headerRead;
+    private byte[] frame;
+    private int frameRead;
+
+    public MessageInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Reads the next {@code Message} from the stream, blocking until it has fully arrived.
+     *
+     * @return the next {@code Message}
+     * @throws EOFException                   if the stream ends before a complete {@code Message} is read
+     * @throws java.net.SocketTimeoutException if the read timed out, leaving the rest of the {@code Message} to the
+     *                                        next call
+     * @throws ProtocolException              if the data read is not a valid {@code Message}
+     * @throws IOException                    if reading from the stream fails
+     */
+    public Message readMessage() throws IOException {
+        if (frame == null) {
+            while (headerRead < header.length)
+                headerRead += readSome(header, headerRead);
+            headerRead = 0;
+            int length = ByteBuffer.wrap(header).getInt();
+            if (length < 2 || length > MessageCodec.MAX_FRAME_LENGTH)
+                throw new ProtocolException("Bad frame length " + length);
+            frame = new byte[length];
+            frameRead = 0;
+        }
+        while (frameRead < frame.length)
+            frameRead += readSome(frame, frameRead);
+        ByteBuffer data = ByteBuffer.wrap(frame);
+        frame = null;
+        return MessageCodec.decode(data);
+    }
+
+    private int readSome(byte[] buffer, int offset) throws IOException {
+        int read = in.read(buffer, offset, buffer.length - offset);
+        if (read < 0)
+            throw new EOFException();
+        return read;
+    }
+}
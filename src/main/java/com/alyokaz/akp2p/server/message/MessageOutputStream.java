@@ -0,0 +1,65 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@code OutputStream} that writes {@code Message}s to a peer in the format defined by {@link MessageCodec}.
+ */
+public class MessageOutputStream extends FilterOutputStream {
+
+    public MessageOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Writes the given {@code Message} to the stream and flushes it.
+     *
+     * @param message the {@code Message} to write
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeMessage(Message message) throws IOException {
+        write(message);
+        flush();
+    }
+
+    /**
+     * Writes the given {@code Message} to the stream without flushing it, allowing several {@code Message}s to be
+     * sent together.
+     *
+     * @param message the {@code Message} to write
+     * @throws IOException if writing to the stream fails
+     */
+    public void write(Message message) throws IOException {
+        if (message instanceof PieceMessage piece) {
+            // avoid copying the data of the piece into the frame buffer
+            ByteBuffer data = piece.getData().duplicate();
+            write(MessageCodec.encodePieceHeader(piece.getPieceId(), data.remaining(), piece.getServerAddress()));
+            write(data);
+        } else {
+            write(MessageCodec.encode(message));
+        }
+    }
+
+    /**
+     * Writes the remaining contents of the given buffer to the stream, without flushing it.
+     *
+     * @param buffer the buffer to write
+     * @throws IOException if writing to the stream fails
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+}
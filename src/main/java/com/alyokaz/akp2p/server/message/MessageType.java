@@ -2,7 +2,44 @@ package com.alyokaz.akp2p.server.message;
 
 /**
  * An enum representing the different types of {@code Message} that can be handled by a peer
+ * <p>
+ * Each type is identified on the wire by a fixed single byte code, which must not change between versions of the
+ * protocol.
  */
 public enum MessageType {
-    REQUEST_FILENAMES, REQUEST_PIECES, END, REQUEST_PIECE, REQUEST_PEERS, GET_COMPLETED_FILES, REQUSET_FILE_INFOS, REQUEST_AVAILABLE_FILES
+    REQUEST_FILENAMES(1), REQUEST_PIECES(2), END(3), REQUEST_PIECE(4), REQUEST_PEERS(5), GET_COMPLETED_FILES(6),
+    REQUSET_FILE_INFOS(7), REQUEST_AVAILABLE_FILES(8), PIECE(9), PEERS(10), FILE_INFOS(11), FILENAMES(12),
+    REQUEST_BITFIELD(13), BITFIELD(14), CANCEL_PIECE(15), REGISTRY(16);
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+
+    static {
+        for (MessageType type : values())
+            BY_CODE[type.code] = type;
+    }
+
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Returns the code identifying this {@code MessageType} on the wire.
+     *
+     * @return the code identifying this {@code MessageType} on the wire
+     */
+    public byte getCode() {
+        return (byte) code;
+    }
+
+    /**
+     * Returns the {@code MessageType} for the given wire code, or {@code null} if the code is unknown.
+     *
+     * @param code the wire code
+     * @return the {@code MessageType} for the given wire code, or {@code null} if the code is unknown
+     */
+    public static MessageType fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
 }
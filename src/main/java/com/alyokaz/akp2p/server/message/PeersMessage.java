@@ -0,0 +1,44 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+
+/**
+ * A subclass of {@code Message} used to send a {@code Set} of peer addresses.
+ * <p>
+ * A reply to a {@link RequestPeersMessage} from a peer holds only the peers it has added since the version asked
+ * for, along with the version of its peer table they bring the requester up to.
+ */
+public class PeersMessage extends Message {
+
+    private final Set<InetSocketAddress> peers;
+    private final long version;
+
+    public PeersMessage(Set<InetSocketAddress> peers, InetSocketAddress serverAddress) {
+        this(peers, 0, serverAddress);
+    }
+
+    public PeersMessage(Set<InetSocketAddress> peers, long version, InetSocketAddress serverAddress) {
+        super(MessageType.PEERS, serverAddress);
+        this.peers = peers;
+        this.version = version;
+    }
+
+    /**
+     * Returns the addresses of the peers.
+     *
+     * @return the addresses of the peers
+     */
+    public Set<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Returns the version of the sender's peer table these peers bring the requester up to.
+     *
+     * @return the version of the sender's peer table, or 0 if the sender does not version its peers
+     */
+    public long getVersion() {
+        return version;
+    }
+}
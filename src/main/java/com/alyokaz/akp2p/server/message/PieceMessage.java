@@ -0,0 +1,37 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A subclass of {@code Message} used to send the data of a single {@code Piece} to a peer.
+ */
+public class PieceMessage extends Message {
+
+    private final int pieceId;
+    private final ByteBuffer data;
+
+    public PieceMessage(int pieceId, ByteBuffer data, InetSocketAddress serverAddress) {
+        super(MessageType.PIECE, serverAddress);
+        this.pieceId = pieceId;
+        this.data = data;
+    }
+
+    /**
+     * Returns the {@code ID} of the {@code Piece}.
+     *
+     * @return the {@code ID} of the {@code Piece}
+     */
+    public int getPieceId() {
+        return pieceId;
+    }
+
+    /**
+     * Returns a buffer holding the data of the {@code Piece}.
+     *
+     * @return a buffer holding the data of the {@code Piece}
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+}
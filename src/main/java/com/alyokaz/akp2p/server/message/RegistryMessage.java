@@ -0,0 +1,42 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * A subclass of {@code Message} used by {@code Beacon}s to exchange the peers registered with them.
+ * <p>
+ * Each registration is sent as the address of the peer along with how long ago, in milliseconds, it last
+ * registered, so that the clocks of the {@code Beacon}s need not agree. A {@code Beacon} sending its registrations
+ * to another also asks for those the other has changed within a window of time, which is 0 to ask for every one.
+ */
+public class RegistryMessage extends Message {
+
+    private final Map<InetSocketAddress, Long> registrations;
+    private final long changedWithinMillis;
+
+    public RegistryMessage(Map<InetSocketAddress, Long> registrations, long changedWithinMillis,
+                           InetSocketAddress serverAddress) {
+        super(MessageType.REGISTRY, serverAddress);
+        this.registrations = registrations;
+        this.changedWithinMillis = changedWithinMillis;
+    }
+
+    /**
+     * Returns the registrations, each the address of a peer mapped to how long ago it last registered.
+     *
+     * @return the registrations, with their ages in milliseconds
+     */
+    public Map<InetSocketAddress, Long> getRegistrations() {
+        return registrations;
+    }
+
+    /**
+     * Returns the window of time the registrations wanted in reply have changed within.
+     *
+     * @return the window in milliseconds, or 0 for every registration
+     */
+    public long getChangedWithinMillis() {
+        return changedWithinMillis;
+    }
+}
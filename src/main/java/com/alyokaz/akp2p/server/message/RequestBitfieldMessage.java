@@ -0,0 +1,25 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A subclass of {@code Message} used to request the {@code ID}s of the {@code Piece}s a peer holds for a file.
+ */
+public class RequestBitfieldMessage extends Message {
+
+    private final String filename;
+
+    public RequestBitfieldMessage(String filename, InetSocketAddress serverAddress) {
+        super(MessageType.REQUEST_BITFIELD, serverAddress);
+        this.filename = filename;
+    }
+
+    /**
+     * Returns the filename the bitfield is requested for.
+     *
+     * @return the filename the bitfield is requested for
+     */
+    public String getFilename() {
+        return filename;
+    }
+}
@@ -0,0 +1,51 @@
+package com.alyokaz.akp2p.server.message;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A subclass of {@code Message} used to request the addresses of the peers another peer, or a {@code Beacon}, knows
+ * to be live.
+ * <p>
+ * Only the peers added to the other peer's table since the given version are sent back, so that peers that gossip
+ * regularly exchange just what has changed. A version of 0 asks for every peer. The reply may also be limited to a
+ * random sample of a given number of peers, so that the cost of joining through a {@code Beacon} does not grow with
+ * the number of peers registered with it.
+ */
+public class RequestPeersMessage extends Message {
+
+    /**
+     * The limit on the number of peers in the reply that asks for every peer.
+     */
+    public static final int NO_LIMIT = 0;
+
+    private final long sinceVersion;
+    private final int limit;
+
+    public RequestPeersMessage(long sinceVersion, InetSocketAddress serverAddress) {
+        this(sinceVersion, NO_LIMIT, serverAddress);
+    }
+
+    public RequestPeersMessage(long sinceVersion, int limit, InetSocketAddress serverAddress) {
+        super(MessageType.REQUEST_PEERS, serverAddress);
+        this.sinceVersion = sinceVersion;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the version of the peer table the requester last received.
+     *
+     * @return the version of the peer table the requester last received, or 0 for every peer
+     */
+    public long getSinceVersion() {
+        return sinceVersion;
+    }
+
+    /**
+     * Returns the most peers the requester wants in the reply.
+     *
+     * @return the most peers wanted, or {@link #NO_LIMIT}
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
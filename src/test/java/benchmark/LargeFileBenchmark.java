@@ -0,0 +1,96 @@
+package benchmark;
+
+import com.alyokaz.akp2p.AKP2P;
+import com.alyokaz.akp2p.fileservice.FileInfo;
+import com.alyokaz.akp2p.fileservice.exceptions.SeedFileException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures the throughput of downloading a single large file between two nodes on the local machine.
+ * <p>
+ * The size of the file in GiB is taken from the {@code benchmark.size} system property, 100 by default. The file is
+ * created sparse, with a block of random data every 64 MiB, so the disk only has to hold the downloaded copy in full.
+ * Throughput is reported for each tenth of the download so that any slow down as the file grows shows up, as well as
+ * for the download as a whole.
+ * <p>
+ * Run with {@code ./gradlew largeFileBenchmark -Pbenchmark.size=<GiB>}.
+ */
+public class LargeFileBenchmark {
+
+    private static final String FILENAME = "large_file_benchmark.bin";
+    private static final long MARK_INTERVAL = 64L << 20;
+    private static final int MARK_LENGTH = 4096;
+    private static final long POLL_INTERVAL = 100;
+
+    public static void main(String[] args) throws IOException, SeedFileException, InterruptedException {
+        long size = Long.parseLong(System.getProperty("benchmark.size", "100")) << 30;
+        File sourceDirectory = Files.createTempDirectory("akp2p-benchmark").toFile();
+        File source = new File(sourceDirectory, FILENAME);
+        File output = new File(FILENAME);
+        createSourceFile(source, size);
+
+        AKP2P seeder = AKP2P.createAndInitializeNoBeacon();
+        AKP2P downloader = AKP2P.createAndInitializeNoBeacon();
+        try {
+            long start = System.nanoTime();
+            seeder.seedFile(source);
+            report("Seeding (hashing)", size, System.nanoTime() - start);
+
+            downloader.addPeer(seeder.getAddress());
+            FileInfo fileInfo = downloader.getAvailableFiles().stream()
+                    .filter(info -> info.getFilename().equals(FILENAME))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException(FILENAME + " is not available from the seeder"));
+            System.out.printf("%s: %,d bytes in %,d pieces of %,d bytes%n", FILENAME, fileInfo.getSize(),
+                    fileInfo.getTotalPieces(), fileInfo.getPieceSize());
+
+            start = System.nanoTime();
+            downloader.downloadFile(fileInfo);
+            long decileStart = start;
+            int decile = 1;
+            while (downloader.getFile(FILENAME).isEmpty()) {
+                Thread.sleep(POLL_INTERVAL);
+                double progress = downloader.getProgressOfDownload(FILENAME);
+                while (decile < 10 && progress >= decile / 10.0) {
+                    long now = System.nanoTime();
+                    report("Download " + (decile - 1) * 10 + "-" + decile * 10 + "%", size / 10, now - decileStart);
+                    decileStart = now;
+                    decile++;
+                }
+            }
+            long end = System.nanoTime();
+            report("Download " + (decile - 1) * 10 + "-100%", size - size * (decile - 1) / 10, end - decileStart);
+            report("Download", size, end - start);
+        } finally {
+            downloader.shutDown();
+            seeder.shutDown();
+            Files.deleteIfExists(output.toPath());
+            Files.deleteIfExists(source.toPath());
+            Files.deleteIfExists(sourceDirectory.toPath());
+        }
+    }
+
+    private static void createSourceFile(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] mark = new byte[MARK_LENGTH];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+            for (long position = 0; position + MARK_LENGTH <= size; position += MARK_INTERVAL) {
+                random.nextBytes(mark);
+                out.seek(position);
+                out.write(mark);
+            }
+        }
+    }
+
+    private static void report(String stage, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-20s %,15d bytes %8.2f s %10.2f MiB/s%n", stage, bytes, seconds,
+                bytes / seconds / (1 << 20));
+    }
+}
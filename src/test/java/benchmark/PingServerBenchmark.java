@@ -0,0 +1,92 @@
+package benchmark;
+
+import com.alyokaz.akp2p.pingserver.PingServer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the number of pongs per second a single {@code PingServer} answers under a storm of pings.
+ * <p>
+ * Each of {@code benchmark.senders} threads, 4 by default, keeps {@code benchmark.window} pings, 64 by default,
+ * outstanding from its own socket, sending a new ping for each pong received. Pongs are counted for
+ * {@code benchmark.seconds}, 10 by default, after a warm up of a second.
+ * <p>
+ * Run with {@code ./gradlew pingServerBenchmark}.
+ */
+public class PingServerBenchmark {
+
+    private static final int RECEIVE_TIMEOUT_MILLIS = 100;
+    private static final long WARM_UP_MILLIS = 1000;
+
+    private static volatile boolean counting;
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int senders = Integer.getInteger("benchmark.senders", 4);
+        int window = Integer.getInteger("benchmark.window", 64);
+        int seconds = Integer.getInteger("benchmark.seconds", 10);
+
+        DatagramSocket serverSocket = new DatagramSocket();
+        PingServer server = new PingServer(serverSocket);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("localhost", serverSocket.getLocalPort());
+
+        LongAdder pongs = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            Thread thread = new Thread(() -> send(address, window, pongs), "ping-sender-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Thread.sleep(WARM_UP_MILLIS);
+        counting = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        counting = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Thread thread : threads)
+            thread.join();
+        server.shutdown();
+
+        System.out.printf("%d senders, %d pings outstanding each: %,.0f pongs/s%n", senders, window,
+                pongs.sum() / (elapsed / 1e9));
+    }
+
+    private static void send(InetSocketAddress address, int window, LongAdder pongs) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+            byte[] buffer = new byte[PingServer.BUFFER_SIZE];
+            DatagramPacket pong = new DatagramPacket(buffer, buffer.length);
+            long nonce = 0;
+            for (int i = 0; i < window; i++)
+                sendPing(socket, address, nonce++);
+            while (running) {
+                try {
+                    pong.setLength(buffer.length);
+                    socket.receive(pong);
+                    if (counting && PingServer.matches(PingServer.PONG, buffer, pong.getLength()))
+                        pongs.increment();
+                } catch (SocketTimeoutException e) {
+                    // a ping or its pong was dropped, the ping sent below takes its place
+                }
+                sendPing(socket, address, nonce++);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void sendPing(DatagramSocket socket, InetSocketAddress address, long nonce) throws IOException {
+        byte[] ping = PingServer.encode(PingServer.PING, nonce);
+        socket.send(new DatagramPacket(ping, ping.length, address));
+    }
+}
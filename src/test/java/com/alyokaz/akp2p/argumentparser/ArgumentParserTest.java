@@ -1,10 +1,17 @@
 package com.alyokaz.akp2p.argumentparser;
 
+import com.alyokaz.akp2p.executor.ExecutorStrategy;
+import com.alyokaz.akp2p.fileservice.PieceSize;
+import com.alyokaz.akp2p.ratelimit.RateLimits;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.io.File;
 import java.io.IOException;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -22,6 +29,12 @@ class ArgumentParserTest {
         argumentParser = new ArgumentParser(nodeFactory);
     }
 
+    @AfterEach
+    void tearDown() {
+        ExecutorStrategy.setDefault(ExecutorStrategy.PLATFORM);
+        PieceSize.setOverride(0);
+    }
+
 
     @Test
     public void canBuildBeacon() throws IOException {
@@ -68,6 +81,102 @@ class ArgumentParserTest {
         verify(nodeFactory).build(BEACON_HOST + " " + BEACON_PORT, PORT);
     }
 
+    @Test
+    void canBuildNodeWithVirtualThreads() throws IOException {
+        argumentParser.parseArguments(buildArguments(ArgumentParser.THREADS_OPTION, "virtual"));
+        verify(nodeFactory).build();
+        assertEquals(ExecutorStrategy.VIRTUAL, ExecutorStrategy.getDefault());
+    }
+
+    @Test
+    void throwsExceptionOnUnknownThreadsValue() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            argumentParser.parseArguments(buildArguments(ArgumentParser.THREADS_OPTION, "green"));
+        });
+    }
+
+    @Test
+    void canBuildNodeWithPieceSize() throws IOException {
+        argumentParser.parseArguments(buildArguments(ArgumentParser.PIECE_SIZE_OPTION, "65536"));
+        verify(nodeFactory).build();
+        assertEquals(65536, PieceSize.forFileSize(1L << 30));
+    }
+
+    @Test
+    void rejectsPieceSizeForFileWithTooManyPieces() throws IOException {
+        argumentParser.parseArguments(buildArguments(ArgumentParser.PIECE_SIZE_OPTION, "16384"));
+        assertEquals(16384, PieceSize.forFileSize(16L << 30));
+        assertThrows(IllegalArgumentException.class, () -> PieceSize.forFileSize((16L << 30) + 1));
+    }
+
+    @Test
+    void throwsExceptionOnPieceSizeOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            argumentParser.parseArguments(buildArguments(ArgumentParser.PIECE_SIZE_OPTION, "1"));
+        });
+    }
+
+    @Test
+    void canBuildNodeWithRateLimits() throws IOException {
+        argumentParser.parseArguments(buildArguments(ArgumentParser.UPLOAD_LIMIT_OPTION, "1000000",
+                ArgumentParser.PEER_DOWNLOAD_LIMIT_OPTION, "250000"));
+        ArgumentCaptor<RateLimits> captor = ArgumentCaptor.forClass(RateLimits.class);
+        verify(nodeFactory).setRateLimits(captor.capture());
+        verify(nodeFactory).build();
+        RateLimits rateLimits = captor.getValue();
+        assertEquals(1000000, rateLimits.getUpload().getGlobalRate());
+        assertEquals(0, rateLimits.getUpload().getPeerRate());
+        assertEquals(0, rateLimits.getDownload().getGlobalRate());
+        assertEquals(250000, rateLimits.getDownload().getPeerRate());
+    }
+
+    @Test
+    void throwsExceptionOnNegativeRateLimit() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            argumentParser.parseArguments(buildArguments(ArgumentParser.DOWNLOAD_LIMIT_OPTION, "-1"));
+        });
+    }
+
+    @Test
+    void canBuildNodeWithDownloadDirectory() throws IOException {
+        argumentParser.parseArguments(buildArguments(ArgumentParser.PORT_OPTION, Integer.toString(PORT),
+                ArgumentParser.DOWNLOAD_DIRECTORY_OPTION, "downloads"));
+        verify(nodeFactory).setDownloadDirectory(new File("downloads"));
+        verify(nodeFactory).build(PORT);
+    }
+
+    @Test
+    void throwsExceptionOnDownloadDirectoryForBeacon() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            argumentParser.parseArguments(buildArguments(ArgumentParser.BEACON_OPTION,
+                    ArgumentParser.DOWNLOAD_DIRECTORY_OPTION, "downloads"));
+        });
+    }
+
+    @Test
+    void canBuildNodeWithSeveralBeacons() throws IOException {
+        argumentParser.parseArguments(buildArguments(
+                ArgumentParser.BEACON_ADDRESS_OPTION, BEACON_HOST, Integer.toString(BEACON_PORT),
+                ArgumentParser.BEACON_ADDRESS_OPTION, BEACON_HOST, Integer.toString(BEACON_PORT + 1)));
+        verify(nodeFactory).build(BEACON_HOST + " " + BEACON_PORT + " " + BEACON_HOST + " " + (BEACON_PORT + 1));
+    }
+
+    @Test
+    void canBuildBeaconWithReplicas() throws IOException {
+        argumentParser.parseArguments(buildArguments(ArgumentParser.BEACON_OPTION,
+                ArgumentParser.PORT_OPTION, Integer.toString(PORT),
+                ArgumentParser.REPLICA_OPTION, BEACON_HOST, Integer.toString(BEACON_PORT)));
+        verify(nodeFactory).buildBeacon(PORT, BEACON_HOST + " " + BEACON_PORT);
+    }
+
+    @Test
+    void throwsExceptionOnReplicaForNode() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            argumentParser.parseArguments(buildArguments(
+                    ArgumentParser.REPLICA_OPTION, BEACON_HOST, Integer.toString(BEACON_PORT)));
+        });
+    }
+
     @Test
     void throwsExceptionOnUnknownArgument() {
         assertThrows(IllegalArgumentException.class, () -> {
@@ -0,0 +1,108 @@
+package com.alyokaz.akp2p.beacon;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+
+import static com.alyokaz.akp2p.beacon.BeaconRegistry.MERGE_TOLERANCE_MILLIS;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BeaconRegistryTest {
+
+    private static final InetSocketAddress PEER_A = new InetSocketAddress("localhost", 4001);
+    private static final InetSocketAddress PEER_B = new InetSocketAddress("localhost", 4002);
+    private static final long AGE_MILLIS = 10 * MERGE_TOLERANCE_MILLIS;
+
+    @Test
+    void registersEachPeerOnce() {
+        BeaconRegistry registry = new BeaconRegistry();
+
+        assertTrue(registry.register(PEER_A));
+        assertFalse(registry.register(PEER_A));
+        assertTrue(registry.register(PEER_B));
+        assertEquals(2, registry.size());
+        assertEquals(Set.of(PEER_B), registry.getPeers(PEER_A));
+    }
+
+    @Test
+    void mergesRegistrationsFromAnotherBeacon() {
+        BeaconRegistry registry = new BeaconRegistry();
+        registry.register(PEER_A);
+
+        assertEquals(1, registry.merge(Map.of(PEER_A, 0L, PEER_B, AGE_MILLIS)));
+        assertEquals(Set.of(PEER_A, PEER_B), registry.getPeers(null));
+        assertTrue(registry.getRegistrations(0).get(PEER_B) >= AGE_MILLIS);
+    }
+
+    @Test
+    void ignoresExpiredRegistrations() {
+        BeaconRegistry registry = new BeaconRegistry(AGE_MILLIS);
+
+        assertEquals(0, registry.merge(Map.of(PEER_A, AGE_MILLIS + 1)));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    void takesARegistrationMoreRecentThanTheTolerance() {
+        BeaconRegistry registry = new BeaconRegistry();
+        registry.merge(Map.of(PEER_A, AGE_MILLIS));
+
+        registry.merge(Map.of(PEER_A, AGE_MILLIS - 2 * MERGE_TOLERANCE_MILLIS));
+
+        assertTrue(registry.getRegistrations(0).get(PEER_A) < AGE_MILLIS - MERGE_TOLERANCE_MILLIS);
+    }
+
+    @Test
+    void ignoresARegistrationWithinTheTolerance() {
+        BeaconRegistry registry = new BeaconRegistry();
+        registry.merge(Map.of(PEER_A, AGE_MILLIS));
+
+        // as an echo of the registration, aged a little less by rounding and transit, would be
+        registry.merge(Map.of(PEER_A, AGE_MILLIS - MERGE_TOLERANCE_MILLIS / 2));
+        registry.merge(Map.of(PEER_A, AGE_MILLIS + MERGE_TOLERANCE_MILLIS));
+
+        assertTrue(registry.getRegistrations(0).get(PEER_A) >= AGE_MILLIS);
+    }
+
+    @Test
+    void stopsExchangingAnEchoedRegistration() throws InterruptedException {
+        BeaconRegistry first = new BeaconRegistry();
+        BeaconRegistry second = new BeaconRegistry();
+        first.register(PEER_A);
+        second.merge(first.getRegistrations(0));
+        Thread.sleep(200);
+
+        // the registration comes back to the first Beacon, which must not count it as a change to send on again
+        first.merge(second.getRegistrations(0));
+
+        assertEquals(Map.of(), first.getRegistrations(100));
+    }
+
+    @Test
+    void evictsExpiredPeers() throws InterruptedException {
+        BeaconRegistry registry = new BeaconRegistry(100);
+        registry.register(PEER_A);
+        Thread.sleep(200);
+        registry.register(PEER_B);
+
+        assertEquals(1, registry.evictExpired());
+        assertEquals(Set.of(PEER_B), registry.getPeers(null));
+    }
+
+    @Test
+    void samplesWithoutTheExcludedPeer() {
+        BeaconRegistry registry = new BeaconRegistry();
+        for (int port = 5000; port < 5010; port++)
+            registry.register(new InetSocketAddress("localhost", port));
+        InetSocketAddress excluded = new InetSocketAddress("localhost", 5000);
+
+        for (int i = 0; i < 100; i++) {
+            Set<InetSocketAddress> sample = registry.sample(3, excluded);
+            assertEquals(3, sample.size());
+            assertFalse(sample.contains(excluded));
+        }
+        assertEquals(9, registry.sample(0, excluded).size());
+    }
+}
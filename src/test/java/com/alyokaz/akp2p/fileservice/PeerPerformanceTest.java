@@ -0,0 +1,87 @@
+package com.alyokaz.akp2p.fileservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static com.alyokaz.akp2p.fileservice.PeerPerformance.SLOW_PERIOD_NANOS;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerPerformanceTest {
+
+    private static final InetSocketAddress FAST = new InetSocketAddress("localhost", 4001);
+    private static final InetSocketAddress SLOW = new InetSocketAddress("localhost", 4002);
+    private static final long START = 1_000_000;
+
+    @Test
+    void stalledPeerIsPersistentlySlowAfterTheSlowPeriod() {
+        PeerPerformance performance = new PeerPerformance();
+        performance.update(FAST, 1_000_000, 1_000_000);
+        performance.update(SLOW, 0, Long.MAX_VALUE);
+
+        assertFalse(performance.isPersistentlySlow(SLOW, START));
+        assertFalse(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS - 1));
+        assertTrue(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS));
+        assertFalse(performance.isPersistentlySlow(FAST, START + SLOW_PERIOD_NANOS));
+    }
+
+    @Test
+    void slowPeerIsPersistentlySlowAfterTheSlowPeriod() {
+        PeerPerformance performance = new PeerPerformance();
+        performance.update(FAST, 1_000_000, 1_000_000);
+        performance.update(SLOW, 1_000_000 * PeerPerformance.SLOW_SHARE / 2, 1_000_000);
+
+        assertFalse(performance.isPersistentlySlow(SLOW, START));
+        assertTrue(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS));
+    }
+
+    @Test
+    void peerWithinTheSlowShareIsNotSlow() {
+        PeerPerformance performance = new PeerPerformance();
+        performance.update(FAST, 1_000_000, 1_000_000);
+        performance.update(SLOW, 1_000_000 * PeerPerformance.SLOW_SHARE, 1_000_000);
+
+        assertFalse(performance.isPersistentlySlow(SLOW, START));
+        assertFalse(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS));
+    }
+
+    @Test
+    void peerThatRecoversStartsTheSlowPeriodAgain() {
+        PeerPerformance performance = new PeerPerformance();
+        performance.update(FAST, 1_000_000, 1_000_000);
+        performance.update(SLOW, 0, Long.MAX_VALUE);
+        assertFalse(performance.isPersistentlySlow(SLOW, START));
+
+        performance.update(SLOW, 1_000_000, 1_000_000);
+        assertFalse(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS));
+
+        performance.update(SLOW, 0, 1_000_000);
+        assertFalse(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS + 1));
+        assertTrue(performance.isPersistentlySlow(SLOW, START + 2 * SLOW_PERIOD_NANOS + 1));
+    }
+
+    @Test
+    void peerIsNeverSlowWithoutAFasterPeer() {
+        PeerPerformance performance = new PeerPerformance();
+        performance.update(SLOW, 0, Long.MAX_VALUE);
+        assertFalse(performance.isPersistentlySlow(SLOW, START));
+        assertFalse(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS));
+
+        // every peer has stalled
+        performance.update(FAST, 0, 1_000_000);
+        assertFalse(performance.isPersistentlySlow(SLOW, START + 2 * SLOW_PERIOD_NANOS));
+    }
+
+    @Test
+    void removedPeerIsNotSlow() {
+        PeerPerformance performance = new PeerPerformance();
+        performance.update(FAST, 1_000_000, 1_000_000);
+        performance.update(SLOW, 0, Long.MAX_VALUE);
+        assertFalse(performance.isPersistentlySlow(SLOW, START));
+        performance.remove(SLOW);
+
+        assertFalse(performance.isPersistentlySlow(SLOW, START + SLOW_PERIOD_NANOS));
+        assertEquals(0.0, performance.getThroughput(SLOW));
+        assertEquals(1_000_000.0, performance.getTotalThroughput());
+    }
+}
@@ -0,0 +1,222 @@
+package com.alyokaz.akp2p.fileservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PieceContainerTest {
+
+    private static final FileInfo FILE_INFO = new FileInfo("file.mp4", 10, 10);
+
+    @Test
+    void looksUpPiecesById() throws IOException {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        container.addPiece(new Piece(3, new byte[]{3}));
+        container.addPiece(new Piece(7, new byte[]{7}));
+
+        assertTrue(container.hasPiece(3));
+        assertTrue(container.hasPiece(7));
+        assertFalse(container.hasPiece(4));
+        assertEquals(Optional.of(new Piece(7, new byte[]{7})), container.getPiece(7));
+        assertEquals(Optional.empty(), container.getPiece(4));
+        assertEquals(2, container.getNoOfHeldPieces());
+    }
+
+    @Test
+    void ignoresIdsOutsideTheFile() {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+
+        assertFalse(container.hasPiece(-1));
+        assertFalse(container.hasPiece(10));
+        assertEquals(Optional.empty(), container.getPiece(10));
+        assertThrows(IOException.class, () -> container.addPiece(new Piece(10, new byte[]{10})));
+    }
+
+    @Test
+    void keepsTheFirstCopyOfAPiece() throws IOException {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        List<Integer> added = new ArrayList<>();
+        container.addPieceListener(added::add);
+        container.addPiece(new Piece(5, new byte[]{1}));
+        container.addPiece(new Piece(5, new byte[]{2}));
+
+        assertEquals(Optional.of(new Piece(5, new byte[]{1})), container.getPiece(5));
+        assertEquals(1, container.getNoOfHeldPieces());
+        assertEquals(List.of(5), added);
+    }
+
+    @Test
+    void isCompleteOnceEveryPieceIsHeld() throws IOException {
+        SortedSet<Piece> pieces = new TreeSet<>();
+        for (int id = 0; id < 9; id++)
+            pieces.add(new Piece(id, new byte[]{(byte) id}));
+        PieceContainer container = new PieceContainer(FILE_INFO, pieces);
+
+        assertFalse(container.complete());
+        assertEquals(0.9, container.getProgress(), 1e-9);
+        container.addPiece(new Piece(9, new byte[]{9}));
+        assertTrue(container.complete());
+        assertEquals(10, container.getPieces().size());
+        assertEquals(0, container.getPieces().first().getId());
+        assertEquals(10, container.getHeldPieces().cardinality());
+    }
+
+    @Test
+    void heldPiecesAreASnapshot() throws IOException {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        container.addPiece(new Piece(2, new byte[]{2}));
+        BitSet held = container.getHeldPieces();
+        held.set(4);
+
+        assertFalse(container.hasPiece(4));
+        assertEquals(1, container.getHeldPieces().cardinality());
+    }
+
+    @Test
+    void assignsEachMissingPieceOnceBeforeReassigning() throws IOException {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        container.addPiece(new Piece(0, new byte[]{0}));
+        BitSet assigned = new BitSet();
+        for (int i = 0; i < 9; i++) {
+            int id = container.requestPiece();
+            assertTrue(id > 0 && id < 10);
+            assertFalse(assigned.get(id));
+            assigned.set(id);
+        }
+
+        int reassigned = container.requestPiece();
+        assertTrue(assigned.get(reassigned));
+    }
+
+    @Test
+    void neverReassignsWhenAskedForAnUnassignedPiece() {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(4);
+        PieceAvailability availability = new PieceAvailability(10);
+        availability.add(peerPieces);
+
+        assertEquals(4, container.requestUnassignedPiece(peerPieces, availability));
+        assertEquals(-1, container.requestUnassignedPiece(peerPieces, availability));
+        assertEquals(4, container.requestPiece(peerPieces, availability));
+    }
+
+    @Test
+    void releasedPiecesCanBeAssignedAgain() {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(6);
+
+        assertEquals(6, container.requestUnassignedPiece(peerPieces, null));
+        container.releasePiece(6);
+        assertEquals(6, container.requestUnassignedPiece(peerPieces, null));
+    }
+
+    @Test
+    void picksOnlyPiecesThePeerHoldsAndIsMissing() throws IOException {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        container.addPiece(new Piece(2, new byte[]{2}));
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(2);
+        // bits beyond the end of the file are ignored
+        peerPieces.set(12);
+
+        assertEquals(-1, container.requestPiece(peerPieces, null));
+        peerPieces.set(8);
+        assertEquals(8, container.requestPiece(peerPieces, null));
+    }
+
+    @Test
+    void picksTheRarestPiece() {
+        PieceAvailability availability = new PieceAvailability(10);
+        BitSet common = new BitSet();
+        common.set(0, 10);
+        availability.add(common);
+        availability.add(common);
+        BitSet rare = new BitSet();
+        rare.set(0, 10);
+        rare.clear(7);
+        availability.add(rare);
+
+        // the search starts from a random piece, so the rarest must win wherever it starts
+        for (int i = 0; i < 20; i++)
+            assertEquals(7, new PieceContainer(FILE_INFO).requestPiece(common, availability));
+    }
+
+    @Test
+    void returnsNoPieceOnceComplete() throws IOException {
+        PieceContainer container = new PieceContainer(new FileInfo("file.mp4", 1, 1));
+        container.addPiece(new Piece(0, new byte[]{0}));
+
+        assertEquals(-1, container.requestPiece());
+        assertFalse(container.inEndgame());
+    }
+
+    @Test
+    void neverPicksAnExcludedPiece() {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(1, 3);
+        BitSet excluded = new BitSet();
+        excluded.set(1);
+
+        assertEquals(2, container.requestUnassignedPiece(peerPieces, excluded, null));
+        assertEquals(-1, container.requestUnassignedPiece(peerPieces, excluded, null));
+        // a piece excluded for one peer may still be assigned to another
+        assertEquals(1, container.requestPiece(peerPieces, null));
+        excluded.set(2);
+        assertEquals(-1, container.requestPiece(peerPieces, excluded, null));
+    }
+
+    @Test
+    void entersEndgameOnceTheLastPiecesAreAllAssigned() throws IOException {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        container.addPiece(new Piece(0, new byte[]{0}));
+        container.addPiece(new Piece(1, new byte[]{1}));
+        for (int i = 0; i < 7; i++)
+            container.requestPiece();
+
+        assertFalse(container.inEndgame());
+        container.requestPiece();
+        assertTrue(container.inEndgame());
+    }
+
+    @Test
+    void staysOutOfEndgameWhileTooManyPiecesAreMissing() {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        for (int i = 0; i < 10; i++)
+            container.requestPiece();
+
+        assertFalse(container.inEndgame());
+    }
+
+    @Test
+    void reassignsAnOutstandingPieceInEndgameAndReportsTheFirstCopy() throws IOException {
+        PieceContainer container = new PieceContainer(FILE_INFO);
+        for (int id = 0; id < 9; id++)
+            container.addPiece(new Piece(id, new byte[]{(byte) id}));
+        BitSet peerPieces = new BitSet();
+        peerPieces.set(0, 10);
+        assertEquals(9, container.requestUnassignedPiece(peerPieces, null));
+        assertTrue(container.inEndgame());
+
+        // a second peer is given the same piece, and whichever copy arrives first triggers the cancellations
+        assertEquals(9, container.requestPiece(peerPieces, null));
+        List<Integer> added = new ArrayList<>();
+        container.addPieceListener(added::add);
+        container.addPiece(new Piece(9, new byte[]{9}));
+        container.addPiece(new Piece(9, new byte[]{9}));
+
+        assertEquals(List.of(9), added);
+        assertTrue(container.complete());
+        assertFalse(container.inEndgame());
+    }
+}
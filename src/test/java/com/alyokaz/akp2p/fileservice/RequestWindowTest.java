@@ -0,0 +1,88 @@
+package com.alyokaz.akp2p.fileservice;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestWindowTest {
+
+    private static final int PIECE_SIZE = 1024;
+    private static final long ROUND_TRIP_NANOS = 1_000_000_000L;
+
+    @Test
+    void startsAtTheInitialDepth() {
+        assertEquals(RequestWindow.INITIAL_DEPTH, RequestWindow.forPieceSize(PIECE_SIZE).getDepth());
+    }
+
+    @Test
+    void growsByAboutOneForEachWindowOfResponses() {
+        RequestWindow window = RequestWindow.forPieceSize(PIECE_SIZE);
+        respond(window, 2, ROUND_TRIP_NANOS);
+        assertEquals(2, window.getDepth());
+        respond(window, 1, ROUND_TRIP_NANOS);
+        assertEquals(3, window.getDepth());
+    }
+
+    @Test
+    void neverExceedsTheMaxBytesInFlight() {
+        int pieceSize = RequestWindow.MAX_BYTES_IN_FLIGHT / 4;
+        RequestWindow window = RequestWindow.forPieceSize(pieceSize);
+        for (int i = 0; i < 1000; i++)
+            window.onResponse(ROUND_TRIP_NANOS, pieceSize);
+
+        assertEquals(4, window.getDepth());
+        assertEquals(RequestWindow.INITIAL_DEPTH, RequestWindow.forPieceSize(Integer.MAX_VALUE).getDepth());
+    }
+
+    @Test
+    void neverExceedsTheMaxDepth() {
+        RequestWindow window = RequestWindow.forPieceSize(PIECE_SIZE);
+        respond(window, 10_000, ROUND_TRIP_NANOS);
+
+        assertEquals(RequestWindow.MAX_DEPTH, window.getDepth());
+    }
+
+    @Test
+    void halvesOnceTheRoundTripTimeDoubles() {
+        RequestWindow window = RequestWindow.forPieceSize(PIECE_SIZE);
+        respond(window, 100, ROUND_TRIP_NANOS);
+        int depth = window.getDepth();
+        window.onResponse(3 * ROUND_TRIP_NANOS, PIECE_SIZE);
+
+        assertEquals(depth / 2, window.getDepth());
+
+        // the responses already in flight saw the old depth
+        window.onResponse(3 * ROUND_TRIP_NANOS, PIECE_SIZE);
+        assertEquals(depth / 2, window.getDepth());
+    }
+
+    @Test
+    void halvesOnFailure() {
+        RequestWindow window = RequestWindow.forPieceSize(PIECE_SIZE);
+        respond(window, 100, ROUND_TRIP_NANOS);
+        int depth = window.getDepth();
+        window.onFailure();
+        assertEquals(depth / 2, window.getDepth());
+
+        RequestWindow initial = RequestWindow.forPieceSize(PIECE_SIZE);
+        initial.onFailure();
+        initial.onFailure();
+        assertEquals(1, initial.getDepth());
+    }
+
+    @Test
+    void limitsTheDepthToWhatThePeerDeliversInARoundTrip() {
+        // a round trip of a nanosecond covers less than a piece at any throughput that can be measured
+        RequestWindow window = RequestWindow.forPieceSize(PIECE_SIZE);
+        respond(window, 100, 1);
+
+        assertTrue(window.getThroughput() > 0);
+        assertEquals(1, window.getMinRoundTripNanos());
+        assertEquals(RequestWindow.INITIAL_DEPTH, window.getDepth());
+    }
+
+    private static void respond(RequestWindow window, int responses, long roundTripNanos) {
+        for (int i = 0; i < responses; i++)
+            window.onResponse(roundTripNanos, PIECE_SIZE);
+    }
+}
@@ -0,0 +1,156 @@
+package com.alyokaz.akp2p.fileservice.tasks;
+
+import com.alyokaz.akp2p.fileservice.FileInfo;
+import com.alyokaz.akp2p.fileservice.FileService;
+import com.alyokaz.akp2p.fileservice.PeerPerformance;
+import com.alyokaz.akp2p.fileservice.PieceAvailability;
+import com.alyokaz.akp2p.fileservice.PieceContainer;
+import com.alyokaz.akp2p.fileservice.PieceFile;
+import com.alyokaz.akp2p.fileservice.PieceHasher;
+import com.alyokaz.akp2p.peerservice.PeerService;
+import com.alyokaz.akp2p.server.message.BitfieldMessage;
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageInputStream;
+import com.alyokaz.akp2p.server.message.MessageOutputStream;
+import com.alyokaz.akp2p.server.message.PieceMessage;
+import com.alyokaz.akp2p.server.message.RequestBitfieldMessage;
+import com.alyokaz.akp2p.server.message.RequestPieceMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadFileTargetTaskTest {
+
+    private static final String FILENAME = "file.mp4";
+    private static final int PIECE_SIZE = 4;
+    private static final byte[][] DATA = {{0, 1, 2, 3}, {4, 5, 6, 7}};
+
+    private FileInfo fileInfo;
+    private PeerService peerService;
+    private FileService fileService;
+    private File file;
+    private PieceContainer container;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // hashed here rather than in a static initialiser, which the hashing threads would wait on
+        fileInfo = new FileInfo(FILENAME, DATA.length, DATA.length * PIECE_SIZE, PIECE_SIZE,
+                PieceHasher.hashPieces(DATA.length, id -> ByteBuffer.wrap(DATA[id])));
+        peerService = new PeerService();
+        fileService = new FileService(peerService);
+        file = Files.createTempFile("download", ".part").toFile();
+        container = new PieceContainer(fileInfo, PieceFile.create(file, fileInfo.getSize(), PIECE_SIZE),
+                new BitSet());
+        fileService.getFiles().put(FILENAME, container);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        container.getPieceFile().close();
+        fileService.shutdown();
+        peerService.shutdown();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test
+    void rerequestsACorruptPieceFromAnotherPeer() throws Exception {
+        List<Integer> corruptPeerRequests = download(Set.of(0));
+
+        assertTrue(corruptPeerRequests.contains(0));
+        assertFalse(container.hasPiece(0));
+        assertTrue(container.hasPiece(1));
+
+        List<Integer> honestPeerRequests = download(Set.of());
+
+        assertEquals(List.of(0), honestPeerRequests);
+        assertTrue(container.complete());
+        assertArrayEquals(DATA[0], container.getPiece(0).get().getData());
+    }
+
+    @Test
+    void dropsAStalledPeerWhosePiecesAnotherPeerHolds() throws Exception {
+        BitSet every = new BitSet();
+        every.set(0, DATA.length);
+        PieceAvailability availability = fileService.getPieceAvailability(FILENAME);
+        availability.add(every);
+        PeerPerformance performance = fileService.getPeerPerformance(FILENAME);
+        performance.update(new InetSocketAddress("localhost", 4001), 1_000_000, 1_000_000);
+
+        long startedAt = System.nanoTime();
+        List<Integer> requested = download(Set.of(), true);
+
+        assertFalse(requested.isEmpty());
+        assertTrue(System.nanoTime() - startedAt >= PeerPerformance.SLOW_PERIOD_NANOS);
+        assertFalse(container.complete());
+        // the pieces requested from the stalled peer are left to the other peer
+        assertTrue(container.requestUnassignedPiece(every, availability) >= 0);
+        assertEquals(1, availability.getCount(0));
+    }
+
+    private List<Integer> download(Set<Integer> corrupt) throws Exception {
+        return download(corrupt, false);
+    }
+
+    // downloads from a peer holding every piece that sends the given pieces corrupted, or never answers requests for
+    // pieces if stalled, returning the ids it was asked
+    private List<Integer> download(Set<Integer> corrupt, boolean stalled) throws Exception {
+        List<Integer> requested = new CopyOnWriteArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread peer = new Thread(() -> servePieces(server, corrupt, stalled, requested));
+            peer.start();
+            InetSocketAddress address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+            try (Socket socket = new Socket(address.getAddress(), address.getPort());
+                 MessageInputStream in = new MessageInputStream(new BufferedInputStream(socket.getInputStream()));
+                 MessageOutputStream out = new MessageOutputStream(
+                         new BufferedOutputStream(socket.getOutputStream()))) {
+                socket.setSoTimeout(100);
+                new DownloadFileTargetTask(address, fileService, peerService, fileInfo)
+                        .downloadPieces(FILENAME, out, in);
+            }
+            peer.join(5000);
+        }
+        return requested;
+    }
+
+    private static void servePieces(ServerSocket server, Set<Integer> corrupt, boolean stalled,
+                                    List<Integer> requested) {
+        try (Socket socket = server.accept();
+             MessageInputStream in = new MessageInputStream(new BufferedInputStream(socket.getInputStream()));
+             MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            BitSet pieces = new BitSet();
+            pieces.set(0, DATA.length);
+            while (true) {
+                Message message = in.readMessage();
+                if (message instanceof RequestBitfieldMessage) {
+                    out.writeMessage(new BitfieldMessage(FILENAME, pieces, null));
+                } else if (message instanceof RequestPieceMessage request) {
+                    int id = request.getPieceId();
+                    requested.add(id);
+                    if (stalled)
+                        continue;
+                    byte[] data = corrupt.contains(id) ? new byte[PIECE_SIZE] : DATA[id];
+                    out.writeMessage(new PieceMessage(id, ByteBuffer.wrap(data), null));
+                }
+            }
+        } catch (IOException e) {
+            // the download has closed the connection
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.alyokaz.akp2p.peerservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FailureDetectorTest {
+
+    private static final InetSocketAddress PEER_A = new InetSocketAddress("localhost", 4001);
+    private static final InetSocketAddress PEER_B = new InetSocketAddress("localhost", 4002);
+    private static final long SECOND = 1_000_000_000L;
+    private static final long START = 1_000 * SECOND;
+
+    @Test
+    void hasNoSuspicionOfAnUnknownPeer() {
+        FailureDetector detector = new FailureDetector(SECOND);
+
+        assertEquals(0.0, detector.phi(PEER_A, START));
+        assertFalse(detector.hasFailed(PEER_A, START + 100 * SECOND));
+    }
+
+    @Test
+    void regularHeartbeatsKeepAPeerLive() {
+        FailureDetector detector = new FailureDetector(SECOND);
+        long last = beat(detector, PEER_A, START, SECOND, 20);
+
+        assertTrue(detector.phi(PEER_A, last + SECOND) < 1);
+        assertFalse(detector.hasFailed(PEER_A, last + SECOND));
+    }
+
+    @Test
+    void allowsForTheAcceptablePause() {
+        FailureDetector detector = new FailureDetector(SECOND);
+        long last = beat(detector, PEER_A, START, SECOND, 20);
+
+        assertFalse(detector.hasFailed(PEER_A, last + SECOND + FailureDetector.ACCEPTABLE_PAUSE_NANOS));
+    }
+
+    @Test
+    void suspicionRisesWithSilenceUntilThePeerHasFailed() {
+        FailureDetector detector = new FailureDetector(SECOND);
+        long last = beat(detector, PEER_A, START, SECOND, 20);
+
+        double earlier = detector.phi(PEER_A, last + 4 * SECOND);
+        double later = detector.phi(PEER_A, last + 5 * SECOND);
+        assertTrue(later > earlier);
+        assertTrue(detector.hasFailed(PEER_A, last + 10 * SECOND));
+    }
+
+    @Test
+    void judgesAPeerWithIrregularHeartbeatsMoreSlowly() {
+        FailureDetector detector = new FailureDetector(SECOND);
+        long lastA = beat(detector, PEER_A, START, SECOND, 40);
+        long lastB = START;
+        detector.heartbeat(PEER_B, lastB);
+        // intervals of half a second and a second and a half, the same mean as the regular peer
+        for (int i = 0; i < 40; i++) {
+            lastB += i % 2 == 0 ? SECOND / 2 : 3 * SECOND / 2;
+            detector.heartbeat(PEER_B, lastB);
+        }
+
+        long silence = 2 * SECOND + FailureDetector.ACCEPTABLE_PAUSE_NANOS;
+        assertTrue(detector.hasFailed(PEER_A, lastA + silence));
+        assertFalse(detector.hasFailed(PEER_B, lastB + silence));
+    }
+
+    @Test
+    void allowsForARaisedExpectedInterval() {
+        FailureDetector detector = new FailureDetector(SECOND);
+        long last = beat(detector, PEER_A, START, SECOND, 20);
+        assertTrue(detector.hasFailed(PEER_A, last + 6 * SECOND));
+
+        // the peer is now pinged every five seconds
+        detector.setExpectedInterval(5 * SECOND);
+        assertFalse(detector.hasFailed(PEER_A, last + 6 * SECOND));
+        assertTrue(detector.hasFailed(PEER_A, last + 20 * SECOND));
+    }
+
+    @Test
+    void ignoresHeartbeatsOutOfOrder() {
+        FailureDetector detector = new FailureDetector(SECOND);
+        FailureDetector reordered = new FailureDetector(SECOND);
+        long last = beat(detector, PEER_A, START, SECOND, 20);
+        beat(reordered, PEER_A, START, SECOND, 20);
+        reordered.heartbeat(PEER_A, last - SECOND / 2);
+        reordered.heartbeat(PEER_A, last);
+
+        assertEquals(detector.phi(PEER_A, last + 2 * SECOND), reordered.phi(PEER_A, last + 2 * SECOND));
+    }
+
+    @Test
+    void forgetsARemovedPeer() {
+        FailureDetector detector = new FailureDetector(SECOND);
+        long last = beat(detector, PEER_A, START, SECOND, 20);
+        detector.remove(PEER_A);
+
+        assertEquals(0.0, detector.phi(PEER_A, last + 100 * SECOND));
+    }
+
+    // sends the given number of heartbeats at the given interval after a first at the start, returning the time of
+    // the last
+    private static long beat(FailureDetector detector, InetSocketAddress peer, long start, long interval,
+                             int count) {
+        detector.heartbeat(peer, start);
+        long nanos = start;
+        for (int i = 0; i < count; i++) {
+            nanos += interval;
+            detector.heartbeat(peer, nanos);
+        }
+        return nanos;
+    }
+}
@@ -0,0 +1,78 @@
+package com.alyokaz.akp2p.peerservice;
+
+import com.alyokaz.akp2p.pingserver.PingServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerServiceTest {
+
+    private PeerService peerService;
+    private PingServer live;
+    private PingServer dead;
+    private InetSocketAddress liveAddress;
+    private InetSocketAddress deadAddress;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peerService = new PeerService();
+        DatagramSocket liveSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket deadSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        live = new PingServer(liveSocket);
+        dead = new PingServer(deadSocket);
+        live.start();
+        dead.start();
+        liveAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), liveSocket.getLocalPort());
+        deadAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), deadSocket.getLocalPort());
+        assertTrue(peerService.addPeer(liveAddress));
+        assertTrue(peerService.addPeer(deadAddress));
+    }
+
+    @AfterEach
+    void tearDown() {
+        peerService.shutdown();
+        live.shutdown();
+        dead.shutdown();
+    }
+
+    @Test
+    void heartbeatsRemoveDeadPeer() throws InterruptedException {
+        // nothing but the heartbeats contacts the peers, so only the failure detector can remove one
+        peerService.startHeartbeats();
+        Thread.sleep(3 * PeerService.HEARTBEAT_INTERVAL_MILLIS);
+        dead.shutdown();
+
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (peerService.getLivePeers().contains(deadAddress) && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+
+        assertFalse(peerService.getLivePeers().contains(deadAddress));
+        assertTrue(peerService.getPeers().contains(deadAddress));
+        assertTrue(peerService.getLivePeers().contains(liveAddress));
+        assertTrue(peerService.getSuspicion(liveAddress) < FailureDetector.PHI_THRESHOLD);
+    }
+
+    @Test
+    void reportFailureDoesNotWaitForThePing() {
+        dead.shutdown();
+
+        CompletableFuture<Boolean> removed = peerService.reportFailure(deadAddress);
+        assertFalse(removed.isDone());
+        assertTrue(removed.join());
+        assertFalse(peerService.getLivePeers().contains(deadAddress));
+    }
+
+    @Test
+    void reportFailureKeepsAPeerThatAnswers() {
+        assertFalse(peerService.reportFailure(liveAddress).join());
+        assertTrue(peerService.getLivePeers().contains(liveAddress));
+    }
+}
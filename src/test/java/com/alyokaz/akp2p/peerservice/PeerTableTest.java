@@ -0,0 +1,106 @@
+package com.alyokaz.akp2p.peerservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerTableTest {
+
+    private static final InetSocketAddress PEER_A = new InetSocketAddress("localhost", 4001);
+    private static final InetSocketAddress PEER_B = new InetSocketAddress("localhost", 4002);
+    private static final InetSocketAddress PEER_C = new InetSocketAddress("localhost", 4003);
+
+    @Test
+    void stampsEachAddedPeerWithTheNextVersion() {
+        PeerTable table = new PeerTable();
+        assertEquals(0, table.getVersion());
+
+        assertTrue(table.add(PEER_A));
+        assertTrue(table.add(PEER_B));
+        assertFalse(table.add(PEER_A));
+
+        assertEquals(2, table.getVersion());
+        assertEquals(Set.of(PEER_A, PEER_B), table.getAddresses());
+    }
+
+    @Test
+    void removingAPeerLeavesTheVersion() {
+        PeerTable table = new PeerTable();
+        table.add(PEER_A);
+        table.add(PEER_B);
+
+        assertTrue(table.remove(PEER_A));
+        assertFalse(table.remove(PEER_A));
+        assertFalse(table.contains(PEER_A));
+        assertEquals(2, table.getVersion());
+        assertEquals(new PeerTable.Changes(Set.of(PEER_B), 2), table.changesSince(0));
+    }
+
+    @Test
+    void returnsOnlyThePeersAddedSinceAVersion() {
+        PeerTable table = new PeerTable();
+        table.add(PEER_A);
+        table.add(PEER_B);
+
+        assertEquals(new PeerTable.Changes(Set.of(PEER_A, PEER_B), 2), table.changesSince(0));
+        assertEquals(new PeerTable.Changes(Set.of(PEER_B), 2), table.changesSince(1));
+        assertEquals(new PeerTable.Changes(Set.of(), 2), table.changesSince(2));
+
+        table.add(PEER_C);
+        assertEquals(new PeerTable.Changes(Set.of(PEER_C), 3), table.changesSince(2));
+    }
+
+    @Test
+    void returnsEveryPeerForAVersionFromBeforeARestart() {
+        PeerTable table = new PeerTable();
+        table.add(PEER_A);
+        table.add(PEER_B);
+
+        assertEquals(new PeerTable.Changes(Set.of(PEER_A, PEER_B), 2), table.changesSince(5));
+    }
+
+    @Test
+    void returnsEveryChangeWithinTheLimit() {
+        PeerTable table = new PeerTable();
+        table.add(PEER_A);
+        table.add(PEER_B);
+
+        assertEquals(table.changesSince(0), table.changesSince(0, 2));
+        assertEquals(table.changesSince(0), table.changesSince(0, 0));
+        assertEquals(table.changesSince(1), table.changesSince(1, 1));
+    }
+
+    @Test
+    void returnsASampleAtTheSameVersionBeyondTheLimit() {
+        PeerTable table = new PeerTable();
+        table.add(PEER_A);
+        table.add(PEER_B);
+        table.add(PEER_C);
+
+        PeerTable.Changes changes = table.changesSince(1, 1);
+        assertEquals(1, changes.added().size());
+        assertTrue(Set.of(PEER_B, PEER_C).containsAll(changes.added()));
+        // the version is held back, so the peers left out are sent the next time
+        assertEquals(1, changes.version());
+    }
+
+    @Test
+    void samplesEveryPeerOverRepeatedLimitedRequests() {
+        PeerTable table = new PeerTable();
+        for (int port = 5000; port < 5010; port++)
+            table.add(new InetSocketAddress("localhost", port));
+
+        Set<InetSocketAddress> received = new HashSet<>();
+        for (int i = 0; i < 1000 && received.size() < 10; i++) {
+            PeerTable.Changes changes = table.changesSince(0, 3);
+            assertEquals(3, changes.added().size());
+            assertEquals(0, changes.version());
+            received.addAll(changes.added());
+        }
+        assertEquals(table.getAddresses(), received);
+    }
+}
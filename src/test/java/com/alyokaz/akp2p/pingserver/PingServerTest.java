@@ -0,0 +1,159 @@
+package com.alyokaz.akp2p.pingserver;
+
+import com.alyokaz.akp2p.peerservice.PingClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PingServerTest {
+
+    private static final int RECEIVE_TIMEOUT_MILLIS = 2000;
+
+    private PingServer server;
+    private InetSocketAddress address;
+    private DatagramSocket socket;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        DatagramSocket serverSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server = new PingServer(serverSocket);
+        server.start();
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        socket = new DatagramSocket();
+        socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        socket.close();
+        server.shutdown();
+    }
+
+    @Test
+    void encodesAndDecodesTheNonce() {
+        for (long nonce : new long[]{0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 0x0102030405060708L}) {
+            byte[] packet = PingServer.encode(PingServer.PING, nonce);
+            assertEquals(PingServer.PACKET_LENGTH, packet.length);
+            assertTrue(PingServer.matches(PingServer.PING, packet, packet.length));
+            assertFalse(PingServer.matches(PingServer.PONG, packet, packet.length));
+            assertEquals(nonce, PingServer.nonce(packet));
+        }
+    }
+
+    @Test
+    void rejectsPacketsOfTheWrongLength() {
+        byte[] packet = PingServer.encode(PingServer.PING, 42);
+        assertFalse(PingServer.matches(PingServer.PING, packet, packet.length - 1));
+        assertFalse(PingServer.matches(PingServer.PING, PingServer.PING, PingServer.PING.length));
+    }
+
+    @Test
+    void answersAPingWithAPongCarryingItsNonce() throws IOException {
+        send(PingServer.encode(PingServer.PING, 0x0102030405060708L));
+
+        DatagramPacket pong = receive();
+        assertEquals(address, pong.getSocketAddress());
+        assertTrue(PingServer.matches(PingServer.PONG, pong.getData(), pong.getLength()));
+        assertEquals(0x0102030405060708L, PingServer.nonce(pong.getData()));
+    }
+
+    @Test
+    void answersEachOfManyPings() throws IOException {
+        Set<Long> sent = new HashSet<>();
+        for (long nonce = 100; nonce < 164; nonce++) {
+            send(PingServer.encode(PingServer.PING, nonce));
+            sent.add(nonce);
+        }
+
+        Set<Long> received = new HashSet<>();
+        for (int i = 0; i < sent.size(); i++) {
+            DatagramPacket pong = receive();
+            assertTrue(PingServer.matches(PingServer.PONG, pong.getData(), pong.getLength()));
+            received.add(PingServer.nonce(pong.getData()));
+        }
+        assertEquals(sent, received);
+    }
+
+    @Test
+    void ignoresPacketsThatAreNotPings() throws IOException {
+        send("hello".getBytes(StandardCharsets.US_ASCII));
+        send(PingServer.encode(PingServer.PONG, 1));
+        send(new byte[PingServer.BUFFER_SIZE]);
+        send(PingServer.encode(PingServer.PING, 2));
+
+        // the first packet back answers the ping that followed the others
+        DatagramPacket pong = receive();
+        assertTrue(PingServer.matches(PingServer.PONG, pong.getData(), pong.getLength()));
+        assertEquals(2, PingServer.nonce(pong.getData()));
+        assertThrows(SocketTimeoutException.class, this::receive);
+    }
+
+    @Test
+    void answersThePingsOfAPingClient() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (PingClient client = new PingClient(executor)) {
+            long roundTripNanos = client.ping(address).get(RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertTrue(roundTripNanos > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void pingClientIgnoresAPongFromAnotherAddress() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (PingClient client = new PingClient(executor);
+             DatagramSocket forger = new DatagramSocket()) {
+            // the test socket stands in for the PingServer, so that the pong to the ping can be forged
+            CompletableFuture<Long> result = client.ping(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort()));
+            DatagramPacket ping = receive();
+            assertTrue(PingServer.matches(PingServer.PING, ping.getData(), ping.getLength()));
+            byte[] pong = PingServer.encode(PingServer.PONG, PingServer.nonce(ping.getData()));
+
+            forger.send(new DatagramPacket(pong, pong.length, ping.getSocketAddress()));
+            Thread.sleep(200);
+            assertFalse(result.isDone());
+
+            socket.send(new DatagramPacket(pong, pong.length, ping.getSocketAddress()));
+            assertTrue(result.get(RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void stopsAnsweringOnceShutDown() throws IOException {
+        server.shutdown();
+        send(PingServer.encode(PingServer.PING, 3));
+
+        assertThrows(SocketTimeoutException.class, this::receive);
+    }
+
+    private void send(byte[] data) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, address));
+    }
+
+    private DatagramPacket receive() throws IOException {
+        byte[] buffer = new byte[PingServer.BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+        return packet;
+    }
+}
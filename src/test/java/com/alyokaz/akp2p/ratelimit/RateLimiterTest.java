@@ -0,0 +1,110 @@
+package com.alyokaz.akp2p.ratelimit;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    private static final long RATE = 1_000_000;
+    private static final InetSocketAddress PEER_A = new InetSocketAddress("127.0.0.1", 4000);
+    private static final InetSocketAddress PEER_B = new InetSocketAddress("127.0.0.1", 4001);
+
+    @Test
+    void isHeldToTheLowerOfTheTwoLimits() {
+        assertEquals(RATE / 10, new RateLimiter(RATE, RATE * 10).tryAcquire(PEER_A, Long.MAX_VALUE));
+        assertEquals(RATE / 10, new RateLimiter(RATE * 10, RATE).tryAcquire(PEER_A, Long.MAX_VALUE));
+    }
+
+    @Test
+    void sharesTheGlobalLimitBetweenPeers() {
+        RateLimiter limiter = new RateLimiter(RATE, TokenBucket.UNLIMITED);
+
+        assertEquals(RATE / 10, limiter.tryAcquire(PEER_A, Long.MAX_VALUE));
+        assertEquals(0, limiter.tryAcquire(PEER_B, Long.MAX_VALUE));
+    }
+
+    @Test
+    void limitsEachPeerSeparately() {
+        RateLimiter limiter = new RateLimiter(TokenBucket.UNLIMITED, RATE);
+
+        assertEquals(RATE / 10, limiter.tryAcquire(PEER_A, Long.MAX_VALUE));
+        assertEquals(RATE / 10, limiter.tryAcquire(PEER_B, Long.MAX_VALUE));
+        assertEquals(0, limiter.tryAcquire(PEER_A, Long.MAX_VALUE));
+    }
+
+    @Test
+    void handsBackWhatTheGlobalLimitRefuses() {
+        RateLimiter limiter = new RateLimiter(RATE, RATE * 10);
+        limiter.tryAcquire(PEER_A, Long.MAX_VALUE);
+
+        limiter.setGlobalRate(TokenBucket.UNLIMITED);
+
+        // the peer bucket was only charged for what the global limit granted
+        assertEquals(RATE - RATE / 10, limiter.tryAcquire(PEER_A, RATE - RATE / 10));
+    }
+
+    @Test
+    void changingThePeerRateAppliesToPeersAlreadyLimited() {
+        RateLimiter limiter = new RateLimiter(TokenBucket.UNLIMITED, RATE);
+        limiter.tryAcquire(PEER_A, Long.MAX_VALUE);
+
+        limiter.setPeerRate(TokenBucket.UNLIMITED);
+
+        assertEquals(TokenBucket.UNLIMITED, limiter.getPeerRate());
+        assertEquals(1L << 40, limiter.tryAcquire(PEER_A, 1L << 40));
+    }
+
+    @Test
+    void changingTheGlobalRateAppliesToTransfersUnderWay() {
+        RateLimiter limiter = new RateLimiter(RATE, TokenBucket.UNLIMITED);
+        limiter.tryAcquire(PEER_A, Long.MAX_VALUE);
+        assertTrue(limiter.nanosUntilAvailable(PEER_A, RATE) > 0);
+
+        limiter.setGlobalRate(TokenBucket.UNLIMITED);
+
+        assertEquals(0, limiter.nanosUntilAvailable(PEER_A, RATE));
+        assertEquals(RATE, limiter.tryAcquire(PEER_A, RATE));
+    }
+
+    @Test
+    void acquireWaitsForTheLimit() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(RATE, TokenBucket.UNLIMITED);
+        limiter.acquire(PEER_A, RATE / 10);
+
+        long start = System.nanoTime();
+        limiter.acquire(PEER_A, RATE / 10);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+    }
+
+    @Test
+    void evictsOnlyIdleFullPeerBuckets() throws InterruptedException {
+        // a full bucket holds the minimum capacity, which takes well over half a second to refill at this rate
+        RateLimiter limiter = new RateLimiter(TokenBucket.UNLIMITED, 100_000, TimeUnit.MILLISECONDS.toNanos(50));
+        limiter.tryAcquire(PEER_A, 1);
+        limiter.tryAcquire(PEER_B, Long.MAX_VALUE);
+
+        Thread.sleep(100);
+
+        assertEquals(1, limiter.evictIdle());
+        assertEquals(1, limiter.getPeerCount());
+        Thread.sleep(800);
+        assertEquals(1, limiter.evictIdle());
+        assertEquals(0, limiter.getPeerCount());
+    }
+
+    @Test
+    void evictsIdlePeerBucketsInPassing() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(TokenBucket.UNLIMITED, RATE, TimeUnit.MILLISECONDS.toNanos(50));
+        limiter.tryAcquire(PEER_A, 1);
+
+        Thread.sleep(100);
+        limiter.tryAcquire(PEER_B, 1);
+
+        assertEquals(1, limiter.getPeerCount());
+    }
+}
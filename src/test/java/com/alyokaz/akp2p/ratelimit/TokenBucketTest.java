@@ -0,0 +1,115 @@
+package com.alyokaz.akp2p.ratelimit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    private static final long RATE = 1_000_000;
+
+    @Test
+    void startsFullWithATenthOfASecondOfTokens() {
+        TokenBucket bucket = new TokenBucket(RATE);
+
+        assertEquals(RATE / 10, bucket.tryAcquire(1, Long.MAX_VALUE));
+    }
+
+    @Test
+    void burstIsNeverBelowTheMinimumCapacity() {
+        TokenBucket bucket = new TokenBucket(1000);
+
+        assertEquals(TokenBucket.MIN_CAPACITY, bucket.tryAcquire(1, Long.MAX_VALUE));
+    }
+
+    @Test
+    void takesNothingWithoutWaitingWhenFewerThanTheMinimumRemain() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.tryAcquire(1, Long.MAX_VALUE);
+
+        assertEquals(0, bucket.tryAcquire(RATE / 20, RATE / 10));
+    }
+
+    @Test
+    void reservationWaitsForTheDebtToBePaidAtTheRate() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.tryAcquire(1, Long.MAX_VALUE);
+
+        long wait = bucket.reserve(RATE / 2);
+
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400), "waits " + wait);
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500), "waits " + wait);
+    }
+
+    @Test
+    void releasedTokensCanBeTakenAgain() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.tryAcquire(1, Long.MAX_VALUE);
+
+        bucket.release(RATE / 20);
+
+        assertTrue(bucket.tryAcquire(RATE / 20, RATE / 10) >= RATE / 20);
+    }
+
+    @Test
+    void unlimitedBucketNeverWaits() {
+        TokenBucket bucket = new TokenBucket(TokenBucket.UNLIMITED);
+
+        assertEquals(1L << 40, bucket.tryAcquire(1, 1L << 40));
+        assertEquals(0, bucket.reserve(1L << 40));
+        assertEquals(0, bucket.nanosUntilAvailable(1L << 40));
+    }
+
+    @Test
+    void loweringTheRateShrinksTheBurst() {
+        TokenBucket bucket = new TokenBucket(RATE * 10);
+
+        bucket.setRate(RATE);
+
+        assertEquals(RATE, bucket.getRate());
+        assertEquals(RATE / 10, bucket.tryAcquire(1, Long.MAX_VALUE));
+    }
+
+    @Test
+    void raisingTheRateShortensAWaitUnderWay() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.tryAcquire(1, Long.MAX_VALUE);
+        bucket.reserve(RATE);
+
+        bucket.setRate(RATE * 10);
+
+        long wait = bucket.nanosUntilAvailable(1);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(50), "waits " + wait);
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(100), "waits " + wait);
+    }
+
+    @Test
+    void removingTheLimitEndsAWaitUnderWay() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.reserve(RATE * 10);
+
+        bucket.setRate(TokenBucket.UNLIMITED);
+
+        assertEquals(0, bucket.nanosUntilAvailable(1));
+        assertEquals(RATE, bucket.tryAcquire(1, RATE));
+    }
+
+    @Test
+    void isIdleOnceFullAndUnused() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(RATE);
+        bucket.tryAcquire(1, Long.MAX_VALUE);
+
+        assertFalse(bucket.isIdle(0));
+        Thread.sleep(150);
+        assertTrue(bucket.isIdle(0));
+        assertFalse(bucket.isIdle(TimeUnit.SECONDS.toNanos(10)));
+    }
+
+    @Test
+    void throwsExceptionOnNegativeRate() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(-1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(RATE).setRate(-1));
+    }
+}
@@ -0,0 +1,220 @@
+package com.alyokaz.akp2p.server;
+
+import com.alyokaz.akp2p.fileservice.FileInfo;
+import com.alyokaz.akp2p.fileservice.FileService;
+import com.alyokaz.akp2p.fileservice.Piece;
+import com.alyokaz.akp2p.fileservice.PieceContainer;
+import com.alyokaz.akp2p.peerservice.PeerService;
+import com.alyokaz.akp2p.server.message.CancelPieceMessage;
+import com.alyokaz.akp2p.server.message.FilenamesMessage;
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageInputStream;
+import com.alyokaz.akp2p.server.message.MessageOutputStream;
+import com.alyokaz.akp2p.server.message.MessageType;
+import com.alyokaz.akp2p.server.message.PieceMessage;
+import com.alyokaz.akp2p.server.message.RequestPieceMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionTest {
+
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 4444);
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private EventLoop loop;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        loop = new EventLoop("connection-test-loop");
+        loop.start();
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        workers = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        loop.shutdown();
+        serverChannel.close();
+        workers.shutdownNow();
+    }
+
+    @Test
+    void answersACancelledRequestWithEnd() throws IOException {
+        PeerService peerService = new PeerService();
+        FileService fileService = new FileService(peerService);
+        try {
+            PieceContainer container = new PieceContainer(new FileInfo("file.mp4", 2, 2));
+            container.addPiece(new Piece(0, new byte[]{0}));
+            container.addPiece(new Piece(1, new byte[]{1}));
+            fileService.getFiles().put("file.mp4", container);
+
+            try (Socket client = connect(new PeerHandler(peerService, fileService))) {
+                MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(client.getOutputStream()));
+                MessageInputStream in = new MessageInputStream(new BufferedInputStream(client.getInputStream()));
+                // sent together, so the cancellation is waiting behind the request it cancels
+                out.write(new RequestPieceMessage("file.mp4", 0, ADDRESS));
+                out.write(new CancelPieceMessage("file.mp4", 0, ADDRESS));
+                out.write(new RequestPieceMessage("file.mp4", 1, ADDRESS));
+                out.flush();
+
+                assertEquals(MessageType.END, in.readMessage().getType());
+                PieceMessage piece = (PieceMessage) in.readMessage();
+                assertEquals(1, piece.getPieceId());
+                assertEquals(ByteBuffer.wrap(new byte[]{1}), piece.getData());
+            }
+        } finally {
+            fileService.shutdown();
+            peerService.shutdown();
+        }
+    }
+
+    @Test
+    void answersMessagesWithoutAServerAddress() throws IOException {
+        PeerService peerService = new PeerService();
+        FileService fileService = new FileService(peerService);
+        try {
+            fileService.getFiles().put("file.mp4", new PieceContainer(new FileInfo("file.mp4", 1, 1)));
+
+            try (Socket client = connect(new PeerHandler(peerService, fileService))) {
+                MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(client.getOutputStream()));
+                MessageInputStream in = new MessageInputStream(new BufferedInputStream(client.getInputStream()));
+                // a peer closing its connection sends END without a server address
+                out.write(new Message(MessageType.REQUEST_FILENAMES, null));
+                out.write(new Message(MessageType.END, null));
+                out.flush();
+
+                FilenamesMessage filenames = (FilenamesMessage) in.readMessage();
+                assertEquals(Set.of("file.mp4"), filenames.getFilenames());
+                assertEquals(-1, client.getInputStream().read());
+                assertTrue(peerService.getLivePeers().isEmpty());
+            }
+        } finally {
+            fileService.shutdown();
+            peerService.shutdown();
+        }
+    }
+
+    @Test
+    void pausesReadingWhileTooManyMessagesAreWaiting() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+        MessageHandler handler = (message, connection) -> {
+            awaitQuietly(release);
+            handled.incrementAndGet();
+        };
+        // far more than the socket buffers hold, so the writer can only finish if the connection keeps reading
+        int frames = 4000;
+        try (Socket client = connect(handler)) {
+            Thread writer = write(client, frames, 8 * 1024);
+
+            writer.join(1000);
+            assertTrue(writer.isAlive(), "reading was not paused at " + Connection.MAX_RECEIVED + " messages");
+            assertEquals(0, handled.get());
+
+            release.countDown();
+            writer.join(TIMEOUT_MILLIS);
+            assertFalse(writer.isAlive());
+            awaitCount(handled, frames);
+        }
+    }
+
+    @Test
+    void pausesReadingWhileTooManyBytesAreWaitingToBeSent() throws Exception {
+        AtomicInteger handled = new AtomicInteger();
+        int responseSize = 1024 * 1024;
+        MessageHandler handler = (message, connection) -> {
+            connection.send(ByteBuffer.allocate(responseSize));
+            handled.incrementAndGet();
+        };
+        // well beyond the messages that may already be waiting to be handled when reading is paused
+        int frames = 4 * Connection.MAX_RECEIVED;
+        try (Socket client = connect(handler)) {
+            write(client, frames, 8 * 1024);
+
+            // the peer reads no responses, so once the high water mark and the socket buffers are full the rest
+            // of its requests are left unread
+            Thread.sleep(1000);
+            int handledUnread = handled.get();
+            assertTrue(handledUnread >= Connection.HIGH_WATER_MARK / responseSize);
+            assertTrue(handledUnread < frames / 2, handledUnread + " requests handled without being read");
+
+            // reading resumes as the responses drain below the low water mark
+            InputStream in = client.getInputStream();
+            long expected = (long) frames * responseSize;
+            byte[] buffer = new byte[64 * 1024];
+            for (long read = 0; read < expected; ) {
+                int n = in.read(buffer);
+                assertTrue(n > 0);
+                read += n;
+            }
+            assertEquals(frames, handled.get());
+        }
+    }
+
+    // connects a client to a new Connection that hands what it receives to the given handler
+    private Socket connect(MessageHandler handler) throws IOException {
+        Socket client = new Socket();
+        client.connect(serverChannel.getLocalAddress(), TIMEOUT_MILLIS);
+        client.setSoTimeout(TIMEOUT_MILLIS);
+        SocketChannel channel = serverChannel.accept();
+        Connection connection = new Connection(channel, loop, handler, workers, closed -> {
+        });
+        loop.execute(connection::register);
+        return client;
+    }
+
+    // writes the given number of piece frames of the given size from a new thread
+    private static Thread write(Socket client, int frames, int size) throws IOException {
+        MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < frames; i++)
+                    out.write(new PieceMessage(i, ByteBuffer.allocate(size), ADDRESS));
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (count.get() < expected && System.nanoTime() - deadline < 0)
+            Thread.sleep(10);
+        assertEquals(expected, count.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.alyokaz.akp2p.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLoopTest {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private EventLoop loop;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        loop = new EventLoop("event-loop-test");
+        loop.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        loop.shutdown();
+    }
+
+    @Test
+    void carriesOnAfterATaskThrows() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        loop.execute(() -> {
+            throw new IllegalStateException("task");
+        });
+        loop.execute(ran::countDown);
+
+        assertTrue(ran.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void carriesOnAfterATimerThrows() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        loop.schedule(() -> {
+            throw new IllegalStateException("timer");
+        }, 0);
+        loop.schedule(ran::countDown, TimeUnit.MILLISECONDS.toNanos(10));
+
+        assertTrue(ran.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void closesOnlyTheChannelWhoseHandlerThrows() throws Exception {
+        Pipe failing = Pipe.open();
+        Pipe healthy = Pipe.open();
+        CountDownLatch served = new CountDownLatch(1);
+        register(failing, key -> {
+            throw new IllegalStateException("handler");
+        });
+        register(healthy, key -> {
+            try {
+                ((Pipe.SourceChannel) key.channel()).read(ByteBuffer.allocate(16));
+                served.countDown();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        failing.sink().write(ByteBuffer.wrap(new byte[]{1}));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (failing.source().isOpen() && System.nanoTime() - deadline < 0)
+            Thread.sleep(10);
+        assertFalse(failing.source().isOpen());
+
+        healthy.sink().write(ByteBuffer.wrap(new byte[]{1}));
+        assertTrue(served.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(healthy.source().isOpen());
+        healthy.sink().close();
+        failing.sink().close();
+    }
+
+    private void register(Pipe pipe, Consumer<SelectionKey> handler) throws Exception {
+        pipe.source().configureBlocking(false);
+        CompletableFuture<SelectionKey> key = new CompletableFuture<>();
+        loop.execute(() -> {
+            try {
+                key.complete(loop.register(pipe.source(), SelectionKey.OP_READ, handler));
+            } catch (ClosedChannelException e) {
+                key.completeExceptionally(e);
+            }
+        });
+        key.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,176 @@
+package com.alyokaz.akp2p.server.message;
+
+import com.alyokaz.akp2p.fileservice.FileInfo;
+import com.alyokaz.akp2p.fileservice.PieceHasher;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCodecTest {
+
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 4444);
+
+    @Test
+    void canRoundTripRequest() throws IOException {
+        Message message = roundTrip(new Message(MessageType.REQUEST_FILENAMES, ADDRESS));
+        assertEquals(MessageType.REQUEST_FILENAMES, message.getType());
+        assertEquals(ADDRESS, message.getServerAddress());
+    }
+
+    @Test
+    void canRoundTripPeersRequest() throws IOException {
+        RequestPeersMessage message = (RequestPeersMessage) roundTrip(new RequestPeersMessage(42, 32, ADDRESS));
+        assertEquals(42, message.getSinceVersion());
+        assertEquals(32, message.getLimit());
+        assertEquals(ADDRESS, message.getServerAddress());
+    }
+
+    @Test
+    void canRoundTripPieceRequest() throws IOException {
+        RequestPieceMessage message = (RequestPieceMessage) roundTrip(new RequestPieceMessage("file.mp4", 7, ADDRESS));
+        assertEquals("file.mp4", message.getFilename());
+        assertEquals(7, message.getPieceId());
+        assertEquals(ADDRESS, message.getServerAddress());
+    }
+
+    @Test
+    void canRoundTripCancelPiece() throws IOException {
+        CancelPieceMessage message = (CancelPieceMessage) roundTrip(new CancelPieceMessage("file.mp4", 7, ADDRESS));
+        assertTrue(message.cancels(new RequestPieceMessage("file.mp4", 7, ADDRESS)));
+        assertFalse(message.cancels(new RequestPieceMessage("file.mp4", 8, ADDRESS)));
+    }
+
+    @Test
+    void canRoundTripPiece() throws IOException {
+        byte[] data = {1, 2, 3, 4, 5};
+        PieceMessage message = (PieceMessage) roundTrip(new PieceMessage(3, ByteBuffer.wrap(data), ADDRESS));
+        assertEquals(3, message.getPieceId());
+        assertEquals(ByteBuffer.wrap(data), message.getData());
+    }
+
+    @Test
+    void canRoundTripRegistry() throws IOException {
+        Map<InetSocketAddress, Long> registrations = Map.of(ADDRESS, 1500L, new InetSocketAddress("::1", 80), 0L);
+        RegistryMessage message = (RegistryMessage) roundTrip(new RegistryMessage(registrations, 10000, ADDRESS));
+        assertEquals(registrations, message.getRegistrations());
+        assertEquals(10000, message.getChangedWithinMillis());
+    }
+
+    @Test
+    void canRoundTripPeers() throws IOException {
+        Set<InetSocketAddress> peers = Set.of(ADDRESS, new InetSocketAddress("::1", 80),
+                InetSocketAddress.createUnresolved("example.com", 8080));
+        PeersMessage message = (PeersMessage) roundTrip(new PeersMessage(peers, 17, null));
+        assertEquals(peers, message.getPeers());
+        assertEquals(17, message.getVersion());
+        assertNull(message.getServerAddress());
+    }
+
+    @Test
+    void canRoundTripFileInfos() throws IOException {
+        byte[] hashes = new byte[3 * PieceHasher.HASH_LENGTH];
+        Arrays.fill(hashes, (byte) 7);
+        Set<FileInfo> fileInfos = Set.of(new FileInfo("a.mp4", 3, 2500000, hashes), new FileInfo("b.mp4", 1, 100));
+        FileInfosMessage message = (FileInfosMessage) roundTrip(new FileInfosMessage(fileInfos, ADDRESS));
+        assertEquals(fileInfos, message.getFileInfos());
+    }
+
+    @Test
+    void canRoundTripFileInfoLargerThan2GB() throws IOException {
+        long size = 200L * 1024 * 1024 * 1024 + 1;
+        int pieceSize = 16 * 1024 * 1024;
+        FileInfo fileInfo = new FileInfo("c.bin", 12801, size, pieceSize, null);
+        FileInfosMessage message = (FileInfosMessage) roundTrip(new FileInfosMessage(Set.of(fileInfo), ADDRESS));
+        FileInfo decoded = message.getFileInfos().iterator().next();
+        assertEquals(size, decoded.getSize());
+        assertEquals(pieceSize, decoded.getPieceSize());
+        assertEquals(fileInfo, decoded);
+    }
+
+    @Test
+    void canRoundTripBitfield() throws IOException {
+        BitSet pieces = new BitSet();
+        pieces.set(0);
+        pieces.set(9);
+        pieces.set(130);
+        BitfieldMessage message = (BitfieldMessage) roundTrip(new BitfieldMessage("a.mp4", pieces, ADDRESS));
+        assertEquals("a.mp4", message.getFilename());
+        assertEquals(pieces, message.getPieces());
+    }
+
+    @Test
+    void rejectsUnknownVersion() {
+        ByteBuffer frame = MessageCodec.encode(new Message(MessageType.END, ADDRESS));
+        frame.put(MessageCodec.LENGTH_SIZE, (byte) (MessageCodec.PROTOCOL_VERSION + 1));
+        assertThrows(ProtocolException.class,
+                () -> MessageCodec.decode(frame.position(MessageCodec.LENGTH_SIZE)));
+    }
+
+    @Test
+    void rejectsTruncatedFrame() {
+        ByteBuffer frame = MessageCodec.encode(new RequestPieceMessage("file.mp4", 7, ADDRESS));
+        assertThrows(ProtocolException.class,
+                () -> MessageCodec.decode(frame.position(MessageCodec.LENGTH_SIZE).limit(frame.limit() - 1)));
+    }
+
+    @Test
+    void carriesOnReadingAfterATimeout() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageOutputStream out = new MessageOutputStream(bytes);
+        out.writeMessage(new RequestPieceMessage("file.mp4", 7, ADDRESS));
+        out.writeMessage(new RequestPieceMessage("file.mp4", 8, ADDRESS));
+        byte[] data = bytes.toByteArray();
+        // times out part way through the length of the first frame and part way through the body of the second
+        Set<Integer> timeouts = Set.of(2, data.length - 3);
+        MessageInputStream in = new MessageInputStream(new InputStream() {
+            private int position;
+            private boolean timedOut;
+
+            @Override
+            public int read() throws IOException {
+                if (position == data.length)
+                    return -1;
+                if (timeouts.contains(position) && !timedOut) {
+                    timedOut = true;
+                    throw new SocketTimeoutException();
+                }
+                timedOut = false;
+                return data[position++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                // a byte at a time, as it might trickle in from a socket
+                int read = read();
+                if (read < 0)
+                    return -1;
+                buffer[offset] = (byte) read;
+                return 1;
+            }
+        });
+
+        assertThrows(SocketTimeoutException.class, in::readMessage);
+        assertEquals(7, ((RequestPieceMessage) in.readMessage()).getPieceId());
+        assertThrows(SocketTimeoutException.class, in::readMessage);
+        assertEquals(8, ((RequestPieceMessage) in.readMessage()).getPieceId());
+    }
+
+    private Message roundTrip(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new MessageOutputStream(bytes).writeMessage(message);
+        return new MessageInputStream(new ByteArrayInputStream(bytes.toByteArray())).readMessage();
+    }
+}
@@ -2,25 +2,47 @@ package intergration;
 
 import com.alyokaz.akp2p.AKP2P;
 import com.alyokaz.akp2p.beacon.Beacon;
+import com.alyokaz.akp2p.fileservice.DownloadJournal;
 import com.alyokaz.akp2p.fileservice.FileInfo;
 import com.alyokaz.akp2p.fileservice.FileService;
 import com.alyokaz.akp2p.fileservice.exceptions.SeedFileException;
+import com.alyokaz.akp2p.peerservice.PeerService;
+import com.alyokaz.akp2p.peerservice.PingClient;
 import com.alyokaz.akp2p.peerservice.exceptions.PingPeerException;
+import com.alyokaz.akp2p.ratelimit.RateLimits;
+import com.alyokaz.akp2p.server.message.Message;
+import com.alyokaz.akp2p.server.message.MessageInputStream;
+import com.alyokaz.akp2p.server.message.MessageOutputStream;
+import com.alyokaz.akp2p.server.message.RequestPieceMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
 import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -48,6 +70,21 @@ public class IntegrationTest {
         server.shutDown();
     }
 
+    @Test
+    public void downloadTargetIsPreallocated() throws SeedFileException, PingPeerException {
+        File file = getFile(FILENAME);
+        AKP2P server = AKP2P.createAndInitializeNoBeacon();
+        server.seedFile(file);
+
+        AKP2P client = AKP2P.createAndInitializeNoBeacon();
+        client.addPeer(server.getAddress());
+        client.downloadFile(FileService.getFileInfo(file));
+
+        assertEquals(file.length(), new File(FILENAME).length());
+        client.shutDown();
+        server.shutDown();
+    }
+
     @Test
     public void canDownloadFromThreePeers() throws IOException, ExecutionException, InterruptedException, TimeoutException, PingPeerException, SeedFileException {
         File file = getFile(FILENAME);
@@ -199,6 +236,33 @@ public class IntegrationTest {
         server.shutDown();
     }
 
+    @Test
+    public void pingsManyPeersInOneRound() {
+        int numberOfNodes = 20;
+        Set<AKP2P> nodes = Stream.generate(AKP2P::createAndInitializeNoBeacon)
+                .limit(numberOfNodes)
+                .collect(Collectors.toSet());
+        Set<InetSocketAddress> addresses = nodes.stream().map(AKP2P::getAddress).collect(Collectors.toSet());
+        Set<AKP2P> deadNodes = Stream.generate(AKP2P::createAndInitializeNoBeacon)
+                .limit(numberOfNodes)
+                .collect(Collectors.toSet());
+        deadNodes.forEach(AKP2P::shutDown);
+        Set<InetSocketAddress> allAddresses = Stream.concat(addresses.stream(),
+                deadNodes.stream().map(AKP2P::getAddress)).collect(Collectors.toSet());
+
+        PeerService peerService = new PeerService();
+        long start = System.nanoTime();
+        Set<InetSocketAddress> added = peerService.addPeers(allAddresses);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(addresses, added);
+        assertEquals(addresses, peerService.getLivePeers());
+        // the dead peers time out together rather than one after another
+        assertTrue(elapsedMillis < 3 * PingClient.TIMEOUT_MILLIS, "took " + elapsedMillis + " ms");
+        peerService.shutdown();
+        nodes.forEach(AKP2P::shutDown);
+    }
+
     @Test
     public void canDownloadPeersFromBeacon() throws IOException, SeedFileException {
         Beacon beacon = Beacon.createAndInitialise();
@@ -513,6 +577,146 @@ public class IntegrationTest {
         assertTrue(nodeB.getLivePeers().contains(nodeA.getAddress()));
     }
 
+    @Test
+    public void beaconRegistersEachPeerOnce() {
+        Beacon beacon = Beacon.createAndInitialise();
+        AKP2P nodeA = AKP2P.createAndInitialize(beacon.getAddress());
+        AKP2P nodeB = AKP2P.createAndInitialize(beacon.getAddress());
+
+        nodeA.getAvailableFiles();
+        nodeA.getAvailableFiles();
+        nodeB.getAvailableFiles();
+
+        assertEquals(2, beacon.getRegistry().size());
+        assertEquals(Set.of(nodeB.getAddress()), beacon.getRegistry().getPeers(nodeA.getAddress()));
+        beacon.shutDown();
+        nodeA.shutDown();
+        nodeB.shutDown();
+    }
+
+    @Test
+    public void beaconRepliesWithBoundedSample() {
+        Beacon beacon = Beacon.createAndInitialise();
+        Set<InetSocketAddress> registered = IntStream.range(0, 100)
+                .mapToObj(i -> new InetSocketAddress("127.0.0.1", 20000 + i))
+                .collect(Collectors.toSet());
+        registered.forEach(beacon.getRegistry()::register);
+        InetSocketAddress self = registered.iterator().next();
+
+        Set<InetSocketAddress> sample = beacon.getRegistry().sample(PeerService.BEACON_SAMPLE_SIZE, self);
+
+        assertEquals(PeerService.BEACON_SAMPLE_SIZE, sample.size());
+        assertTrue(registered.containsAll(sample));
+        assertFalse(sample.contains(self));
+        assertEquals(99, beacon.getRegistry().sample(0, self).size());
+        beacon.shutDown();
+    }
+
+    @Test
+    public void beaconsReplicateRegistrations() throws IOException {
+        Beacon beaconA = Beacon.createAndInitialise();
+        Beacon beaconB = Beacon.createAndInitialise(0, List.of(beaconA.getAddress()));
+        AKP2P nodeA = AKP2P.createAndInitialize(beaconA.getAddress());
+
+        beaconB.getReplicator().sync(beaconA.getAddress());
+        AKP2P nodeB = AKP2P.createAndInitialize(beaconB.getAddress());
+
+        assertTrue(beaconB.getRegistry().getPeers(null).contains(nodeA.getAddress()));
+        assertTrue(nodeB.getLivePeers().contains(nodeA.getAddress()));
+        beaconB.getReplicator().sync(beaconA.getAddress());
+        assertEquals(2, beaconA.getRegistry().size());
+        beaconA.shutDown();
+        beaconB.shutDown();
+        nodeA.shutDown();
+        nodeB.shutDown();
+    }
+
+    @Test
+    public void failsOverToResponsiveBeacon() throws IOException {
+        Beacon deadBeacon = Beacon.createAndInitialise();
+        deadBeacon.shutDown();
+        Beacon beacon = Beacon.createAndInitialise();
+        List<InetSocketAddress> beacons = List.of(deadBeacon.getAddress(), beacon.getAddress());
+
+        AKP2P nodeA = AKP2P.createAndInitialize(beacons);
+        AKP2P nodeB = AKP2P.createAndInitialize(beacons);
+
+        assertTrue(nodeB.getLivePeers().contains(nodeA.getAddress()));
+        beacon.shutDown();
+        nodeA.shutDown();
+        nodeB.shutDown();
+    }
+
+    @Test
+    public void heartbeatsRemoveDeadPeer() throws InterruptedException {
+        AKP2P nodeA = AKP2P.createAndInitializeNoBeacon();
+        AKP2P nodeB = AKP2P.createAndInitializeNoBeacon();
+        AKP2P nodeC = AKP2P.createAndInitializeNoBeacon();
+        nodeB.addPeer(nodeA.getAddress());
+        nodeB.addPeer(nodeC.getAddress());
+
+        nodeA.shutDown();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (nodeB.getLivePeers().contains(nodeA.getAddress()) && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+
+        assertFalse(nodeB.getLivePeers().contains(nodeA.getAddress()));
+        assertTrue(nodeB.getLivePeers().contains(nodeC.getAddress()));
+        nodeB.shutDown();
+        nodeC.shutDown();
+    }
+
+    @Test
+    public void restartedDownloadRequestsOnlyMissingPieces() throws Exception {
+        File file = getFile(FILENAME);
+        FileInfo fileInfo = FileService.getFileInfo(file);
+        File directory = Files.createTempDirectory("downloads").toFile();
+        File journalFile = DownloadJournal.journalFor(new File(directory, FILENAME));
+        AKP2P server = AKP2P.createAndInitializeNoBeacon();
+        server.seedFile(file);
+        // slow enough to stop the client part of the way through
+        server.getRateLimits().getUpload().setGlobalRate(file.length() / 4);
+
+        try (RecordingProxy proxy = new RecordingProxy(server.getAddress())) {
+            AKP2P client = AKP2P.createAndInitialize(0, List.of(), directory, new RateLimits());
+            client.addPeer(proxy.getAddress());
+            client.downloadFile(fileInfo);
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (client.getProgressOfDownload(FILENAME) < 0.4 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            client.shutDown();
+
+            BitSet held;
+            try (DownloadJournal journal = DownloadJournal.open(journalFile)) {
+                held = journal.getHeldPieces();
+            }
+            assertTrue(held.cardinality() > 0 && held.cardinality() < fileInfo.getTotalPieces());
+            Set<Integer> missing = IntStream.range(0, fileInfo.getTotalPieces())
+                    .filter(id -> !held.get(id))
+                    .boxed()
+                    .collect(Collectors.toSet());
+
+            server.getRateLimits().getUpload().setGlobalRate(0);
+            proxy.getRequested().clear();
+            AKP2P restarted = AKP2P.createAndInitialize(0, List.of(), directory, new RateLimits());
+            // the restored download holds the journal, so another node cannot carry it on at the same time
+            assertThrows(IOException.class, () -> DownloadJournal.open(journalFile));
+            restarted.addPeer(proxy.getAddress());
+            File completedFile = getDownloadedFile(restarted, FILENAME).get(10_000, TimeUnit.MILLISECONDS);
+
+            assertEquals(missing, new HashSet<>(proxy.getRequested()));
+            assertEquals(missing.size(), proxy.getRequested().size());
+            assertEquals(-1, Files.mismatch(file.toPath(), completedFile.toPath()));
+            assertFalse(journalFile.exists());
+            restarted.shutDown();
+        } finally {
+            server.shutDown();
+            Files.deleteIfExists(new File(directory, FILENAME).toPath());
+            Files.deleteIfExists(journalFile.toPath());
+            Files.deleteIfExists(directory.toPath());
+        }
+    }
+
     @Test
     public void canBuildBeaconWithCustomPort() throws IOException {
         int customPort = getFreePort();
@@ -548,4 +752,110 @@ public class IntegrationTest {
         return new File(getClass().getResource("/" + filename).getFile());
     }
 
+    /**
+     * Stands in for a node, passing its messages and pings on to the node behind it and recording the IDs of the
+     * {@code Piece}s requested from it.
+     */
+    private static class RecordingProxy implements Closeable {
+        private final InetSocketAddress target;
+        private final ServerSocket serverSocket;
+        private final DatagramSocket datagramSocket;
+        private final List<Integer> requested = new CopyOnWriteArrayList<>();
+
+        private RecordingProxy(InetSocketAddress target) throws IOException {
+            this.target = target;
+            ServerSocket serverSocket;
+            DatagramSocket datagramSocket = null;
+            do {
+                serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+                try {
+                    datagramSocket = new DatagramSocket(serverSocket.getLocalPort(), InetAddress.getLoopbackAddress());
+                } catch (BindException e) {
+                    serverSocket.close();
+                }
+            } while (datagramSocket == null);
+            this.serverSocket = serverSocket;
+            this.datagramSocket = datagramSocket;
+            executor.execute(this::accept);
+            executor.execute(this::relayPings);
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        }
+
+        private List<Integer> getRequested() {
+            return requested;
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = serverSocket.accept();
+                    Socket node = new Socket(target.getAddress(), target.getPort());
+                    executor.execute(() -> forwardMessages(client, node));
+                    executor.execute(() -> forwardBytes(node, client));
+                }
+            } catch (IOException e) {
+                // the proxy has been closed
+            }
+        }
+
+        private void forwardMessages(Socket from, Socket to) {
+            try (from; to) {
+                MessageInputStream in = new MessageInputStream(new BufferedInputStream(from.getInputStream()));
+                MessageOutputStream out = new MessageOutputStream(new BufferedOutputStream(to.getOutputStream()));
+                while (true) {
+                    Message message = in.readMessage();
+                    if (message instanceof RequestPieceMessage request)
+                        requested.add(request.getPieceId());
+                    out.writeMessage(message);
+                }
+            } catch (IOException e) {
+                // either side has closed the connection
+            }
+        }
+
+        private void forwardBytes(Socket from, Socket to) {
+            try (from; to) {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int read; (read = in.read(buffer)) != -1; )
+                    out.write(buffer, 0, read);
+            } catch (IOException e) {
+                // either side has closed the connection
+            }
+        }
+
+        // pings are passed on to the node, and its pongs back to whoever sent the last ping
+        private void relayPings() {
+            byte[] buffer = new byte[1024];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            SocketAddress sender = null;
+            try {
+                while (true) {
+                    packet.setLength(buffer.length);
+                    datagramSocket.receive(packet);
+                    // the node may listen on the wildcard address, so its pongs are told apart by their port
+                    if (packet.getPort() == target.getPort()) {
+                        if (sender != null)
+                            datagramSocket.send(new DatagramPacket(buffer, packet.getLength(), sender));
+                    } else {
+                        sender = packet.getSocketAddress();
+                        datagramSocket.send(new DatagramPacket(buffer, packet.getLength(), target));
+                    }
+                }
+            } catch (IOException e) {
+                // the proxy has been closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            datagramSocket.close();
+        }
+    }
+
 }